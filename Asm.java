@@ -0,0 +1,46 @@
+// One line of generated amd64 assembly, split into its parts
+
+public class Asm {
+  // the label defined by this line, or null for an instruction
+  public final String label;
+  // mnemonic or directive, null for a label
+  public final String op;
+  public final String[] args;
+
+  private Asm(String label, String op, String[] args) {
+    this.label = label;
+    this.op = op;
+    this.args = args;
+  }
+
+  public static Asm label(String label) {
+    return new Asm(label, null, new String[0]);
+  }
+
+  public static Asm instr(String op, String... args) {
+    return new Asm(null, op, args);
+  }
+
+  public boolean isLabel() {
+    return this.label != null;
+  }
+
+  public boolean is(String op) {
+    return op.equals(this.op);
+  }
+
+  // any jump, conditional or not
+  public boolean isJump() {
+    return this.op != null && this.op.startsWith("j");
+  }
+
+  @Override
+  public String toString() {
+    if (this.label != null) {
+      return this.label + ":";
+    } else if (this.op.startsWith("#")) {
+      return this.op;
+    }
+    return "\t" + this.op + (this.args.length == 0 ? "" : " " + String.join(", ", this.args));
+  }
+}
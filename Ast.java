@@ -1,8 +1,10 @@
 // Abstract syntax trees
 import java.util.*;
+import java.util.function.Predicate;
 
 import org.antlr.v4.runtime.*;
-import org.antlr.v4.runtime.tree.*;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 
 public abstract class Ast {
   public static abstract class Source {
@@ -10,9 +12,15 @@ public abstract class Ast {
       UndefinedTypeException, UndeclaredVarException, InvalidTypeException,
       UninitializedVarException;
     }
+    /** A fault in the program being compiled, to be reported to the user */
+    public static class CompileError extends RuntimeException {
+      private static final long serialVersionUID = 1L;
+      public CompileError(String message) {
+        super(message);
+      }
+    }
     public static void raise(Error error, String message) {
-      System.out.println(error.toString() + " - " + message);
-      System.exit(1);
+      throw new CompileError(error.toString() + " - " + message);
     }
 
     public static class Dest {
@@ -45,6 +53,29 @@ public abstract class Ast {
           default: throw new IllegalArgumentException();
         }
       }
+
+      /** What the instruction computes. idivq truncates towards zero and
+          faults on a zero divisor or on overflow, which is reported as an
+          ArithmeticException; shift counts are taken modulo 64. */
+      public long apply(long left, long right) {
+        switch(this) {
+          case Add: return left + right;
+          case Subtract: return left - right;
+          case Multiply: return left * right;
+          case Divide:
+          case Modulus:
+            if (right == 0 || (left == Long.MIN_VALUE && right == -1)) {
+              throw new ArithmeticException("idivq fault");
+            }
+            return this == Divide ? left / right : left % right;
+          case BitAnd: return left & right;
+          case BitOr: return left | right;
+          case BitXor: return left ^ right;
+          case Lshift: return left << right;
+          case Rshift: return left >> right;
+          default: throw new IllegalArgumentException();
+        }
+      }
     }
 
     public static enum Unop {
@@ -58,6 +89,10 @@ public abstract class Ast {
           default: throw new IllegalArgumentException();
         }
       }
+
+      public long apply(long arg) {
+        return this == Negate ? -arg : ~arg;
+      }
     }
 
     public static enum BoolOp {
@@ -77,6 +112,31 @@ public abstract class Ast {
           default: throw new IllegalArgumentException();
         }
       }
+
+      /** The comparison that holds exactly when this one does not */
+      public CompOp negate() {
+        switch(this) {
+          case Eq: return Neq;
+          case Neq: return Eq;
+          case Lt: return Geq;
+          case Leq: return Gt;
+          case Gt: return Leq;
+          case Geq: return Lt;
+          default: throw new IllegalArgumentException();
+        }
+      }
+
+      public boolean test(long left, long right) {
+        switch(this) {
+          case Eq: return left == right;
+          case Neq: return left != right;
+          case Lt: return left < right;
+          case Leq: return left <= right;
+          case Gt: return left > right;
+          case Geq: return left >= right;
+          default: throw new IllegalArgumentException();
+        }
+      }
     }
 
     public static abstract class Expr {
@@ -92,8 +152,8 @@ public abstract class Ast {
       public abstract Type typeCheck(Map<String,VarDecl> vars);
 
       public static final class IntImm extends Expr {
-        public final int value;
-        public IntImm(int value) {
+        public final long value;
+        public IntImm(long value) {
           this.value = value;
           this.type = Types.int64;
         }
@@ -103,7 +163,7 @@ public abstract class Ast {
         }
         @Override
         public String toString() {
-          return Integer.toString(this.value);
+          return Long.toString(this.value);
         }
       }
       public static final class BoolImm extends Expr {
@@ -415,24 +475,52 @@ public abstract class Ast {
       }
       @Override
       public String toString() {
-        String str = "";
+        StringBuilder str = new StringBuilder();
         for (Map.Entry<String,VarDecl> varEntry : vars.entrySet())   {
-          str += varEntry.getKey() + " -> " + varEntry.getValue().toString() + "\n";
+          str.append(varEntry.getKey()).append(" -> ").append(varEntry.getValue()).append('\n');
         }
         for (Stmt stmt : this.stmts) {
-          str += stmt.toString() + ";\n";
+          str.append(stmt).append(";\n");
         }
-        return str;
+        return str.toString();
       }
     }
 
-    // Source code parser
+    // Source code parser, listening to the parser as it goes: the parse
+    // tree is never built, so only the tokens of a context are read, and
+    // marks on the statement stack stand in for counting its children
     public static class SourceCreator extends BX0BaseListener {
-      private Stack<Ast.Source.Stmt> stmts = new Stack<>();
+      private List<Ast.Source.Stmt> stmts = new ArrayList<>();
       private Map<String, VarDecl> vars = new LinkedHashMap<>();
       private Stack<Expr> exprs = new Stack<>();
+      // statement stack heights where the open blocks and ifs began
+      private int[] marks = new int[16];
+      private int markCount = 0;
+      // variables of the declaration being read, whose type comes last
+      private List<String> pendingVars = new ArrayList<>();
+      private List<Expr> pendingValues = new ArrayList<>();
+      private Type type;
       private Prog prog = null;
 
+      private void mark() {
+        if (this.markCount == this.marks.length) {
+          this.marks = Arrays.copyOf(this.marks, 2 * this.marks.length);
+        }
+        this.marks[this.markCount++] = this.stmts.size();
+      }
+
+      // the statements pushed since the last mark
+      private List<Stmt> popToMark() {
+        List<Stmt> top = this.stmts.subList(this.marks[--this.markCount], this.stmts.size());
+        List<Stmt> popped = new ArrayList<>(top);
+        top.clear();
+        return popped;
+      }
+
+      private Stmt pop() {
+        return this.stmts.remove(this.stmts.size() - 1);
+      }
+
       @Override
       public void exitProgram(BX0Parser.ProgramContext ctx) {
         this.prog = new Prog(stmts, vars);
@@ -440,56 +528,75 @@ public abstract class Ast {
 
       @Override
       public void exitVarinit(BX0Parser.VarinitContext ctx) {
-        String var = ctx.getChild(0).getText();
-        Type type = ((BX0Parser.VardeclContext) ctx.getParent()).type()
-          .getText().equals("int64") ? Types.int64 : Types.bool;
-        Expr initialValue = null;
-        if (ctx.expr() != null) {
-          initialValue = this.exprs.pop();
+        this.pendingVars.add(ctx.getStart().getText());
+        // VAR alone, or VAR '=' expr
+        this.pendingValues.add(ctx.getStop() != ctx.getStart() ? this.exprs.pop() : null);
+      }
+
+      @Override
+      public void exitType(BX0Parser.TypeContext ctx) {
+        this.type = ctx.getStart().getText().equals("int64") ? Types.int64 : Types.bool;
+      }
+
+      @Override
+      public void exitVardecl(BX0Parser.VardeclContext ctx) {
+        for (int k = 0; k < this.pendingVars.size(); k++) {
+          vars.put(this.pendingVars.get(k), new VarDecl(this.type, this.pendingValues.get(k)));
         }
-        vars.put(var, new VarDecl(type, initialValue));
+        this.pendingVars.clear();
+        this.pendingValues.clear();
       }
 
       @Override
       public void exitMove(BX0Parser.MoveContext ctx) {
-        Dest dest = new Dest(ctx.getChild(0).getText());
+        Dest dest = new Dest(ctx.getStart().getText());
         Expr source = this.exprs.pop();
-        stmts.push(new Stmt.Move(dest, source));
+        stmts.add(new Stmt.Move(dest, source));
+      }
+
+      @Override
+      public void enterBlock(BX0Parser.BlockContext ctx) {
+        mark();
       }
 
       @Override
       public void exitBlock(BX0Parser.BlockContext ctx) {
         Stmt.Block block = new Stmt.Block();
-        int blockSize = ctx.statement().size();
-        while (blockSize != 0) {
-          block.addStmt(stmts.pop());
-          blockSize -= 1;
-        }
-        stmts.push(block);
+        block.stmts.addAll(popToMark());
+        stmts.add(block);
+      }
+
+      @Override
+      public void enterIfelse(BX0Parser.IfelseContext ctx) {
+        mark();
       }
 
       @Override
       public void exitIfelse(BX0Parser.IfelseContext ctx) {
+        // the then block, and an else block or a nested if
+        List<Stmt> branches = popToMark();
         List<Stmt> elseBranch = null;
-        if (ctx.ifelse() != null || ctx.block(1) != null) {
-          elseBranch = ((Stmt.Block) stmts.pop()).stmts;
+        if (branches.size() == 2) {
+          Stmt orElse = branches.get(1);
+          elseBranch = orElse instanceof Stmt.Block ? ((Stmt.Block) orElse).stmts
+            : new ArrayList<>(Collections.singletonList(orElse));
         }
-        List<Stmt> thenBranch = ((Stmt.Block) stmts.pop()).stmts;
+        List<Stmt> thenBranch = ((Stmt.Block) branches.get(0)).stmts;
         Expr condition = exprs.pop();
-        stmts.push(new Stmt.IfElse(condition, thenBranch, elseBranch));
+        stmts.add(new Stmt.IfElse(condition, thenBranch, elseBranch));
       }
 
       @Override
       public void exitWhileloop(BX0Parser.WhileloopContext ctx) {
         Expr condition = exprs.pop();
-        List<Stmt> body = ((Stmt.Block) stmts.pop()).stmts;
-        stmts.push(new Stmt.While(condition, body));
+        List<Stmt> body = ((Stmt.Block) pop()).stmts;
+        stmts.add(new Stmt.While(condition, body));
       }
 
       @Override
       public void exitPrint(BX0Parser.PrintContext ctx) {
         Expr arg = this.exprs.pop();
-        stmts.push(new Stmt.Print(arg));
+        stmts.add(new Stmt.Print(arg));
       }
 
       @Override
@@ -592,87 +699,223 @@ public abstract class Ast {
 
       @Override
       public void exitVariable(BX0Parser.VariableContext ctx) {
-        this.exprs.push(new Expr.Read(new Dest(ctx.getText())));
+        this.exprs.push(new Expr.Read(new Dest(ctx.getStart().getText())));
       }
 
       @Override
       public void exitNumber(BX0Parser.NumberContext ctx) {
-        int num = Integer.parseInt(ctx.getText());
+        long num = Long.parseLong(ctx.getStart().getText());
         this.exprs.push(new Expr.IntImm(num));
       }
 
       @Override
       public void exitBoolean(BX0Parser.BooleanContext ctx) {
-        boolean bool = Boolean.parseBoolean(ctx.getText());
+        boolean bool = Boolean.parseBoolean(ctx.getStart().getText());
         this.exprs.push(new Expr.BoolImm(bool));
       }
+
+      /** Parse a file with a lexer and a parser that may have been used
+          before, which saves building their state again. The faster SLL
+          prediction is tried first, giving up at the first error; since it
+          can fail where LL would not, the file is then parsed again with
+          full LL, which also reports the errors. Syntax errors are raised as
+          a CompileError. The file is lexed from a MappedCharStream, and
+          only the LL pass keeps every token. */
+      public static Prog readProgram(String file, BX0Lexer lexer, BX0Parser parser)
+        throws Exception {
+        List<String> errors = new ArrayList<>();
+        ANTLRErrorListener listener = new BaseErrorListener() {
+          @Override
+          public void syntaxError(Recognizer<?, ?> recognizer, Object symbol,
+            int line, int pos, String msg, RecognitionException e) {
+            errors.add(String.format("line %d:%d %s", line, pos, msg));
+          }
+        };
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(listener);
+        lexer.setInputStream(new MappedCharStream(file));
+        // SLL only looks back as far as the marks its prediction holds, so
+        // tokens are dropped as soon as it is past them
+        parser.setTokenStream(new UnbufferedTokenStream<>(lexer));
+        parser.setBuildParseTree(false);
+        parser.removeErrorListeners();
+        parser.removeParseListeners();
+        // the rules still finish as an error unwinds them, so the AST stops
+        // being built at the first error
+        parser.setErrorHandler(new BailErrorStrategy() {
+          @Override
+          public void recover(Parser recognizer, RecognitionException e) {
+            recognizer.removeParseListeners();
+            super.recover(recognizer, e);
+          }
+          @Override
+          public Token recoverInline(Parser recognizer) {
+            recognizer.removeParseListeners();
+            return super.recoverInline(recognizer);
+          }
+        });
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        SourceCreator creator = new SourceCreator();
+        parser.addParseListener(creator);
+        try {
+          parser.program();
+        } catch (ParseCancellationException e) {
+          // lex again too, so that the errors come in the order of one pass
+          errors.clear();
+          lexer.reset();
+          parser.setTokenStream(new CommonTokenStream(lexer));
+          creator = new SourceCreator();
+          parser.addParseListener(creator);
+          parser.addErrorListener(listener);
+          parser.setErrorHandler(new DefaultErrorStrategy() {
+            @Override
+            public void reportError(Parser recognizer, RecognitionException e) {
+              recognizer.removeParseListeners();
+              super.reportError(recognizer, e);
+            }
+          });
+          parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+          try {
+            parser.program();
+          } catch (CompileError typeError) {
+            // a syntax error is the one to report
+            if (errors.isEmpty()) {
+              throw typeError;
+            }
+          }
+        } finally {
+          parser.removeParseListeners();
+        }
+        if (!errors.isEmpty()) {
+          throw new CompileError(String.join("\n", errors));
+        }
+        return creator.prog;
+      }
     }
 
     /** Parse and return an AST for a BX0 program */
     public static Prog readProgram(String file) throws Exception {
-      CharStream input = CharStreams.fromFileName(file);
-      BX0Lexer lexer = new BX0Lexer(input);
-      CommonTokenStream tokens = new CommonTokenStream(lexer);
-      BX0Parser parser = new BX0Parser(tokens);
-      BX0Parser.ProgramContext pcx = parser.program();
-      ParseTreeWalker walker = new ParseTreeWalker();
-      SourceCreator creator = new SourceCreator();
-      walker.walk(creator, pcx);
-      return creator.prog;
+      return SourceCreator.readProgram(file, new BX0Lexer(null), new BX0Parser(null));
     }
   }
 
   public static class Target {
 
     public static class Dest {
-      public final int loc;
+      public int loc;
+      // machine location chosen by the register allocator: a register name,
+      // or null if the pseudo-register lives in stack slot number `slot`
+      public String reg = null;
+      public int slot;
       public Dest(int loc) {
         this.loc = loc;
+        this.slot = loc;
+      }
+    }
+
+    /** Labels found to name the same program point while lowering, kept
+        as a union-find forest with path halving */
+    public static class LabelMap {
+      private int[] parent = new int[0];
+      private void grow(int label) {
+        if (label >= this.parent.length) {
+          int oldLength = this.parent.length;
+          this.parent = Arrays.copyOf(this.parent, Math.max(label + 1, 2 * oldLength));
+          for (int l = oldLength; l < this.parent.length; l++) {
+            this.parent[l] = l;
+          }
+        }
+      }
+      /** Make `from` name whatever `to` names */
+      public void union(int from, int to) {
+        grow(Math.max(from, to));
+        int root = find(to);
+        this.parent[find(from)] = root;
+      }
+      public int find(int label) {
+        if (label < 0 || label >= this.parent.length) {
+          return label;
+        }
+        while (this.parent[label] != label) {
+          this.parent[label] = this.parent[this.parent[label]];
+          label = this.parent[label];
+        }
+        return label;
       }
     }
 
     public static abstract class Instr {
-      public abstract String toAmd64();
+      /** Write the assembly for this instruction */
+      public abstract void emit(Emitter out);
       public abstract String toRtl();
       public int inLabel, outLabel1, outLabel2 = -1;
       public boolean shouldJump = true;
-      private static String getStackSlot(Dest dest) {
-        return dest.loc == 0 ? "(%rsp)" : (dest.loc * 8) + "(%rsp)";
+      private static final Dest[] NO_DESTS = new Dest[0];
+      /** The pseudo-register written by this instruction, if any */
+      public Dest def() {
+        return null;
       }
-      private static String getJumpStr(boolean shouldJump, int outLabel) {
-        return shouldJump ? String.format("\n\tjmp .L%d", outLabel) : "";
+      /** The pseudo-registers read by this instruction */
+      public Dest[] uses() {
+        return NO_DESTS;
       }
-
-      public static class Sorter implements Comparator<Instr> {
-        public int compare(Instr instr1, Instr instr2) {
-          return instr1.inLabel - instr2.inLabel;
+      /** Replace the written pseudo-register */
+      public void setDef(Dest dest) {
+        throw new IllegalStateException(this.toRtl());
+      }
+      /** Replace the read pseudo-registers, in the order of uses() */
+      public void setUses(Dest[] uses) {
+      }
+      private static String getStackSlot(int slot) {
+        return slot == 0 ? "(%rsp)" : (slot * 8) + "(%rsp)";
+      }
+      private static String getLoc(Dest dest) {
+        return dest.reg != null ? dest.reg : getStackSlot(dest.slot);
+      }
+      private static void emitJump(Emitter out, boolean shouldJump, int outLabel) {
+        if (shouldJump) {
+          out.instr("jmp", out.name(outLabel));
         }
       }
 
       public static class MoveImm extends Instr {
-        public final Dest dest;
-        public final int imm;
-        public MoveImm(int inLabel, Dest dest, int imm, int outLabel1) {
+        public Dest dest;
+        public final long imm;
+        public MoveImm(int inLabel, Dest dest, long imm, int outLabel1) {
           this.inLabel = inLabel;
           this.dest = dest;
           this.imm = imm;
           this.outLabel1 = outLabel1;
         }
         @Override
+        public Dest def() {
+          return this.dest;
+        }
+        @Override
+        public void setDef(Dest dest) {
+          this.dest = dest;
+        }
+        @Override
         public String toRtl() {
           return String.format("L%d: move %d, #%dq --> L%d",
             this.inLabel, this.imm, this.dest.loc, this.outLabel1);
         }
         @Override
-        public String toAmd64() {
-          return String.format(".L%d:\n\tmovq $%d, %s",
-            this.inLabel, this.imm, getStackSlot(dest))
-            + getJumpStr(this.shouldJump, this.outLabel1);
+        public void emit(Emitter out) {
+          out.label(out.name(this.inLabel));
+          // movq only takes a sign-extended 32-bit immediate
+          if (this.imm != (int) this.imm) {
+            out.instr("movabsq", "$" + this.imm, "%rax");
+            out.instr("movq", "%rax", getLoc(dest));
+          } else {
+            out.instr("movq", "$" + this.imm, getLoc(dest));
+          }
+          emitJump(out, this.shouldJump, this.outLabel1);
         }
       }
 
       public static class MoveCp extends Instr {
-        public final Dest dest, source;
+        public Dest dest, source;
         public MoveCp(int inLabel, Dest dest, Dest source, int outLabel1) {
           this.inLabel = inLabel;
           this.dest = dest;
@@ -680,21 +923,39 @@ public abstract class Ast {
           this.outLabel1 = outLabel1;
         }
         @Override
+        public Dest def() {
+          return this.dest;
+        }
+        @Override
+        public Dest[] uses() {
+          return new Dest[] { this.source };
+        }
+        @Override
+        public void setDef(Dest dest) {
+          this.dest = dest;
+        }
+        @Override
+        public void setUses(Dest[] uses) {
+          this.source = uses[0];
+        }
+        @Override
         public String toRtl() {
           return String.format("L%d: copy #%dq, #%dq --> L%d",
             this.inLabel, this.source.loc, this.dest.loc, this.outLabel1);
         }
         @Override
-        public String toAmd64() {
-          return String.format(".L%d:\n\tmovq %s, %%rax\n\tmovq %%rax, %s",
-            this.inLabel, getStackSlot(source), getStackSlot(dest))
-            + getJumpStr(this.shouldJump, this.outLabel1);
+        public void emit(Emitter out) {
+          out.label(out.name(this.inLabel));
+          out.instr("movq", getLoc(source), "%rax");
+          out.instr("movq", "%rax", getLoc(dest));
+          emitJump(out, this.shouldJump, this.outLabel1);
         }
       }
 
       public static class MoveBinop extends Instr {
-        public final Dest dest, leftArg, rightArg;
+        public Dest dest, leftArg, rightArg;
         public final Ast.Source.Binop op;
+        public long imm;
         public MoveBinop(int inLabel, Dest dest, Dest leftArg, Ast.Source.Binop op,
           Dest rightArg, int outLabel1) {
           this.inLabel = inLabel;
@@ -704,48 +965,134 @@ public abstract class Ast {
           this.op = op;
           this.outLabel1 = outLabel1;
         }
+        /** A binop whose right operand is a constant, which has no
+            rightArg */
+        public MoveBinop(int inLabel, Dest dest, Dest leftArg, Ast.Source.Binop op,
+          long imm, int outLabel1) {
+          this(inLabel, dest, leftArg, op, (Dest) null, outLabel1);
+          this.imm = imm;
+        }
+        @Override
+        public Dest def() {
+          return this.dest;
+        }
+        @Override
+        public Dest[] uses() {
+          return this.rightArg == null ? new Dest[] { this.leftArg }
+            : new Dest[] { this.leftArg, this.rightArg };
+        }
+        @Override
+        public void setDef(Dest dest) {
+          this.dest = dest;
+        }
+        @Override
+        public void setUses(Dest[] uses) {
+          this.leftArg = uses[0];
+          this.rightArg = this.rightArg == null ? null : uses[1];
+        }
         @Override
         public String toRtl() {
-          return String.format("L%d: binop %s, #%dq, #%dq, [#%dq] --> L%d",
+          return String.format("L%d: binop %s, #%dq, %s, [#%dq] --> L%d",
             this.inLabel, this.op.toString(), this.leftArg.loc,
-            this.rightArg.loc, this.dest.loc, this.outLabel1);
+            this.rightArg == null ? "$" + this.imm : "#" + this.rightArg.loc + "q",
+            this.dest.loc, this.outLabel1);
+        }
+        // multiplications by these become a single leaq
+        private static final long[] LEA_FACTORS = { 3, 5, 9 };
+        private void emitImm(Emitter out) {
+          boolean powerOfTwo = this.imm > 1 && Long.bitCount(this.imm) == 1;
+          int shift = Long.numberOfTrailingZeros(this.imm);
+          switch (op) {
+            case Multiply:
+              if (powerOfTwo) {
+                out.instr("salq", "$" + shift, "%rax");
+              } else if (Arrays.binarySearch(LEA_FACTORS, this.imm) >= 0) {
+                out.instr("leaq", "(%rax,%rax," + (this.imm - 1) + ")", "%rax");
+              } else {
+                out.instr("imulq", "$" + this.imm, "%rax", "%rax");
+              }
+              break;
+            case Divide:
+            case Modulus:
+              if (powerOfTwo) {
+                // idivq rounds towards zero, so negative dividends are biased
+                // by imm - 1 before the arithmetic shift or the mask
+                out.instr("movq", "%rax", "%rdx");
+                out.instr("sarq", "$63", "%rdx");
+                out.instr("shrq", "$" + (64 - shift), "%rdx");
+                out.instr("addq", "%rdx", "%rax");
+                if (op == Ast.Source.Binop.Divide) {
+                  out.instr("sarq", "$" + shift, "%rax");
+                } else {
+                  out.instr("andq", "$" + (this.imm - 1), "%rax");
+                  out.instr("subq", "%rdx", "%rax");
+                }
+              } else {
+                out.instr("movq", "$" + this.imm, "%rcx");
+                out.instr("cqto");
+                out.instr("idivq", "%rcx");
+                if (op == Ast.Source.Binop.Modulus) {
+                  out.instr("movq", "%rdx", "%rax");
+                }
+              }
+              break;
+            case Lshift:
+            case Rshift:
+              out.instr(op.getInstr(), "$" + (this.imm & 63), "%rax");
+              break;
+            default:
+              out.instr(op.getInstr(), "$" + this.imm, "%rax");
+          }
         }
         @Override
-        public String toAmd64() {
+        public void emit(Emitter out) {
+          out.label(out.name(this.inLabel));
+          if (this.rightArg == null) {
+            out.instr("movq", getLoc(leftArg), "%rax");
+            emitImm(out);
+            out.instr("movq", "%rax", getLoc(dest));
+            emitJump(out, this.shouldJump, this.outLabel1);
+            return;
+          }
           switch (op) {
             case Add:
             case Subtract:
             case BitAnd:
             case BitOr:
             case BitXor:
-              return String.format(".L%d:\n\tmovq %s, %%rdx\n\tmovq %s, %%rax\n\t%s %%rdx, %%rax\n\tmovq %%rax, %s",
-                this.inLabel, getStackSlot(leftArg), getStackSlot(rightArg),
-                op.getInstr(), getStackSlot(dest))
-                + getJumpStr(this.shouldJump, this.outLabel1);
+              out.instr("movq", getLoc(rightArg), "%rdx");
+              out.instr("movq", getLoc(leftArg), "%rax");
+              out.instr(op.getInstr(), "%rdx", "%rax");
+              out.instr("movq", "%rax", getLoc(dest));
+              break;
             case Multiply:
-              return String.format(".L%d:\n\tmovq %s, %%rax\n\t%s %s\n\tmovq %%rax, %s",
-                this.inLabel, getStackSlot(leftArg), op.getInstr(), getStackSlot(rightArg),
-                getStackSlot(dest))
-                + getJumpStr(this.shouldJump, this.outLabel1);
+              out.instr("movq", getLoc(leftArg), "%rax");
+              out.instr(op.getInstr(), getLoc(rightArg));
+              out.instr("movq", "%rax", getLoc(dest));
+              break;
             case Divide:
             case Modulus:
-              return String.format(".L%d:\n\tmovq %s, %%rax\n\tcqto\n\t%s %s\n\tmovq %s, %s",
-                this.inLabel, getStackSlot(leftArg), op.getInstr(), getStackSlot(rightArg),
-                op == Ast.Source.Binop.Divide ? "%rax" : "%rdx", getStackSlot(dest))
-                + getJumpStr(this.shouldJump, this.outLabel1);
+              out.instr("movq", getLoc(leftArg), "%rax");
+              out.instr("cqto");
+              out.instr(op.getInstr(), getLoc(rightArg));
+              out.instr("movq", op == Ast.Source.Binop.Divide ? "%rax" : "%rdx",
+                getLoc(dest));
+              break;
             case Lshift:
             case Rshift:
-              return String.format(".L%d:\n\tmovb %s, %%cl\n\tmovq %s, %%rax\n\t%s %%cl, %%rax\n\tmovq %%rax, %s",
-                this.inLabel, getStackSlot(rightArg), getStackSlot(leftArg), op.getInstr(),
-                getStackSlot(dest))
-                + getJumpStr(this.shouldJump, this.outLabel1);
+              out.instr("movq", getLoc(rightArg), "%rcx");
+              out.instr("movq", getLoc(leftArg), "%rax");
+              out.instr(op.getInstr(), "%cl", "%rax");
+              out.instr("movq", "%rax", getLoc(dest));
+              break;
             default: throw new IllegalArgumentException();
           }
+          emitJump(out, this.shouldJump, this.outLabel1);
         }
       }
 
       public static class MoveUnop extends Instr {
-        public final Dest dest, arg;
+        public Dest dest, arg;
         public final Ast.Source.Unop op;
         public MoveUnop(int inLabel, Dest dest, Ast.Source.Unop op, Dest arg,
           int outLabel1) {
@@ -756,20 +1103,38 @@ public abstract class Ast {
           this.outLabel1 = outLabel1;
         }
         @Override
+        public Dest def() {
+          return this.dest;
+        }
+        @Override
+        public Dest[] uses() {
+          return new Dest[] { this.arg };
+        }
+        @Override
+        public void setDef(Dest dest) {
+          this.dest = dest;
+        }
+        @Override
+        public void setUses(Dest[] uses) {
+          this.arg = uses[0];
+        }
+        @Override
         public String toRtl() {
           return String.format("L%d: unop %s, #%dq, [#%dq] --> L%d",
             this.inLabel, this.op.toString(), this.arg.loc, this.dest.loc, this.outLabel1);
         }
         @Override
-        public String toAmd64() {
-          return String.format(".L%d:\n\tmovq %s, %%rax\n\t%s %%rax\n\tmovq %%rax, %s",
-            this.inLabel, getStackSlot(arg), op.getInstr(), getStackSlot(dest))
-            + getJumpStr(this.shouldJump, this.outLabel1);
+        public void emit(Emitter out) {
+          out.label(out.name(this.inLabel));
+          out.instr("movq", getLoc(arg), "%rax");
+          out.instr(op.getInstr(), "%rax");
+          out.instr("movq", "%rax", getLoc(dest));
+          emitJump(out, this.shouldJump, this.outLabel1);
         }
       }
 
       public static class UBranch extends Instr {
-        public final Dest arg;
+        public Dest arg;
         public final Ast.Source.CompOp op;
         public UBranch(int inLabel, Ast.Source.CompOp op, Dest arg,
           int outLabel1, int outLabel2) {
@@ -780,21 +1145,31 @@ public abstract class Ast {
           this.outLabel2 = outLabel2;
         }
         @Override
+        public Dest[] uses() {
+          return new Dest[] { this.arg };
+        }
+        @Override
+        public void setUses(Dest[] uses) {
+          this.arg = uses[0];
+        }
+        @Override
         public String toRtl() {
           return String.format("L%d: ubranch %s, #%dq --> L%d, L%d",
             this.inLabel, op.toString(), arg.loc, this.outLabel1,
             this.outLabel2);
         }
         @Override
-        public String toAmd64() {
-          return String.format(".L%d:\n\tmovq %s, %%rax\n\tcmpq $0, %%rax\n\t%s .L%d",
-            this.inLabel, getStackSlot(this.arg), this.op.getInstr(), this.outLabel1)
-          + getJumpStr(this.shouldJump, this.outLabel2);
+        public void emit(Emitter out) {
+          out.label(out.name(this.inLabel));
+          out.instr("movq", getLoc(this.arg), "%rax");
+          out.instr("cmpq", "$0", "%rax");
+          out.instr(this.op.getInstr(), out.name(this.outLabel1));
+          emitJump(out, this.shouldJump, this.outLabel2);
         }
       }
 
       public static class BBranch extends Instr {
-        public final Dest leftArg, rightArg;
+        public Dest leftArg, rightArg;
         public final Ast.Source.CompOp op;
         public BBranch(int inLabel, Dest leftArg, Ast.Source.CompOp op,
           Dest rightArg, int outLabel1, int outLabel2) {
@@ -806,17 +1181,27 @@ public abstract class Ast {
           this.outLabel2 = outLabel2;
         }
         @Override
+        public Dest[] uses() {
+          return new Dest[] { this.leftArg, this.rightArg };
+        }
+        @Override
+        public void setUses(Dest[] uses) {
+          this.leftArg = uses[0];
+          this.rightArg = uses[1];
+        }
+        @Override
         public String toRtl() {
           return String.format("L%d: bbranch %s, #%dq, #%dq --> L%d, L%d",
             this.inLabel, op.toString(), leftArg.loc, rightArg.loc, this.outLabel1,
             this.outLabel2);
         }
         @Override
-        public String toAmd64() {
-          return String.format(".L%d:\n\tmovq %s, %%rax\n\tcmpq %%rax, %s\n\t%s .L%d",
-            this.inLabel, getStackSlot(this.rightArg), getStackSlot(this.leftArg),
-            this.op.getInstr(), this.outLabel1)
-          + getJumpStr(this.shouldJump, this.outLabel2);
+        public void emit(Emitter out) {
+          out.label(out.name(this.inLabel));
+          out.instr("movq", getLoc(this.rightArg), "%rax");
+          out.instr("cmpq", "%rax", getLoc(this.leftArg));
+          out.instr(this.op.getInstr(), out.name(this.outLabel1));
+          emitJump(out, this.shouldJump, this.outLabel2);
         }
       }
 
@@ -830,34 +1215,92 @@ public abstract class Ast {
           return String.format("L%d: goto --> L%d", this.inLabel, this.outLabel1);
         }
         @Override
-        public String toAmd64() {
-          return String.format(".L%d:", this.inLabel)
-          + getJumpStr(this.shouldJump, this.outLabel1);
+        public void emit(Emitter out) {
+          out.label(out.name(this.inLabel));
+          emitJump(out, this.shouldJump, this.outLabel1);
         }
       }
 
       public static class Print extends Instr {
-        public final Dest dest;
+        public Dest dest;
         public Print(int inLabel, Dest dest, int outLabel1) {
           this.inLabel = inLabel;
           this.dest = dest;
           this.outLabel1 = outLabel1;
         }
         @Override
+        public Dest[] uses() {
+          return new Dest[] { this.dest };
+        }
+        @Override
+        public void setUses(Dest[] uses) {
+          this.dest = uses[0];
+        }
+        @Override
         public String toRtl() {
           return String.format("L%d: call bx0_print(#%dq), ## --> L%d",
             this.inLabel, this.dest.loc, this.outLabel1);
         }
         @Override
-        public String toAmd64() {
-          String jumpStr = getJumpStr(shouldJump, outLabel1);
-          return String.format(".L%d:\n\tmovq %s, %%rdi\n\tcallq bx0_print",
-            this.inLabel, getStackSlot(dest))
-            + getJumpStr(this.shouldJump, this.outLabel1);
+        public void emit(Emitter out) {
+          out.label(out.name(this.inLabel));
+          out.instr("movq", getLoc(dest), "%rdi");
+          out.instr("callq", "bx0_print");
+          emitJump(out, this.shouldJump, this.outLabel1);
+        }
+      }
+
+      /** SSA phi node: takes args[k] when entered from the instruction
+          labelled predLabels[k]. Only exists between Ssa.construct and
+          Ssa.destruct, so it has no assembly form. */
+      public static class Phi extends Instr {
+        public Dest dest;
+        public final Dest[] args;
+        public final int[] predLabels;
+        public Phi(int inLabel, Dest dest, Dest[] args, int[] predLabels,
+          int outLabel1) {
+          this.inLabel = inLabel;
+          this.dest = dest;
+          this.args = args;
+          this.predLabels = predLabels;
+          this.outLabel1 = outLabel1;
+        }
+        @Override
+        public Dest def() {
+          return this.dest;
+        }
+        @Override
+        public Dest[] uses() {
+          return this.args.clone();
+        }
+        @Override
+        public void setDef(Dest dest) {
+          this.dest = dest;
+        }
+        @Override
+        public void setUses(Dest[] uses) {
+          System.arraycopy(uses, 0, this.args, 0, this.args.length);
+        }
+        @Override
+        public String toRtl() {
+          StringBuilder argStr = new StringBuilder();
+          for (int k = 0; k < this.args.length; k++) {
+            argStr.append(k == 0 ? "" : ", ").append('#').append(this.args[k].loc)
+              .append("q (L").append(this.predLabels[k]).append(')');
+          }
+          return String.format("L%d: phi %s, [#%dq] --> L%d",
+            this.inLabel, argStr, this.dest.loc, this.outLabel1);
+        }
+        @Override
+        public void emit(Emitter out) {
+          throw new IllegalStateException(toRtl());
         }
       }
 
       public static class Return extends Instr {
+        // callee-saved registers to restore, saved from stack slot saveSlot on
+        public List<String> savedRegs = new ArrayList<>();
+        public int saveSlot = 0;
         public Return(int inLabel) {
           this.inLabel = inLabel;
         }
@@ -867,9 +1310,17 @@ public abstract class Ast {
             this.inLabel, this.inLabel + 1, this.inLabel + 1);
         }
         @Override
-        public String toAmd64() {
-          return String.format(".L%d:\n\tmovq %%rbp, %%rsp\n\tpopq %%rbp\n\tmovq $0, %%rax\n\tretq",
-            this.inLabel);
+        public void emit(Emitter out) {
+          out.label(out.name(this.inLabel));
+          // bx0rt.c buffers what is printed
+          out.instr("callq", "bx0_flush");
+          for (int i = 0; i < this.savedRegs.size(); i++) {
+            out.instr("movq", getStackSlot(this.saveSlot + i), this.savedRegs.get(i));
+          }
+          out.instr("movq", "%rbp", "%rsp");
+          out.instr("popq", "%rbp");
+          out.instr("movq", "$0", "%rax");
+          out.instr("retq");
         }
       }
 
@@ -885,59 +1336,253 @@ public abstract class Ast {
           return String.format("; %s", this.comment);
         }
         @Override
-        public String toAmd64() {
-          return String.format("# %s", this.comment);
+        public void emit(Emitter out) {
+          out.comment(this.comment);
         }
       }
     } // Instr
 
+    /** The instructions of a program packed into parallel int columns, so
+        that analyses which walk the whole program many times neither chase
+        pointers nor allocate. It is a snapshot: passes that rewrite
+        instructions pack the program again afterwards. */
+    public static class Code {
+      // opcodes, one for each kind of Instr
+      public static final int MOVE_IMM = 0, MOVE_CP = 1, MOVE_BINOP = 2,
+        MOVE_UNOP = 3, UBRANCH = 4, BBRANCH = 5, GOTO = 6, PRINT = 7, PHI = 8,
+        RETURN = 9, COMMENT = 10;
+      /** Whether the opcode only writes its pseudo-register */
+      public static boolean isMove(int opcode) {
+        return opcode <= MOVE_UNOP;
+      }
+      public final int size;
+      public final int[] opcode, inLabel, outLabel1, outLabel2;
+      // the pseudo-register written by each instruction, or -1
+      public final int[] def;
+      // instruction i reads uses[useStart[i]] up to uses[useStart[i + 1]]
+      public final int[] useStart, uses;
+      private final List<Instr> instrs;
+
+      public Code(List<Instr> instrs) {
+        this.instrs = instrs;
+        this.size = instrs.size();
+        this.opcode = new int[this.size];
+        this.inLabel = new int[this.size];
+        this.outLabel1 = new int[this.size];
+        this.outLabel2 = new int[this.size];
+        this.def = new int[this.size];
+        this.useStart = new int[this.size + 1];
+        int[] uses = new int[2 * this.size];
+        int useCount = 0;
+        for (int i = 0; i < this.size; i++) {
+          Instr instr = instrs.get(i);
+          this.opcode[i] = opcodeOf(instr);
+          this.inLabel[i] = instr.inLabel;
+          this.outLabel1[i] = instr.outLabel1;
+          this.outLabel2[i] = instr.outLabel2;
+          this.def[i] = instr.def() == null ? -1 : instr.def().loc;
+          this.useStart[i] = useCount;
+          for (Dest use : instr.uses()) {
+            if (useCount == uses.length) {
+              uses = Arrays.copyOf(uses, 2 * uses.length + 2);
+            }
+            uses[useCount++] = use.loc;
+          }
+        }
+        this.useStart[this.size] = useCount;
+        this.uses = Arrays.copyOf(uses, useCount);
+      }
+
+      private static int opcodeOf(Instr instr) {
+        if (instr instanceof Instr.MoveImm) {
+          return MOVE_IMM;
+        } else if (instr instanceof Instr.MoveCp) {
+          return MOVE_CP;
+        } else if (instr instanceof Instr.MoveBinop) {
+          return MOVE_BINOP;
+        } else if (instr instanceof Instr.MoveUnop) {
+          return MOVE_UNOP;
+        } else if (instr instanceof Instr.UBranch) {
+          return UBRANCH;
+        } else if (instr instanceof Instr.BBranch) {
+          return BBRANCH;
+        } else if (instr instanceof Instr.Goto) {
+          return GOTO;
+        } else if (instr instanceof Instr.Print) {
+          return PRINT;
+        } else if (instr instanceof Instr.Phi) {
+          return PHI;
+        } else if (instr instanceof Instr.Return) {
+          return RETURN;
+        }
+        return COMMENT;
+      }
+
+      /** Update a live set from after instruction i to before it */
+      public void transfer(int i, BitSet live) {
+        if (this.def[i] != -1) {
+          live.clear(this.def[i]);
+        }
+        for (int k = this.useStart[i]; k < this.useStart[i + 1]; k++) {
+          live.set(this.uses[k]);
+        }
+      }
+
+      public Cursor cursor() {
+        return new Cursor();
+      }
+
+      /** Object-style access to one instruction at a time. A pass moves a
+          single cursor over the code instead of creating a view for each
+          instruction. */
+      public class Cursor {
+        private int i;
+        public Cursor at(int i) {
+          this.i = i;
+          return this;
+        }
+        public int index() {
+          return this.i;
+        }
+        public int opcode() {
+          return Code.this.opcode[this.i];
+        }
+        public int inLabel() {
+          return Code.this.inLabel[this.i];
+        }
+        public int outLabel1() {
+          return Code.this.outLabel1[this.i];
+        }
+        public int outLabel2() {
+          return Code.this.outLabel2[this.i];
+        }
+        public int def() {
+          return Code.this.def[this.i];
+        }
+        public int useCount() {
+          return Code.this.useStart[this.i + 1] - Code.this.useStart[this.i];
+        }
+        public int use(int k) {
+          return Code.this.uses[Code.this.useStart[this.i] + k];
+        }
+        /** The instruction itself, for the fields that are not packed */
+        public Instr instr() {
+          return Code.this.instrs.get(this.i);
+        }
+      }
+    }
+
     public static class Prog {
       public final List<Instr> instructions;
-      public Prog(List<Instr> instructions, Map<Integer, Integer> labelChanges) {
+      // number of pseudo-registers, i.e. one more than the largest Dest.loc
+      public int varCount = 0;
+      // stack slots and callee-saved registers used by the generated code
+      public int frameSlots;
+      public List<String> savedRegs = new ArrayList<>();
+      public int entryLabel = 0;
+      // one more than the largest label in use
+      public int labelCount = 0;
+      public Prog(List<Instr> instructions, LabelMap labels) {
         this.instructions = instructions;
-        replaceLabels(labelChanges);
-        removeExtraJumps();
+        for (Instr instr : instructions) {
+          if (instr.def() != null) {
+            this.varCount = Math.max(this.varCount, instr.def().loc + 1);
+          }
+          for (Dest dest : instr.uses()) {
+            this.varCount = Math.max(this.varCount, dest.loc + 1);
+          }
+        }
+        this.frameSlots = this.varCount;
+        replaceLabels(labels);
+        for (Instr instr : instructions) {
+          this.labelCount = Math.max(this.labelCount, Math.max(instr.inLabel,
+            Math.max(instr.outLabel1, instr.outLabel2)) + 1);
+        }
       }
-      public void replaceLabels(Map<Integer, Integer> labelChanges) {
+      public int newLabel() {
+        return this.labelCount++;
+      }
+      public Code pack() {
+        return new Code(this.instructions);
+      }
+      public Dest newDest() {
+        return new Dest(this.varCount++);
+      }
+      public void replaceLabels(LabelMap labels) {
         for (Instr instr : this.instructions) {
-          for (Map.Entry<Integer, Integer> labelChange : labelChanges.entrySet())   {
-            int oldLabel = labelChange.getKey();
-            int newLabel = labelChange.getValue();
-            instr.inLabel = instr.inLabel == oldLabel ? newLabel : instr.inLabel;
-            instr.outLabel1 = instr.outLabel1 == oldLabel ? newLabel : instr.outLabel1;
-            instr.outLabel2 = instr.outLabel2 == oldLabel ? newLabel : instr.outLabel2;
-          }
+          instr.inLabel = labels.find(instr.inLabel);
+          instr.outLabel1 = labels.find(instr.outLabel1);
+          instr.outLabel2 = labels.find(instr.outLabel2);
         }
+        this.entryLabel = labels.find(this.entryLabel);
+      }
+      /** Splice out every Goto by sending the jumps that reach it straight
+          to its target. Only gotos that form a cycle on their own are kept. */
+      public void removeGotos() {
+        removeGotos(instr -> true);
       }
-      public void removeExtraJumps() {
-        this.instructions.sort(new Instr.Sorter());
-        for (int i = 0; i < this.instructions.size() - 1; i++) {
-          Instr instr = this.instructions.get(i);
-          Instr nextInstr = this.instructions.get(i + 1);
-          if (instr.outLabel2 == nextInstr.inLabel
-              || (instr.outLabel2 == -1 && instr.outLabel1 == nextInstr.inLabel)) {
-            this.instructions.get(i).shouldJump = false;
+      /** Splice out the gotos that which accepts, in the same way */
+      public void removeGotos(Predicate<Instr> which) {
+        Map<Integer, Integer> gotoTargets = new HashMap<>();
+        for (Instr instr : this.instructions) {
+          if (instr instanceof Instr.Goto && which.test(instr)) {
+            gotoTargets.put(instr.inLabel, instr.outLabel1);
           }
-          if (!this.instructions.get(i).shouldJump && instr instanceof Instr.Goto) {
-            this.instructions.remove(i);
+        }
+        Map<Integer, Integer> resolved = new HashMap<>();
+        for (int label : gotoTargets.keySet()) {
+          List<Integer> path = new ArrayList<>();
+          Set<Integer> onPath = new HashSet<>();
+          int cur = label;
+          while (gotoTargets.containsKey(cur) && !resolved.containsKey(cur)
+              && onPath.add(cur)) {
+            path.add(cur);
+            cur = gotoTargets.get(cur);
+          }
+          int target = resolved.getOrDefault(cur, cur);
+          for (int l : path) {
+            resolved.put(l, target);
           }
         }
+        this.instructions.removeIf(instr -> instr instanceof Instr.Goto && which.test(instr)
+          && resolved.get(instr.inLabel) != instr.inLabel);
+        for (Instr instr : this.instructions) {
+          instr.outLabel1 = resolved.getOrDefault(instr.outLabel1, instr.outLabel1);
+          instr.outLabel2 = resolved.getOrDefault(instr.outLabel2, instr.outLabel2);
+        }
+        this.entryLabel = resolved.getOrDefault(this.entryLabel, this.entryLabel);
       }
       public String toRtl() {
-        String str = String.format("enter L0\nexit L%d\n----\n",
-          this.instructions.get(instructions.size() - 1).outLabel1 + 1);
+        StringBuilder str = new StringBuilder();
+        str.append("enter L0\nexit L")
+          .append(this.instructions.get(instructions.size() - 1).outLabel1 + 1)
+          .append("\n----\n");
         for (Ast.Target.Instr instr : this.instructions) {
-          str += instr.toRtl() + "\n";
+          str.append(instr.toRtl()).append('\n');
+        }
+        return str.toString();
+      }
+      /** Write the program, one instruction at a time */
+      public void emit(Emitter out) {
+        out.instr(".section", ".text");
+        out.instr(".globl", "main");
+        out.label("main");
+        out.instr("pushq", "%rbp");
+        out.instr("movq", "%rsp", "%rbp");
+        // keep %rsp 16-byte aligned at the bx0_print calls
+        int slots = this.frameSlots + this.savedRegs.size();
+        out.instr("subq", "$" + (slots + slots % 2) * 8, "%rsp");
+        for (int i = 0; i < this.savedRegs.size(); i++) {
+          out.instr("movq", this.savedRegs.get(i),
+            Instr.getStackSlot(this.frameSlots + i));
         }
-        return str;
-      }
-      public String toAmd64(int varCount) {
-        String str = "\t.section .text\n\t.globl main\nmain:\n\tpushq %rbp\n\tmovq %rsp, %rbp\n";
-        str += String.format("\tsubq $%d, %%rsp\n", varCount * 8);
         for (Ast.Target.Instr instr : this.instructions) {
-          str += instr.toAmd64() + "\n";
+          if (instr instanceof Instr.Return) {
+            ((Instr.Return) instr).savedRegs = this.savedRegs;
+            ((Instr.Return) instr).saveSlot = this.frameSlots;
+          }
+          instr.emit(out);
         }
-        return str;
       }
     }
   }
@@ -0,0 +1,199 @@
+// Content-addressed cache of compiled programs
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.*;
+
+/** Compiled programs by the SHA-256 of everything that goes into them:
+    the source, the runtime, the options and the compiler's own classes.
+    An entry is a directory holding the assembly, the executable and the
+    report, which is written under a temporary name and renamed into
+    place, so concurrent builds only ever see whole entries. Entries are
+    touched when used, and the least recently used ones are evicted once
+    the cache grows past its size bound. */
+public class Cache {
+  private static final String OUT = "out", EXE = "out.exe", REPORT = "report";
+  private static String mVersion;
+
+  private final Path mDir;
+  private final long mMaxBytes;
+  public final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+  public Cache(Path dir, long maxBytes) throws IOException {
+    this.mDir = Files.createDirectories(dir);
+    this.mMaxBytes = maxBytes;
+  }
+
+  // a digest of the class files the compiler was loaded from
+  private static synchronized String version() throws IOException {
+    if (mVersion == null) {
+      try {
+        Path code = Paths.get(Cache.class.getProtectionDomain().getCodeSource()
+          .getLocation().toURI());
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        List<Path> classes;
+        try (Stream<Path> files = Files.isDirectory(code) ? Files.list(code)
+            : Stream.of(code)) {
+          classes = files.filter(p -> !Files.isDirectory(p)
+            && (p.toString().endsWith(".class") || p.toString().endsWith(".jar")))
+            .sorted().collect(Collectors.toList());
+        }
+        for (Path p : classes) {
+          update(digest, p.getFileName().toString().getBytes("UTF-8"));
+          update(digest, Files.readAllBytes(p));
+        }
+        mVersion = hex(digest.digest());
+      } catch (URISyntaxException | NoSuchAlgorithmException e) {
+        throw new IOException(e);
+      }
+    }
+    return mVersion;
+  }
+
+  // add a length-prefixed part, so that no two lists of parts look alike
+  private static void update(MessageDigest digest, byte[] part) {
+    digest.update(ByteBuffer.allocate(8).putLong(part.length).array());
+    digest.update(part);
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder str = new StringBuilder();
+    for (byte b : bytes) {
+      str.append(Character.forDigit((b >> 4) & 15, 16)).append(Character.forDigit(b & 15, 16));
+    }
+    return str.toString();
+  }
+
+  /** The key of a source file compiled with the given options, linked
+      against the runtime found next to it */
+  public String key(File source, File runtime, String options) throws IOException {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      update(digest, version().getBytes("UTF-8"));
+      update(digest, options.getBytes("UTF-8"));
+      update(digest, runtime.exists() ? Files.readAllBytes(runtime.toPath()) : new byte[0]);
+      update(digest, Files.readAllBytes(source.toPath()));
+      return hex(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private Path entry(String key) {
+    return this.mDir.resolve(key.substring(0, 2)).resolve(key);
+  }
+
+  /** Copy the outputs of a cached compilation to output and exe and
+      return its report, or return null if there is no such entry */
+  public String fetch(String key, File output, File exe) {
+    Path entry = entry(key);
+    try {
+      String report = new String(Files.readAllBytes(entry.resolve(REPORT)), "UTF-8");
+      // copies rather than links: the outputs are rewritten in place later on
+      Files.copy(entry.resolve(OUT), output.toPath(),
+        StandardCopyOption.REPLACE_EXISTING);
+      Files.copy(entry.resolve(EXE), exe.toPath(),
+        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+      Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+      this.hits.incrementAndGet();
+      return report;
+    } catch (IOException e) {
+      // missing, or evicted while it was being read
+      this.misses.incrementAndGet();
+      return null;
+    }
+  }
+
+  /** Record the outputs of a compilation, then evict entries until the
+      cache fits its bound again */
+  public void store(String key, File output, File exe, String report) throws IOException {
+    Path entry = entry(key);
+    Files.createDirectories(entry.getParent());
+    Path tmp = Files.createTempDirectory(entry.getParent(), "tmp-");
+    try {
+      Files.copy(output.toPath(), tmp.resolve(OUT));
+      Files.copy(exe.toPath(), tmp.resolve(EXE),
+        StandardCopyOption.COPY_ATTRIBUTES);
+      Files.write(tmp.resolve(REPORT), report.getBytes("UTF-8"));
+      try {
+        Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        // fine if another build stored the same entry first
+        if (!Files.isDirectory(entry)) {
+          throw e;
+        }
+      }
+    } finally {
+      delete(tmp);
+    }
+    evict();
+  }
+
+  private static void delete(Path dir) {
+    try (Stream<Path> files = Files.list(dir)) {
+      for (Path p : files.collect(Collectors.toList())) {
+        Files.deleteIfExists(p);
+      }
+      Files.deleteIfExists(dir);
+    } catch (IOException e) {
+      // gone already
+    }
+  }
+
+  private static long size(Path entry) {
+    try (Stream<Path> files = Files.list(entry)) {
+      long size = 0;
+      for (Path p : files.collect(Collectors.toList())) {
+        size += Files.size(p);
+      }
+      return size;
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private static long lastUsed(Path entry) {
+    try {
+      return Files.getLastModifiedTime(entry).toMillis();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  private void evict() throws IOException {
+    List<Path> entries = new ArrayList<>();
+    try (Stream<Path> shards = Files.list(this.mDir)) {
+      for (Path shard : shards.collect(Collectors.toList())) {
+        try (Stream<Path> inShard = Files.list(shard)) {
+          inShard.filter(p -> !p.getFileName().toString().startsWith("tmp-"))
+            .forEach(entries::add);
+        } catch (NotDirectoryException | NoSuchFileException e) {
+          // not an entry
+        }
+      }
+    }
+    Map<Path, Long> used = new HashMap<>();
+    long total = 0;
+    for (Path entry : entries) {
+      used.put(entry, lastUsed(entry));
+      total += size(entry);
+    }
+    if (total <= this.mMaxBytes) {
+      return;
+    }
+    entries.sort(Comparator.comparing(used::get));
+    for (Path entry : entries) {
+      if (total <= this.mMaxBytes) {
+        break;
+      }
+      total -= size(entry);
+      delete(entry);
+    }
+  }
+}
@@ -0,0 +1,304 @@
+// Control-flow graph of an RTL program
+import java.util.*;
+
+public class Cfg {
+  public final List<Ast.Target.Instr> instrs;
+  // the same instructions packed into columns
+  public final Ast.Target.Code code;
+  public final int varCount;
+  // index of the entry instruction, or -1 for an empty program
+  public final int entry;
+  // successors and predecessors of every instruction, by index in instrs
+  public final int[][] succs, preds;
+  // maximal straight-line runs of instructions
+  public final int[][] blocks;
+  public final int[] blockOf;
+  public final int[][] blockSuccs, blockPreds;
+  // live pseudo-registers at the entry and exit of every block
+  public BitSet[] liveIn, liveOut;
+  // immediate dominator and dominator tree children of every block, filled
+  // by computeDominators(); unreachable blocks have idom -1
+  public int[] idom;
+  public int[][] domChildren;
+  // reachable blocks in reverse postorder
+  public int[] rpo;
+
+  // instruction index by in-label, -1 where there is none
+  private final int[] indexOf;
+
+  public Cfg(Ast.Target.Prog prog) {
+    this.instrs = prog.instructions;
+    this.code = prog.pack();
+    this.varCount = prog.varCount;
+    int n = this.code.size;
+    int maxLabel = prog.entryLabel;
+    for (int i = 0; i < n; i++) {
+      maxLabel = Math.max(maxLabel, this.code.inLabel[i]);
+    }
+    this.indexOf = new int[maxLabel + 1];
+    Arrays.fill(this.indexOf, -1);
+    for (int i = 0; i < n; i++) {
+      if (this.code.opcode[i] != Ast.Target.Code.COMMENT && this.code.inLabel[i] >= 0
+          && this.indexOf[this.code.inLabel[i]] == -1) {
+        this.indexOf[this.code.inLabel[i]] = i;
+      }
+    }
+    int entry = indexOf(prog.entryLabel);
+    this.entry = entry != -1 ? entry : n == 0 ? -1 : 0;
+
+    this.succs = new int[n][];
+    int[] predCount = new int[n];
+    for (int i = 0; i < n; i++) {
+      this.succs[i] = successors(i);
+      for (int s : this.succs[i]) {
+        predCount[s]++;
+      }
+    }
+    this.preds = new int[n][];
+    for (int i = 0; i < n; i++) {
+      this.preds[i] = new int[predCount[i]];
+    }
+    for (int i = 0; i < n; i++) {
+      for (int s : this.succs[i]) {
+        this.preds[s][--predCount[s]] = i;
+      }
+    }
+
+    // a block starts wherever control can arrive from more than one place
+    boolean[] leader = new boolean[n];
+    for (int i = 0; i < n; i++) {
+      leader[i] = i == this.entry || this.preds[i].length != 1
+        || this.succs[this.preds[i][0]].length != 1 || this.preds[i][0] == i;
+    }
+    this.blockOf = new int[n];
+    Arrays.fill(this.blockOf, -1);
+    List<int[]> blockList = new ArrayList<>();
+    for (int pass = 0; pass < 2; pass++) {
+      for (int i = 0; i < n; i++) {
+        // the second pass picks up unreachable cycles that have no leader
+        if (this.blockOf[i] != -1 || (pass == 0 && !leader[i])) {
+          continue;
+        }
+        List<Integer> block = new ArrayList<>();
+        int cur = i;
+        do {
+          this.blockOf[cur] = blockList.size();
+          block.add(cur);
+          cur = this.succs[cur].length == 1 ? this.succs[cur][0] : -1;
+        } while (cur != -1 && !leader[cur] && this.blockOf[cur] == -1);
+        int[] arr = new int[block.size()];
+        for (int k = 0; k < arr.length; k++) {
+          arr[k] = block.get(k);
+        }
+        blockList.add(arr);
+      }
+    }
+    this.blocks = blockList.toArray(new int[0][]);
+
+    int nb = this.blocks.length;
+    this.blockSuccs = new int[nb][];
+    this.blockPreds = new int[nb][];
+    for (int b = 0; b < nb; b++) {
+      int[] last = this.succs[this.blocks[b][this.blocks[b].length - 1]];
+      this.blockSuccs[b] = new int[last.length];
+      for (int k = 0; k < last.length; k++) {
+        this.blockSuccs[b][k] = this.blockOf[last[k]];
+      }
+      int[] first = this.preds[this.blocks[b][0]];
+      this.blockPreds[b] = new int[first.length];
+      for (int k = 0; k < first.length; k++) {
+        this.blockPreds[b][k] = this.blockOf[first[k]];
+      }
+    }
+  }
+
+  /** Index of the instruction with the given in-label, or -1 */
+  public int indexOf(int label) {
+    return label >= 0 && label < this.indexOf.length ? this.indexOf[label] : -1;
+  }
+
+  private int[] successors(int i) {
+    int opcode = this.code.opcode[i];
+    if (opcode == Ast.Target.Code.RETURN || opcode == Ast.Target.Code.COMMENT) {
+      return new int[0];
+    }
+    int s1 = indexOf(this.code.outLabel1[i]);
+    int s2 = indexOf(this.code.outLabel2[i]);
+    if (s1 == -1 || s1 == s2) {
+      return s2 == -1 ? new int[0] : new int[] { s2 };
+    }
+    return s2 == -1 ? new int[] { s1 } : new int[] { s1, s2 };
+  }
+
+  /** Backward liveness analysis of the pseudo-registers over the blocks */
+  public void computeLiveness() {
+    int nb = this.blocks.length;
+    BitSet[] gen = new BitSet[nb];
+    BitSet[] kill = new BitSet[nb];
+    this.liveIn = new BitSet[nb];
+    this.liveOut = new BitSet[nb];
+    for (int b = 0; b < nb; b++) {
+      gen[b] = new BitSet(this.varCount);
+      kill[b] = new BitSet(this.varCount);
+      for (int k = this.blocks[b].length - 1; k >= 0; k--) {
+        int i = this.blocks[b][k];
+        if (this.code.def[i] != -1) {
+          kill[b].set(this.code.def[i]);
+        }
+        this.code.transfer(i, gen[b]);
+      }
+      this.liveIn[b] = (BitSet) gen[b].clone();
+      this.liveOut[b] = new BitSet(this.varCount);
+    }
+    // visit blocks in reverse so that most information flows in one sweep
+    Deque<Integer> worklist = new ArrayDeque<>();
+    boolean[] queued = new boolean[nb];
+    for (int b = nb - 1; b >= 0; b--) {
+      worklist.add(b);
+      queued[b] = true;
+    }
+    while (!worklist.isEmpty()) {
+      int b = worklist.poll();
+      queued[b] = false;
+      for (int s : this.blockSuccs[b]) {
+        this.liveOut[b].or(this.liveIn[s]);
+      }
+      BitSet in = (BitSet) this.liveOut[b].clone();
+      in.andNot(kill[b]);
+      in.or(gen[b]);
+      if (!in.equals(this.liveIn[b])) {
+        this.liveIn[b] = in;
+        for (int p : this.blockPreds[b]) {
+          if (!queued[p]) {
+            worklist.add(p);
+            queued[p] = true;
+          }
+        }
+      }
+    }
+  }
+
+  /** Cooper, Harvey and Kennedy's iterative dominator algorithm */
+  public void computeDominators() {
+    int nb = this.blocks.length;
+    this.idom = new int[nb];
+    Arrays.fill(this.idom, -1);
+    if (this.entry == -1) {
+      this.rpo = new int[0];
+      this.domChildren = new int[0][];
+      return;
+    }
+    // iterative depth-first search for the postorder
+    int[] order = new int[nb];
+    int count = 0;
+    boolean[] visited = new boolean[nb];
+    Deque<int[]> stack = new ArrayDeque<>();
+    int root = this.blockOf[this.entry];
+    stack.push(new int[] { root, 0 });
+    visited[root] = true;
+    while (!stack.isEmpty()) {
+      int[] top = stack.peek();
+      if (top[1] < this.blockSuccs[top[0]].length) {
+        int s = this.blockSuccs[top[0]][top[1]++];
+        if (!visited[s]) {
+          visited[s] = true;
+          stack.push(new int[] { s, 0 });
+        }
+      } else {
+        order[count++] = stack.pop()[0];
+      }
+    }
+    this.rpo = new int[count];
+    int[] rpoIndex = new int[nb];
+    for (int k = 0; k < count; k++) {
+      this.rpo[k] = order[count - 1 - k];
+      rpoIndex[this.rpo[k]] = k;
+    }
+
+    this.idom[root] = root;
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int k = 1; k < count; k++) {
+        int b = this.rpo[k];
+        int newIdom = -1;
+        for (int p : this.blockPreds[b]) {
+          if (this.idom[p] == -1) {
+            continue;
+          }
+          if (newIdom == -1) {
+            newIdom = p;
+          } else {
+            int f1 = p, f2 = newIdom;
+            while (f1 != f2) {
+              while (rpoIndex[f1] > rpoIndex[f2]) {
+                f1 = this.idom[f1];
+              }
+              while (rpoIndex[f2] > rpoIndex[f1]) {
+                f2 = this.idom[f2];
+              }
+            }
+            newIdom = f1;
+          }
+        }
+        if (this.idom[b] != newIdom) {
+          this.idom[b] = newIdom;
+          changed = true;
+        }
+      }
+    }
+
+    int[] childCount = new int[nb];
+    for (int b : this.rpo) {
+      if (b != root) {
+        childCount[this.idom[b]]++;
+      }
+    }
+    this.domChildren = new int[nb][];
+    for (int b = 0; b < nb; b++) {
+      this.domChildren[b] = new int[childCount[b]];
+    }
+    for (int b : this.rpo) {
+      if (b != root) {
+        this.domChildren[this.idom[b]][--childCount[this.idom[b]]] = b;
+      }
+    }
+  }
+
+  /** The blocks of the natural loops, by header, from the back edges of
+      the dominator tree that computeDominators() found */
+  public Map<Integer, BitSet> findLoops() {
+    Map<Integer, BitSet> loops = new HashMap<>();
+    for (int t : this.rpo) {
+      for (int h : this.blockSuccs[t]) {
+        if (!dominates(h, t)) {
+          continue;
+        }
+        BitSet body = loops.computeIfAbsent(h, k -> new BitSet());
+        body.set(h);
+        Deque<Integer> worklist = new ArrayDeque<>();
+        if (!body.get(t)) {
+          body.set(t);
+          worklist.add(t);
+        }
+        while (!worklist.isEmpty()) {
+          for (int p : this.blockPreds[worklist.poll()]) {
+            if (this.idom[p] != -1 && !body.get(p)) {
+              body.set(p);
+              worklist.add(p);
+            }
+          }
+        }
+      }
+    }
+    return loops;
+  }
+
+  /** Whether block a dominates block b, both being reachable */
+  public boolean dominates(int a, int b) {
+    while (b != a && this.idom[b] != b) {
+      b = this.idom[b];
+    }
+    return b == a;
+  }
+}
@@ -0,0 +1,800 @@
+// Compilation of one BX0 source file to amd64 assembly
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.IntUnaryOperator;
+
+/** The state of compiling one source file. A Compiler compiles one file
+    at a time and starts afresh for each, keeping only its lexer and parser,
+    so files can be compiled side by side on Compilers of their own. */
+public class Compiler {
+  /** The command line settings, shared by every file */
+  public static class Options {
+    public int optLevel = 1;
+    public List<String> peepholeRules = new ArrayList<>(Peephole.RULES.keySet());
+    public boolean peepholeStats = false;
+    // write an object file with Elf instead of assembly for gcc
+    public boolean integratedAs = false;
+    // run the program with Interp after every pass and compare the outputs
+    public boolean check = false;
+    // read sources with Pratt instead of the ANTLR parser
+    public boolean pratt = false;
+    // compile as -stream does, copying the statements compiled before from
+    // Fragments
+    public boolean incremental = false;
+    // write assembly a statement at a time as the file is read
+    public boolean stream = false;
+    /** Everything here that changes the output, for keying the cache */
+    public String key() {
+      return String.format(
+        "O%d peephole=%s stats=%b as=%b check=%b pratt=%b incremental=%b stream=%b",
+        this.optLevel, String.join(",", this.peepholeRules), this.peepholeStats,
+        this.integratedAs, this.check, this.pratt, this.incremental, this.stream);
+    }
+    /** The extension of the files the compiler writes */
+    public String outputExtension() {
+      return this.integratedAs ? ".o" : ".s";
+    }
+  }
+
+  // made on first use, so that ANTLR is not loaded when Pratt parses
+  private BX0Lexer mLexer;
+  private BX0Parser mParser;
+  private Options mOptions;
+  private int mVarCounter;
+  private int mLabelCounter;
+  private HashMap<String, Ast.Target.Dest> mVars;
+  private Ast.Target.LabelMap mLabels;
+  private List<Ast.Target.Instr> mInstrs;
+  // what the compiler reports, printed by the caller once the file is done
+  private StringBuilder mLog;
+  // with -check, how the program ran before the first pass
+  private Interp.Outcome mReference;
+  private String mFile;
+  // with -stream and -incremental: the slot of every variable, and the
+  // most slots any statement needed
+  private Map<String, Ast.Target.Dest> mSlots;
+  private int mFrameSlots;
+  // with -incremental: how many statements were copied from Fragments, and
+  // how many were compiled
+  private int mReused;
+  private int mCompiled;
+
+  // how long -check lets a program run; longer runs are compared as far as
+  // both of them got
+  private static final long CHECK_STEPS = 100_000_000L;
+  // how many statements may wait between two stages of -stream
+  private static final int STREAM_QUEUE = 256;
+
+  static File resolve(File dir, String path) {
+    File file = new File(path);
+    return file.isAbsolute() ? file : new File(dir, path);
+  }
+
+  /** Compile bxFile into outFile, both relative to dir, returning the
+      report. outFile is assembly, or an object with options.integratedAs. */
+  public String compile(Options options, File dir, String bxFile, String outFile)
+    throws Exception {
+    if (options.incremental && !options.integratedAs) {
+      return incremental(options, dir, bxFile, outFile);
+    }
+    if (options.stream && !options.integratedAs) {
+      return stream(options, dir, bxFile, outFile);
+    }
+    Ast.Target.Prog targetProg = lower(options, dir, bxFile);
+    if (mOptions.optLevel >= 2) {
+      int spills = RegAlloc.Coloring.allocate(targetProg);
+      mLog.append(String.format("%s: %d spilled pseudo-registers%n", bxFile, spills));
+    } else {
+      RegAlloc.LinearScan.allocate(targetProg);
+    }
+    check("register allocation", targetProg, true);
+    if (mOptions.integratedAs) {
+      Elf obj = new Elf();
+      emit(targetProg, bxFile, obj);
+      try (OutputStream out = new FileOutputStream(resolve(dir, outFile))) {
+        obj.write(out);
+      }
+    } else {
+      try (Writer out = new BufferedWriter(new FileWriter(resolve(dir, outFile)), 1 << 16)) {
+        emit(targetProg, bxFile, new Emitter.Text(out));
+      }
+    }
+    return mLog.toString();
+  }
+
+  /** Compile bxFile and run it in process, with Jit or else with Interp,
+      returning the report followed by what the program printed */
+  public String run(Options options, File dir, String bxFile, boolean jit)
+    throws Exception {
+    Ast.Target.Prog targetProg = lower(options, dir, bxFile);
+    StringBuilder output = new StringBuilder();
+    if (jit) {
+      Jit.run(targetProg, x -> output.append(x).append('\n'));
+    } else {
+      new Interp(targetProg, false).run(x -> output.append(x).append('\n'), Long.MAX_VALUE);
+    }
+    return mLog.append(output).toString();
+  }
+
+  // with -check, fail if the program no longer prints what it did before
+  private void check(String pass, Ast.Target.Prog targetProg, boolean allocated) {
+    if (!mOptions.check) {
+      return;
+    }
+    Interp.Outcome outcome = new Interp(targetProg, allocated).run(CHECK_STEPS);
+    if (mReference == null) {
+      mReference = outcome;
+    } else if (!mReference.agrees(outcome)) {
+      throw new Interp.Mismatch(String.format(
+        "%s: %s changed what the program prints\n--- before\n%s--- after\n%s",
+        mFile, pass, mReference, outcome));
+    }
+  }
+
+  private Ast.Source.Prog readAntlr(String file) throws Exception {
+    if (mParser == null) {
+      mLexer = new BX0Lexer(null);
+      mParser = new BX0Parser(null);
+    }
+    return Ast.Source.SourceCreator.readProgram(file, mLexer, mParser);
+  }
+
+  /** A bounded queue between two stages of -stream, which also carries
+      the end of the input or the failure of the stage feeding it */
+  private static class Pipe<T> {
+    private static final Object END = new Object();
+    private final BlockingQueue<Object> mQueue = new ArrayBlockingQueue<>(STREAM_QUEUE);
+    private static class Failure {
+      final Throwable cause;
+      Failure(Throwable cause) {
+        this.cause = cause;
+      }
+    }
+    void put(T item) throws InterruptedException {
+      mQueue.put(item);
+    }
+    void close() throws InterruptedException {
+      mQueue.put(END);
+    }
+    void fail(Throwable e) throws InterruptedException {
+      mQueue.put(new Failure(e));
+    }
+    /** The next item, or null once the input has ended */
+    @SuppressWarnings("unchecked")
+    T take() throws Exception {
+      Object item = mQueue.take();
+      if (item instanceof Failure) {
+        Throwable cause = ((Failure) item).cause;
+        if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw (Exception) cause;
+      }
+      return item == END ? null : (T) item;
+    }
+  }
+
+  private interface Stage {
+    void run() throws Exception;
+  }
+
+  // run a stage on a thread of its own, passing on how it ended to out
+  private static Thread start(String name, Pipe<?> out, Stage stage) {
+    Thread thread = new Thread(() -> {
+      try {
+        stage.run();
+        out.close();
+      } catch (InterruptedException e) {
+        // the pipeline was torn down
+      } catch (Exception | Error e) {
+        try {
+          out.fail(e);
+        } catch (InterruptedException ignored) {
+        }
+      }
+    }, name);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  /** A top-level statement lowered on its own, numbering its labels from
+      0 at its entry */
+  private static class Region {
+    final List<Ast.Target.Instr> instrs;
+    final Ast.Target.LabelMap labels;
+    final int exit, labelCount;
+    Region(List<Ast.Target.Instr> instrs, Ast.Target.LabelMap labels, int exit,
+        int labelCount) {
+      this.instrs = instrs;
+      this.labels = labels;
+      this.exit = exit;
+      this.labelCount = labelCount;
+    }
+  }
+
+  // compile bxFile into assembly a statement at a time: a thread parses
+  // statements, one type checks, folds and lowers them, one resolves their
+  // labels, and this one writes them out, with bounded queues between. A
+  // statement only needs its own labels and the variables, so memory does
+  // not grow with the file; in exchange no pass sees the whole program and
+  // every variable and temporary lives in a stack slot.
+  private String stream(Options options, File dir, String bxFile, String outFile)
+    throws Exception {
+    mOptions = options;
+    mLog = new StringBuilder();
+    mFile = bxFile;
+    mVars = new HashMap<>();
+    mSlots = new HashMap<>();
+    Pratt parser = Pratt.open(resolve(dir, bxFile).getPath());
+    Map<String, Ast.Source.VarDecl> vars = parser.declarations();
+    for (String var : vars.keySet()) {
+      mSlots.put(var, new Ast.Target.Dest(mSlots.size()));
+    }
+    mFrameSlots = mSlots.size();
+
+    Pipe<Ast.Source.Stmt> stmts = new Pipe<>();
+    Pipe<Region> regions = new Pipe<>();
+    Pipe<List<Ast.Target.Instr>> resolved = new Pipe<>();
+    List<Thread> stages = new ArrayList<>();
+    stages.add(start("bx0 parse", stmts, () -> {
+      for (Map.Entry<String, Ast.Source.VarDecl> var : vars.entrySet()) {
+        if (var.getValue().initialValue != null) {
+          stmts.put(new Ast.Source.Stmt.Move(new Ast.Source.Dest(var.getKey()),
+            var.getValue().initialValue));
+        }
+      }
+      for (Ast.Source.Stmt stmt = parser.nextStatement(); stmt != null;
+          stmt = parser.nextStatement()) {
+        stmts.put(stmt);
+      }
+    }));
+    stages.add(start("bx0 lower", regions, () -> {
+      Map<String, Ast.Source.Expr> constants = new HashMap<>();
+      for (Ast.Source.Stmt stmt = stmts.take(); stmt != null; stmt = stmts.take()) {
+        stmt.typeCheck(vars);
+        Ast.Source.Stmt folded = Opt.ConstProp.run(stmt, constants);
+        if (folded == null) {
+          continue;
+        }
+        mInstrs = new ArrayList<>();
+        mLabels = new Ast.Target.LabelMap();
+        mLabelCounter = 0;
+        mVarCounter = mSlots.size();
+        int exit = RTLs(folded, 0);
+        mFrameSlots = Math.max(mFrameSlots, mVarCounter);
+        regions.put(new Region(mInstrs, mLabels, exit, mLabelCounter + 1));
+      }
+    }));
+    stages.add(start("bx0 resolve", resolved, () -> {
+      // labels are final once a statement is lowered: the class of its
+      // entry is named by the label the statement before it left from, and
+      // the rest get numbers of their own
+      int entry = 0, next = 1;
+      Ast.Target.Instr pending = null;
+      for (Region region = regions.take(); region != null; region = regions.take()) {
+        Ast.Target.LabelMap labels = region.labels;
+        int base = next, from = entry, entryRoot = labels.find(0);
+        next += region.labelCount;
+        IntUnaryOperator global = l -> {
+          int root = labels.find(l);
+          return root == entryRoot ? from : base + root;
+        };
+        List<Ast.Target.Instr> instrs = new ArrayList<>(region.instrs.size() + 1);
+        for (Ast.Target.Instr instr : region.instrs) {
+          instr.inLabel = global.applyAsInt(instr.inLabel);
+          instr.outLabel1 = global.applyAsInt(instr.outLabel1);
+          instr.outLabel2 = instr.outLabel2 == -1 ? -1 : global.applyAsInt(instr.outLabel2);
+          // as in Opt.Layout, fall through to the next instruction
+          if (pending != null) {
+            pending.shouldJump = fallsTo(pending) != instr.inLabel;
+            instrs.add(pending);
+          }
+          pending = instr;
+        }
+        entry = global.applyAsInt(region.exit);
+        resolved.put(instrs);
+      }
+      Ast.Target.Instr ret = new Ast.Target.Instr.Return(entry);
+      List<Ast.Target.Instr> instrs = new ArrayList<>();
+      if (pending != null) {
+        pending.shouldJump = fallsTo(pending) != ret.inLabel;
+        instrs.add(pending);
+      }
+      instrs.add(ret);
+      resolved.put(instrs);
+    }));
+
+    File out = resolve(dir, outFile);
+    try (Writer writer = new BufferedWriter(new FileWriter(out), 1 << 16)) {
+      Emitter asm = new Emitter.Text(writer);
+      prologue(asm, bxFile);
+      for (List<Ast.Target.Instr> instrs = resolved.take(); instrs != null;
+          instrs = resolved.take()) {
+        for (Ast.Target.Instr instr : instrs) {
+          instr.emit(asm);
+        }
+      }
+      frame(asm);
+    } catch (Exception | Error e) {
+      out.delete();
+      throw e;
+    } finally {
+      for (Thread stage : stages) {
+        stage.interrupt();
+      }
+    }
+    return mLog.toString();
+  }
+
+  private static int fallsTo(Ast.Target.Instr instr) {
+    return instr.outLabel2 != -1 ? instr.outLabel2 : instr.outLabel1;
+  }
+
+  // the start of main for -stream and -incremental
+  private static void prologue(Emitter asm, String bxFile) {
+    asm.instr(".file", "\"" + bxFile + "\"");
+    asm.instr(".section", ".text");
+    asm.instr(".globl", "main");
+    asm.label("main");
+    asm.instr("pushq", "%rbp");
+    asm.instr("movq", "%rsp", "%rbp");
+    // the frame size is only known at the end, so the assembler fills it in
+    asm.instr("subq", "$.Lframe", "%rsp");
+  }
+
+  private void frame(Emitter asm) {
+    // keep %rsp 16-byte aligned at the bx0_print calls
+    asm.instr(".set", ".Lframe", Integer.toString((mFrameSlots + mFrameSlots % 2) * 8));
+  }
+
+  // compile bxFile as -stream does, copying from Fragments each top-level
+  // statement that was compiled before in the same surroundings. The
+  // statements are found by matching braces, looked up by the digest of
+  // their bytes, and only parsed on a miss, and each is written out on its
+  // own, entered at its top and left by falling through from its exit
+  // label, so after an edit only the edited statements are compiled and the
+  // rest is copied. A thread does that and this one writes out the text.
+  private String incremental(Options options, File dir, String bxFile, String outFile)
+    throws Exception {
+    mOptions = options;
+    mLog = new StringBuilder();
+    mFile = bxFile;
+    mVars = new HashMap<>();
+    mSlots = new HashMap<>();
+    mReused = 0;
+    mCompiled = 0;
+    Pratt parser = Pratt.open(resolve(dir, bxFile).getPath());
+    Map<String, Ast.Source.VarDecl> vars = parser.declarations();
+    for (String var : vars.keySet()) {
+      mSlots.put(var, new Ast.Target.Dest(mSlots.size()));
+    }
+    mFrameSlots = mSlots.size();
+
+    Pipe<String> texts = new Pipe<>();
+    Thread stage = start("bx0 compile", texts, () -> {
+      Map<String, Ast.Source.Expr> constants = new HashMap<>();
+      int inits = 0;
+      for (Map.Entry<String, Ast.Source.VarDecl> var : vars.entrySet()) {
+        if (var.getValue().initialValue != null) {
+          Ast.Source.Stmt stmt = new Ast.Source.Stmt.Move(new Ast.Source.Dest(var.getKey()),
+            var.getValue().initialValue);
+          stmt.typeCheck(vars);
+          Ast.Source.Stmt folded = Opt.ConstProp.run(stmt, constants);
+          if (folded != null) {
+            texts.put(assemble(folded, ".Linit" + inits++ + "_"));
+          }
+        }
+      }
+      // how many statements came before in each surroundings
+      Map<String, Integer> seen = new HashMap<>();
+      for (Pratt.Extent extent = parser.skip(); extent != null; extent = parser.skip()) {
+        String source = Fragments.source(parser, extent);
+        Fragments.Statement known = Fragments.get(source);
+        String surroundings = known == null ? null
+          : Fragments.surroundings(known.names, vars, mSlots, mVars.keySet(), constants);
+        if (surroundings != null) {
+          surroundings += "#" + seen.merge(source + surroundings, 1, Integer::sum);
+          Fragments.Fragment fragment = known.get(surroundings);
+          if (fragment != null) {
+            mReused++;
+            for (int k = 0; k < known.names.length; k++) {
+              String name = known.names[k];
+              if (fragment.constants[k] == null) {
+                constants.remove(name);
+              } else {
+                constants.put(name, fragment.constants[k]);
+              }
+              if (fragment.assigned[k]) {
+                mVars.put(name, mSlots.get(name));
+              }
+            }
+            mFrameSlots = Math.max(mFrameSlots, fragment.slots);
+            texts.put(fragment.text);
+            continue;
+          }
+        }
+        mCompiled++;
+        Ast.Source.Stmt stmt = parser.read(extent);
+        stmt.typeCheck(vars);
+        String[] names = Fragments.names(stmt);
+        if (surroundings == null) {
+          surroundings = Fragments.surroundings(names, vars, mSlots, mVars.keySet(), constants);
+          surroundings += "#" + seen.merge(source + surroundings, 1, Integer::sum);
+        }
+        Ast.Source.Stmt folded = Opt.ConstProp.run(stmt, constants);
+        String text = folded == null ? ""
+          : assemble(folded, Fragments.labels(source, surroundings));
+        texts.put(text);
+        if (parser.ends(extent)) {
+          Ast.Source.Expr[] after = new Ast.Source.Expr[names.length];
+          boolean[] assigned = new boolean[names.length];
+          for (int k = 0; k < names.length; k++) {
+            after[k] = constants.get(names[k]);
+            assigned[k] = mVars.containsKey(names[k]);
+          }
+          Fragments.put(source, names, surroundings,
+            new Fragments.Fragment(text, folded == null ? 0 : mVarCounter, after, assigned));
+        }
+      }
+    });
+
+    File out = resolve(dir, outFile);
+    try (Writer writer = new BufferedWriter(new FileWriter(out), 1 << 16)) {
+      Emitter asm = new Emitter.Text(writer);
+      prologue(asm, bxFile);
+      for (String text = texts.take(); text != null; text = texts.take()) {
+        writer.write(text);
+      }
+      // every statement falls through into the next, and the last into this
+      new Ast.Target.Instr.Return(0).emit(asm);
+      frame(asm);
+    } catch (Exception | Error e) {
+      out.delete();
+      throw e;
+    } finally {
+      stage.interrupt();
+    }
+    mLog.append(String.format("%s: %d statements reused, %d compiled%n", bxFile, mReused,
+      mCompiled));
+    return mLog.toString();
+  }
+
+  // lower a folded top-level statement for -incremental into text on its
+  // own, naming its labels with prefix and ending at its exit label
+  private String assemble(Ast.Source.Stmt stmt, String prefix) {
+    mInstrs = new ArrayList<>();
+    mLabels = new Ast.Target.LabelMap();
+    mLabelCounter = 0;
+    mVarCounter = mSlots.size();
+    int exit = mLabels.find(RTLs(stmt, 0)), entry = mLabels.find(0);
+    mFrameSlots = Math.max(mFrameSlots, mVarCounter);
+    for (Ast.Target.Instr instr : mInstrs) {
+      instr.inLabel = mLabels.find(instr.inLabel);
+      instr.outLabel1 = mLabels.find(instr.outLabel1);
+      instr.outLabel2 = instr.outLabel2 == -1 ? -1 : mLabels.find(instr.outLabel2);
+    }
+    StringWriter text = new StringWriter();
+    Emitter asm = new Emitter.Text(text) {
+      @Override
+      public String name(int label) {
+        return prefix + label;
+      }
+    };
+    if (!mInstrs.isEmpty() && mInstrs.get(0).inLabel != entry) {
+      asm.instr("jmp", asm.name(entry));
+    }
+    for (int k = 0; k < mInstrs.size(); k++) {
+      Ast.Target.Instr instr = mInstrs.get(k);
+      instr.shouldJump = fallsTo(instr)
+        != (k + 1 < mInstrs.size() ? mInstrs.get(k + 1).inLabel : exit);
+      instr.emit(asm);
+    }
+    asm.label(asm.name(exit));
+    return text.toString();
+  }
+
+  // read bxFile and take it down to laid out RTL over pseudo-registers
+  private Ast.Target.Prog lower(Options options, File dir, String bxFile) throws Exception {
+    mOptions = options;
+    mVarCounter = 0;
+    mLabelCounter = 0;
+    mVars = new HashMap<>();
+    mLabels = new Ast.Target.LabelMap();
+    mInstrs = new ArrayList<>();
+    mLog = new StringBuilder();
+    mReference = null;
+    mFile = bxFile;
+    mSlots = null;
+    String path = resolve(dir, bxFile).getPath();
+    Ast.Source.Prog sourceProg = mOptions.pratt ? Pratt.readProgram(path) : readAntlr(path);
+    Opt.ConstProp.run(sourceProg);
+    // System.out.println(sourceProg.toString());
+    int Lend = RTLstmts(sourceProg.stmts, 0);
+    mInstrs.add(new Ast.Target.Instr.Return(Lend));
+    mLabels.union(Lend, ++mLabelCounter);
+    Ast.Target.Prog targetProg = new Ast.Target.Prog(mInstrs, mLabels);
+    check("lowering", targetProg, false);
+    if (mOptions.optLevel >= 2) {
+      Ssa.construct(targetProg);
+      check("SSA construction", targetProg, false);
+      Ssa.optimise(targetProg);
+      check("SSA optimisation", targetProg, false);
+      Opt.Licm.run(targetProg);
+      check("LICM", targetProg, false);
+      Opt.Induction.run(targetProg);
+      check("strength reduction", targetProg, false);
+      Opt.Gvn.run(targetProg);
+      check("GVN", targetProg, false);
+      Ssa.optimise(targetProg);
+      check("SSA optimisation", targetProg, false);
+      Ssa.destruct(targetProg);
+      check("SSA destruction", targetProg, false);
+    } else {
+      Opt.Gvn.run(targetProg);
+      check("GVN", targetProg, false);
+    }
+    Opt.Immediates.run(targetProg);
+    check("immediates", targetProg, false);
+    Opt.DeadCode.run(targetProg);
+    check("dead code elimination", targetProg, false);
+    Opt.Layout.run(targetProg);
+    check("layout", targetProg, false);
+    // System.out.println(targetProg.toRtl());
+    return targetProg;
+  }
+
+  private void emit(Ast.Target.Prog targetProg, String bxFile, Emitter asm) {
+    asm.instr(".file", "\"" + bxFile + "\"");
+    if (mOptions.peepholeRules.isEmpty()) {
+      targetProg.emit(asm);
+      return;
+    }
+    // the rules need to see across instructions, so collect the lines first
+    Emitter.Lines lines = new Emitter.Lines();
+    targetProg.emit(lines);
+    Map<String, Integer> hits = Peephole.run(lines.code, mOptions.peepholeRules);
+    if (mOptions.peepholeStats) {
+      for (Map.Entry<String, Integer> hit : hits.entrySet()) {
+        mLog.append(String.format("%s: peephole %s: %d%n", bxFile,
+          hit.getKey(), hit.getValue()));
+      }
+    }
+    for (Asm line : lines.code) {
+      asm.line(line);
+    }
+  }
+
+  // return type for RTLi containing dest where calculation was stored and outlabel
+  private static class DestLabelPair {
+    public Ast.Target.Dest dest;
+    public int outLabel;
+    public DestLabelPair(Ast.Target.Dest dest, int outLabel) {
+      this.dest = dest;
+      this.outLabel = outLabel;
+    }
+  }
+
+  // return type for RTLb containing true and false outlabels
+  private static class TrueFalseLabels {
+    public int trueLabel;
+    public int falseLabel;
+    public TrueFalseLabels(int trueLabel, int falseLabel) {
+      this.trueLabel = trueLabel;
+      this.falseLabel = falseLabel;
+    }
+    public TrueFalseLabels reverse() {
+      int temp = this.trueLabel;
+      this.trueLabel = this.falseLabel;
+      this.falseLabel = temp;
+      return this;
+    }
+  }
+
+  private int RTLstmts(List<Ast.Source.Stmt> stmts, int Li) {
+    int Lo = Li;
+    for (Ast.Source.Stmt stmt : stmts) {
+      Lo = RTLs(stmt, Lo);
+    }
+   return Lo;
+  }
+
+  // RTL for a statement. returns outlabel
+  private int RTLs(Ast.Source.Stmt stmt, int Li) {
+    if (stmt instanceof Ast.Source.Stmt.Move) {
+      Ast.Source.Stmt.Move move = (Ast.Source.Stmt.Move) stmt;
+      Ast.Target.Dest sourceDest;
+      int Lo;
+      if (move.source.getType() == Ast.Source.Types.int64) {
+        DestLabelPair res = RTLi(move.source, Li);
+        Lo = res.outLabel;
+        sourceDest = res.dest;
+      } else {
+        TrueFalseLabels res = RTLb(move.source, Li);
+        Lo = ++mLabelCounter;
+        sourceDest = new Ast.Target.Dest(mVarCounter++);
+        mInstrs.add(new Ast.Target.Instr.MoveImm(res.trueLabel, sourceDest, 1, Lo));
+        mInstrs.add(new Ast.Target.Instr.MoveImm(res.falseLabel, sourceDest, 0, Lo));
+      }
+      Ast.Target.Dest targetDest = mVars.get(move.dest.var);
+      if (targetDest == null && mSlots != null) {
+        // -stream and -incremental keep each variable in its own slot from
+        // the start
+        targetDest = mSlots.get(move.dest.var);
+        mVars.put(move.dest.var, targetDest);
+      }
+      // check if new mapping needs to be created/if copy needs to be done
+      if (targetDest == null && mVars.containsValue(sourceDest)) {
+        Ast.Target.Dest freshDest = new Ast.Target.Dest(mVarCounter++);
+        mVars.put(move.dest.var, freshDest);
+        int L1 = ++mLabelCounter;
+        mInstrs.add(new Ast.Target.Instr.MoveCp(Lo, freshDest, sourceDest, L1));
+        Lo = L1;
+      } else if (targetDest == null) {
+        mVars.put(move.dest.var, sourceDest);
+      } else {
+        int L1 = ++mLabelCounter;
+        mInstrs.add(new Ast.Target.Instr.MoveCp(Lo, targetDest, sourceDest, L1));
+        Lo = L1;
+      }
+      return Lo;
+    }
+    else if (stmt instanceof Ast.Source.Stmt.IfElse) {
+      Ast.Source.Stmt.IfElse ifElse = (Ast.Source.Stmt.IfElse) stmt;
+      TrueFalseLabels res = RTLb(ifElse.condition, Li);
+      int Lo = RTLstmts(ifElse.thenBranch, res.trueLabel);
+      // change last instruction to have correct outLabel
+      if (ifElse.elseBranch != null && !ifElse.elseBranch.isEmpty()) {
+        int L1 = RTLstmts(ifElse.elseBranch, res.falseLabel);
+        mLabels.union(L1, Lo);
+      } else {
+        mLabels.union(Lo, res.falseLabel);
+        Lo = res.falseLabel;
+      }
+      return Lo;
+    }
+    else if (stmt instanceof Ast.Source.Stmt.While) {
+      Ast.Source.Stmt.While whileStmt = (Ast.Source.Stmt.While) stmt;
+      TrueFalseLabels res = RTLb(whileStmt.condition, Li);
+      int Lo = RTLstmts(whileStmt.body, res.trueLabel);
+      mInstrs.add(new Ast.Target.Instr.Goto(Lo, Li));
+      return res.falseLabel;
+    }
+    else if (stmt instanceof Ast.Source.Stmt.Block) {
+      Ast.Source.Stmt.Block block = (Ast.Source.Stmt.Block) stmt;
+      return RTLstmts(block.stmts, Li);
+    }
+    else if (stmt instanceof Ast.Source.Stmt.Print) {
+      Ast.Source.Stmt.Print print = (Ast.Source.Stmt.Print) stmt;
+      if (print.arg.getType() == Ast.Source.Types.int64) {
+        DestLabelPair res = RTLi(print.arg, Li);
+        int L1 = ++mLabelCounter;
+        mInstrs.add(new Ast.Target.Instr.Print(res.outLabel, res.dest, L1));
+        return L1;
+      } else {
+        TrueFalseLabels res = RTLb(print.arg, Li);
+        Ast.Target.Dest dest = new Ast.Target.Dest(mVarCounter++);
+        int L1 = ++mLabelCounter;
+        int L2 = ++mLabelCounter;
+        mInstrs.add(new Ast.Target.Instr.MoveImm(res.trueLabel, dest, 1, L1));
+        mInstrs.add(new Ast.Target.Instr.MoveImm(res.falseLabel, dest, 0, L1));
+        mInstrs.add(new Ast.Target.Instr.Print(L1, dest, L2));
+        return L2;
+      }
+    }
+    return -1;
+  }
+
+  // RTL for int exprs. takes in expr and inlabel; returns destLabel (bottom-up)
+  private DestLabelPair RTLi(Ast.Source.Expr expr, int Li) {
+    if (expr instanceof Ast.Source.Expr.IntImm) {
+      Ast.Source.Expr.IntImm intImm = (Ast.Source.Expr.IntImm) expr;
+      Ast.Target.Dest dest = new Ast.Target.Dest(mVarCounter++);
+      int Lo = ++mLabelCounter;
+      mInstrs.add(new Ast.Target.Instr.MoveImm(Li, dest, intImm.value, Lo));
+      return new DestLabelPair(dest, Lo);
+    }
+    else if (expr instanceof Ast.Source.Expr.Read) {
+      Ast.Source.Expr.Read read = (Ast.Source.Expr.Read) expr;
+      return new DestLabelPair(lookup(read.dest.var), Li);
+    }
+    else if (expr instanceof Ast.Source.Expr.UnopApp) {
+      Ast.Source.Expr.UnopApp unopApp = (Ast.Source.Expr.UnopApp) expr;
+      Ast.Target.Dest dest = new Ast.Target.Dest(mVarCounter++);
+      DestLabelPair argRes = RTLi(unopApp.arg, Li);
+      int Lo = ++mLabelCounter;
+      mInstrs.add(new Ast.Target.Instr.MoveUnop(
+        argRes.outLabel, dest, unopApp.op, argRes.dest, Lo));
+      return new DestLabelPair(dest, Lo);
+    }
+    else if (expr instanceof Ast.Source.Expr.BinopApp) {
+      Ast.Source.Expr.BinopApp binopApp = (Ast.Source.Expr.BinopApp) expr;
+      Ast.Target.Dest dest = new Ast.Target.Dest(mVarCounter++);
+      DestLabelPair leftRes = RTLi(binopApp.leftArg, Li);
+      DestLabelPair rightRes = RTLi(binopApp.rightArg, leftRes.outLabel);
+      int Lo = ++mLabelCounter;
+      mInstrs.add(new Ast.Target.Instr.MoveBinop(
+        rightRes.outLabel, dest, leftRes.dest, binopApp.op, rightRes.dest, Lo));
+      return new DestLabelPair(dest, Lo);
+    }
+    return null;
+  }
+
+  // RTL for bool exprs. takes in expr and inlabel; returns true and false outLabels (bottom-up)
+  private TrueFalseLabels RTLb(Ast.Source.Expr expr, int Li) {
+    if (expr instanceof Ast.Source.Expr.BoolImm) {
+      Ast.Source.Expr.BoolImm boolImm = (Ast.Source.Expr.BoolImm) expr;
+      return boolImm.isTrue ? new TrueFalseLabels(Li, ++mLabelCounter)
+        : new TrueFalseLabels(++mLabelCounter, Li);
+    }
+    else if (expr instanceof Ast.Source.Expr.Read) {
+      Ast.Source.Expr.Read read = (Ast.Source.Expr.Read) expr;
+      TrueFalseLabels ret = new TrueFalseLabels(++mLabelCounter, ++mLabelCounter);
+      // jump to true label if not zero, otherwise jump to false label
+      mInstrs.add(new Ast.Target.Instr.UBranch(Li, Ast.Source.CompOp.Neq,
+        lookup(read.dest.var), ret.trueLabel, ret.falseLabel));
+      return ret;
+    }
+    else if (expr instanceof Ast.Source.Expr.UnopApp) {
+      Ast.Source.Expr.UnopApp unopApp = (Ast.Source.Expr.UnopApp) expr;
+      return RTLb(unopApp.arg, Li).reverse();
+    }
+    else if (expr instanceof Ast.Source.Expr.BoolOpApp) {
+      Ast.Source.Expr.BoolOpApp boolOpApp = (Ast.Source.Expr.BoolOpApp) expr;
+      TrueFalseLabels leftRes = RTLb(boolOpApp.leftArg, Li);
+      if (boolOpApp.op == Ast.Source.BoolOp.And) {
+        TrueFalseLabels rightRes = RTLb(boolOpApp.rightArg, leftRes.trueLabel);
+        // make sure equivalent cases end up at same place
+        mLabels.union(rightRes.falseLabel, leftRes.falseLabel);
+        return new TrueFalseLabels(rightRes.trueLabel, leftRes.falseLabel);
+      } else {
+        TrueFalseLabels rightRes = RTLb(boolOpApp.rightArg, leftRes.falseLabel);
+        mLabels.union(rightRes.trueLabel, leftRes.trueLabel);
+        return new TrueFalseLabels(leftRes.trueLabel, rightRes.falseLabel);
+      }
+    }
+    else if (expr instanceof Ast.Source.Expr.Comp) {
+      Ast.Source.Expr.Comp comp = (Ast.Source.Expr.Comp) expr;
+      if (comp.leftArg.getType() == Ast.Source.Types.int64) {
+        DestLabelPair leftRes = RTLi(comp.leftArg, Li);
+        DestLabelPair rightRes = RTLi(comp.rightArg, leftRes.outLabel);
+        TrueFalseLabels ret = new TrueFalseLabels(++mLabelCounter, ++mLabelCounter);
+        mInstrs.add(new Ast.Target.Instr.BBranch(rightRes.outLabel, leftRes.dest,
+          comp.op, rightRes.dest, ret.trueLabel, ret.falseLabel));
+        return ret;
+      } else {
+        if (comp.op == Ast.Source.CompOp.Eq) {
+          // (e1 == e2) ≡ (e1 && e2) || ! (e1 || e2)
+          Ast.Source.Expr e1 = new Ast.Source.Expr.BoolOpApp(
+            comp.leftArg, Ast.Source.BoolOp.And, comp.rightArg);
+          Ast.Source.Expr e2 = new Ast.Source.Expr.BoolOpApp(
+            comp.leftArg, Ast.Source.BoolOp.Or, comp.rightArg);
+          Ast.Source.Expr e3 = new Ast.Source.Expr.UnopApp(Ast.Source.Unop.BoolNot, e2);
+          Ast.Source.Expr e4 = new Ast.Source.Expr.BoolOpApp(e1, Ast.Source.BoolOp.Or, e3);
+          return RTLb(e4, Li);
+        }
+        else {
+          // (e1 != e2) ≡ ! (e1 && e2) && (e1 || e2)
+          Ast.Source.Expr e1 = new Ast.Source.Expr.BoolOpApp(
+            comp.leftArg, Ast.Source.BoolOp.And, comp.rightArg);
+          Ast.Source.Expr e2 = new Ast.Source.Expr.BoolOpApp(
+            comp.leftArg, Ast.Source.BoolOp.Or, comp.rightArg);
+          Ast.Source.Expr e3 = new Ast.Source.Expr.UnopApp(Ast.Source.Unop.BoolNot, e1);
+          Ast.Source.Expr e4 = new Ast.Source.Expr.BoolOpApp(e1, Ast.Source.BoolOp.And, e3);
+          return RTLb(e4, Li);
+        }
+      }
+    }
+    return null;
+  }
+
+  private Ast.Target.Dest lookup(String var) {
+    Ast.Target.Dest dest = mVars.get(var);
+    if (dest == null) {
+      Ast.Source.raise(Ast.Source.Error.UninitializedVarException, var);
+    }
+    return dest;
+  }
+}
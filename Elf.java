@@ -0,0 +1,473 @@
+// In-process amd64 assembler writing ELF relocatable objects
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/** Encodes the instructions that Target.Instr and the peephole rules emit
+    straight into machine code, and writes them out as an ELF64 relocatable
+    object, so that a build only has to link. Only that small subset of
+    amd64 is known; anything else is an IllegalArgumentException. A jump
+    back to a label already seen takes the short form when it reaches, and
+    every other jump gets a 32-bit displacement. */
+public class Elf extends Emitter {
+  private static final Map<String, Integer> REGS = new HashMap<>();
+  private static final Map<String, Integer> SIZES = new HashMap<>();
+  static {
+    String[] q = { "rax", "rcx", "rdx", "rbx", "rsp", "rbp", "rsi", "rdi" };
+    String[] l = { "eax", "ecx", "edx", "ebx", "esp", "ebp", "esi", "edi" };
+    String[] b = { "al", "cl", "dl", "bl" };
+    for (int r = 0; r < 16; r++) {
+      register(r < 8 ? q[r] : "r" + r, r, 8);
+      register(r < 8 ? l[r] : "r" + r + "d", r, 4);
+      if (r >= 8 || r < 4) {
+        register(r < 8 ? b[r] : "r" + r + "b", r, 1);
+      }
+    }
+  }
+  private static void register(String name, int number, int size) {
+    REGS.put("%" + name, number);
+    SIZES.put("%" + name, size);
+  }
+  // the /n opcode extensions of the arithmetic group
+  private static final Map<String, Integer> ALU = new HashMap<>();
+  static {
+    String[] ops = { "addq", "orq", null, null, "andq", "subq", "xorq", "cmpq" };
+    for (int n = 0; n < ops.length; n++) {
+      if (ops[n] != null) {
+        ALU.put(ops[n], n);
+      }
+    }
+  }
+  private static final Map<String, Integer> SHIFTS = new HashMap<>();
+  static {
+    SHIFTS.put("salq", 4);
+    SHIFTS.put("shrq", 5);
+    SHIFTS.put("sarq", 7);
+  }
+  private static final Map<String, Integer> CONDITIONS = new HashMap<>();
+  static {
+    CONDITIONS.put("je", 0x4);
+    CONDITIONS.put("jne", 0x5);
+    CONDITIONS.put("jl", 0xc);
+    CONDITIONS.put("jge", 0xd);
+    CONDITIONS.put("jle", 0xe);
+    CONDITIONS.put("jg", 0xf);
+  }
+
+  // an operand in AT&T syntax
+  private static class Operand {
+    static final int REG = 0, IMM = 1, MEM = 2, SYM = 3;
+    int kind;
+    // the register, or the base register of a memory operand
+    int reg = -1;
+    int size = 8;
+    long imm;
+    int index = -1, scale = 1;
+    String sym;
+
+    static Operand parse(String arg) {
+      Operand operand = new Operand();
+      if (arg.startsWith("$")) {
+        operand.kind = IMM;
+        operand.imm = Long.parseLong(arg.substring(1));
+      } else if (arg.startsWith("%")) {
+        operand.kind = REG;
+        operand.reg = reg(arg);
+        operand.size = SIZES.get(arg);
+      } else if (arg.endsWith(")")) {
+        // disp(base,index,scale)
+        operand.kind = MEM;
+        int open = arg.indexOf('(');
+        operand.imm = open == 0 ? 0 : Long.parseLong(arg.substring(0, open));
+        String[] parts = arg.substring(open + 1, arg.length() - 1).split(",");
+        operand.reg = reg(parts[0]);
+        if (parts.length > 1) {
+          operand.index = reg(parts[1]);
+          operand.scale = parts.length > 2 ? Integer.parseInt(parts[2]) : 1;
+        }
+      } else {
+        operand.kind = SYM;
+        operand.sym = arg;
+      }
+      return operand;
+    }
+    private static int reg(String name) {
+      Integer reg = REGS.get(name.trim());
+      if (reg == null) {
+        throw new IllegalArgumentException("unknown register " + name);
+      }
+      return reg;
+    }
+    boolean isImm32() {
+      return this.kind == IMM && this.imm == (int) this.imm;
+    }
+    boolean isImm8() {
+      return this.kind == IMM && this.imm == (byte) this.imm;
+    }
+  }
+
+  // a 32-bit displacement to a label, patched once every label is known
+  private static class Fixup {
+    final int offset;
+    final String label;
+    Fixup(int offset, String label) {
+      this.offset = offset;
+      this.label = label;
+    }
+  }
+
+  private byte[] mText = new byte[4096];
+  private int mSize = 0;
+  private final Map<String, Integer> mLabels = new LinkedHashMap<>();
+  private final List<Fixup> mFixups = new ArrayList<>();
+  // calls to functions outside the object, relocated by the linker
+  private final List<Fixup> mCalls = new ArrayList<>();
+  private final Set<String> mGlobals = new HashSet<>();
+  private String mFileName = null;
+
+  @Override
+  public void label(String label) {
+    if (this.mLabels.put(label, this.mSize) != null) {
+      throw new IllegalArgumentException("label " + label + " defined twice");
+    }
+  }
+
+  @Override
+  public void comment(String text) {
+  }
+
+  @Override
+  public void instr(String op, String... args) {
+    if (op.startsWith(".")) {
+      directive(op, args);
+      return;
+    }
+    Operand[] ops = new Operand[args.length];
+    for (int k = 0; k < args.length; k++) {
+      ops[k] = Operand.parse(args[k]);
+    }
+    Integer n;
+    if (ALU.containsKey(op) && ops.length == 2) {
+      alu(ALU.get(op), ops[0], ops[1]);
+    } else if ((n = SHIFTS.get(op)) != null && ops.length == 2) {
+      if (ops[0].kind == Operand.IMM) {
+        modrm(true, n, ops[1], ops[0].imm == 1 ? 0xd1 : 0xc1);
+        if (ops[0].imm != 1) {
+          byte1((int) ops[0].imm);
+        }
+      } else if (ops[0].kind == Operand.REG && ops[0].reg == 1 && ops[0].size == 1) {
+        modrm(true, n, ops[1], 0xd3);
+      } else {
+        throw unknown(op, args);
+      }
+    } else if (CONDITIONS.containsKey(op) || op.equals("jmp")) {
+      jump(op, args[0]);
+    } else {
+      switch (op + "/" + ops.length) {
+        case "movq/2": move(ops[0], ops[1]); break;
+        case "movabsq/2":
+          rex(true, 0, 0, ops[1].reg);
+          byte1(0xb8 + (ops[1].reg & 7));
+          int64(ops[0].imm);
+          break;
+        case "xorl/2": modrm(false, ops[0].reg, ops[1], 0x31); break;
+        case "testq/2": modrm(true, ops[0].reg, ops[1], 0x85); break;
+        case "leaq/2": modrm(true, ops[1].reg, ops[0], 0x8d); break;
+        case "imulq/1": modrm(true, 5, ops[0], 0xf7); break;
+        case "imulq/2": modrm(true, ops[1].reg, ops[0], 0x0f, 0xaf); break;
+        case "imulq/3":
+          if (ops[0].isImm8()) {
+            modrm(true, ops[2].reg, ops[1], 0x6b);
+            byte1((int) ops[0].imm);
+          } else {
+            modrm(true, ops[2].reg, ops[1], 0x69);
+            int32(imm32(ops[0]));
+          }
+          break;
+        case "idivq/1": modrm(true, 7, ops[0], 0xf7); break;
+        case "negq/1": modrm(true, 3, ops[0], 0xf7); break;
+        case "notq/1": modrm(true, 2, ops[0], 0xf7); break;
+        case "cqto/0": byte1(0x48); byte1(0x99); break;
+        case "pushq/1": rex(false, 0, 0, ops[0].reg); byte1(0x50 + (ops[0].reg & 7)); break;
+        case "popq/1": rex(false, 0, 0, ops[0].reg); byte1(0x58 + (ops[0].reg & 7)); break;
+        case "retq/0": byte1(0xc3); break;
+        case "callq/1":
+          byte1(0xe8);
+          this.mCalls.add(new Fixup(this.mSize, args[0]));
+          int32(0);
+          break;
+        default: throw unknown(op, args);
+      }
+    }
+  }
+
+  private static IllegalArgumentException unknown(String op, String[] args) {
+    return new IllegalArgumentException(String.format("cannot encode %s", Asm.instr(op, args)));
+  }
+
+  private void directive(String op, String[] args) {
+    switch (op) {
+      case ".file":
+        this.mFileName = args[0].replace("\"", "");
+        break;
+      case ".globl":
+        this.mGlobals.add(args[0]);
+        break;
+      case ".section":
+        if (!args[0].equals(".text")) {
+          throw unknown(op, args);
+        }
+        break;
+      default: throw unknown(op, args);
+    }
+  }
+
+  private void move(Operand source, Operand dest) {
+    if (source.kind == Operand.IMM) {
+      modrm(true, 0, dest, 0xc7);
+      int32(imm32(source));
+    } else if (source.kind == Operand.REG) {
+      modrm(true, source.reg, dest, 0x89);
+    } else {
+      modrm(true, dest.reg, source, 0x8b);
+    }
+  }
+
+  private void alu(int n, Operand source, Operand dest) {
+    if (source.isImm8()) {
+      modrm(true, n, dest, 0x83);
+      byte1((int) source.imm);
+    } else if (source.kind == Operand.IMM) {
+      modrm(true, n, dest, 0x81);
+      int32(imm32(source));
+    } else if (source.kind == Operand.REG) {
+      modrm(true, source.reg, dest, 0x01 + 8 * n);
+    } else {
+      modrm(true, dest.reg, source, 0x03 + 8 * n);
+    }
+  }
+
+  private void jump(String op, String label) {
+    Integer target = this.mLabels.get(label);
+    Integer cc = CONDITIONS.get(op);
+    if (target != null && target - (this.mSize + 2) >= Byte.MIN_VALUE) {
+      byte1(cc == null ? 0xeb : 0x70 + cc);
+      byte1(target - (this.mSize + 1));
+      return;
+    }
+    if (cc == null) {
+      byte1(0xe9);
+    } else {
+      byte1(0x0f);
+      byte1(0x80 + cc);
+    }
+    this.mFixups.add(new Fixup(this.mSize, label));
+    int32(0);
+  }
+
+  private static int imm32(Operand imm) {
+    if (!imm.isImm32()) {
+      throw new IllegalArgumentException("immediate " + imm.imm + " does not fit 32 bits");
+    }
+    return (int) imm.imm;
+  }
+
+  private void rex(boolean wide, int reg, int index, int base) {
+    int rex = (wide ? 8 : 0) | (reg >> 3 & 1) << 2 | (index >> 3 & 1) << 1 | (base >> 3 & 1);
+    if (rex != 0) {
+      byte1(0x40 | rex);
+    }
+  }
+
+  // the opcode followed by the ModRM byte for `reg` and `rm`, with its SIB
+  // byte and displacement
+  private void modrm(boolean wide, int reg, Operand rm, int... opcode) {
+    if (rm.kind == Operand.REG) {
+      rex(wide, reg, 0, rm.reg);
+    } else if (rm.kind == Operand.MEM) {
+      rex(wide, reg, Math.max(rm.index, 0), rm.reg);
+    } else {
+      throw new IllegalArgumentException("bad operand");
+    }
+    for (int b : opcode) {
+      byte1(b);
+    }
+    if (rm.kind == Operand.REG) {
+      byte1(0xc0 | (reg & 7) << 3 | (rm.reg & 7));
+      return;
+    }
+    // %rbp and %r13 have no form without a displacement
+    int disp = (int) rm.imm;
+    int mod = disp == 0 && (rm.reg & 7) != 5 ? 0 : disp == (byte) disp ? 0x40 : 0x80;
+    // %rsp and %r12 as a base need a SIB byte
+    if (rm.index < 0 && (rm.reg & 7) != 4) {
+      byte1(mod | (reg & 7) << 3 | (rm.reg & 7));
+    } else {
+      byte1(mod | (reg & 7) << 3 | 4);
+      int index = rm.index < 0 ? 4 : rm.index & 7;
+      byte1(Integer.numberOfTrailingZeros(rm.scale) << 6 | index << 3 | (rm.reg & 7));
+    }
+    if (mod == 0x40) {
+      byte1(disp);
+    } else if (mod == 0x80) {
+      int32(disp);
+    }
+  }
+
+  private void byte1(int b) {
+    if (this.mSize == this.mText.length) {
+      this.mText = Arrays.copyOf(this.mText, 2 * this.mText.length);
+    }
+    this.mText[this.mSize++] = (byte) b;
+  }
+
+  private void int32(long v) {
+    for (int k = 0; k < 4; k++) {
+      byte1((int) (v >> 8 * k));
+    }
+  }
+
+  private void int64(long v) {
+    int32(v);
+    int32(v >> 32);
+  }
+
+  private void patch(int offset, int v) {
+    for (int k = 0; k < 4; k++) {
+      this.mText[offset + k] = (byte) (v >> 8 * k);
+    }
+  }
+
+  // a string table under construction
+  private static class Strings {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    Strings() {
+      this.bytes.write(0);
+    }
+    int add(String str) {
+      int offset = this.bytes.size();
+      byte[] b = str.getBytes(StandardCharsets.UTF_8);
+      this.bytes.write(b, 0, b.length);
+      this.bytes.write(0);
+      return offset;
+    }
+  }
+
+  private static final int SHT_PROGBITS = 1, SHT_SYMTAB = 2, SHT_STRTAB = 3, SHT_RELA = 4;
+  private static final int STB_LOCAL = 0, STB_GLOBAL = 1;
+  private static final int STT_NOTYPE = 0, STT_FUNC = 2, STT_FILE = 4;
+  private static final int SHN_ABS = 0xfff1;
+  private static final int R_X86_64_PLT32 = 4;
+  private static final int TEXT = 1, RELA = 2, SYMTAB = 3, STRTAB = 4, SHSTRTAB = 5, NOTE = 6;
+
+  /** Resolve the jumps and write the object: .text, its relocations, the
+      symbols, and an empty .note.GNU-stack so that the stack is not made
+      executable */
+  public void write(OutputStream out) throws IOException {
+    for (Fixup fixup : this.mFixups) {
+      Integer target = this.mLabels.get(fixup.label);
+      if (target == null) {
+        throw new IllegalArgumentException("undefined label " + fixup.label);
+      }
+      patch(fixup.offset, target - (fixup.offset + 4));
+    }
+
+    // locals come first: the file, then labels other than .L ones
+    Strings strtab = new Strings();
+    ByteBuffer symtab = little(24 * (2 + this.mLabels.size() + this.mCalls.size()));
+    symbol(symtab, 0, 0, 0, 0, 0);
+    if (this.mFileName != null) {
+      symbol(symtab, strtab.add(this.mFileName), STB_LOCAL << 4 | STT_FILE, SHN_ABS, 0, 0);
+    }
+    for (Map.Entry<String, Integer> label : this.mLabels.entrySet()) {
+      if (!label.getKey().startsWith(".L") && !this.mGlobals.contains(label.getKey())) {
+        symbol(symtab, strtab.add(label.getKey()), STB_LOCAL << 4 | STT_NOTYPE, TEXT,
+          label.getValue(), 0);
+      }
+    }
+    int firstGlobal = symtab.position() / 24;
+    for (String global : this.mGlobals) {
+      Integer value = this.mLabels.get(global);
+      if (value != null) {
+        symbol(symtab, strtab.add(global), STB_GLOBAL << 4 | STT_FUNC, TEXT, value, 0);
+      }
+    }
+    Map<String, Integer> undefined = new LinkedHashMap<>();
+    ByteBuffer rela = little(24 * this.mCalls.size());
+    for (Fixup call : this.mCalls) {
+      if (this.mLabels.containsKey(call.label)) {
+        int target = this.mLabels.get(call.label);
+        patch(call.offset, target - (call.offset + 4));
+        continue;
+      }
+      Integer sym = undefined.get(call.label);
+      if (sym == null) {
+        sym = symtab.position() / 24;
+        undefined.put(call.label, sym);
+        symbol(symtab, strtab.add(call.label), STB_GLOBAL << 4 | STT_NOTYPE, 0, 0, 0);
+      }
+      rela.putLong(call.offset).putLong((long) sym << 32 | R_X86_64_PLT32).putLong(-4);
+    }
+
+    Strings shstrtab = new Strings();
+    int[] names = {
+      0, shstrtab.add(".text"), shstrtab.add(".rela.text"), shstrtab.add(".symtab"),
+      shstrtab.add(".strtab"), shstrtab.add(".shstrtab"), shstrtab.add(".note.GNU-stack")
+    };
+    byte[][] contents = {
+      new byte[0], Arrays.copyOf(this.mText, this.mSize), Arrays.copyOf(rela.array(), rela.position()),
+      Arrays.copyOf(symtab.array(), symtab.position()), strtab.bytes.toByteArray(),
+      shstrtab.bytes.toByteArray(), new byte[0]
+    };
+    int[] offsets = new int[contents.length];
+    int end = 64;
+    for (int s = 1; s < contents.length; s++) {
+      end = (end + 15) & ~15;
+      offsets[s] = end;
+      end += contents[s].length;
+    }
+    int shoff = (end + 7) & ~7;
+
+    ByteBuffer file = little(shoff + 64 * contents.length);
+    file.put(new byte[] { 0x7f, 'E', 'L', 'F', 2, 1, 1, 0 }).putLong(0);
+    file.putShort((short) 1).putShort((short) 62).putInt(1);
+    file.putLong(0).putLong(0).putLong(shoff).putInt(0);
+    file.putShort((short) 64).putShort((short) 0).putShort((short) 0);
+    file.putShort((short) 64).putShort((short) contents.length).putShort((short) SHSTRTAB);
+    for (int s = 1; s < contents.length; s++) {
+      file.position(offsets[s]);
+      file.put(contents[s]);
+    }
+    file.position(shoff);
+    section(file, 0, 0, 0, 0, 0, 0, 0, 0, 0);
+    section(file, names[TEXT], SHT_PROGBITS, 0x6, offsets[TEXT], this.mSize, 0, 0, 16, 0);
+    section(file, names[RELA], SHT_RELA, 0x40, offsets[RELA], contents[RELA].length,
+      SYMTAB, TEXT, 8, 24);
+    section(file, names[SYMTAB], SHT_SYMTAB, 0, offsets[SYMTAB], contents[SYMTAB].length,
+      STRTAB, firstGlobal, 8, 24);
+    section(file, names[STRTAB], SHT_STRTAB, 0, offsets[STRTAB], contents[STRTAB].length,
+      0, 0, 1, 0);
+    section(file, names[SHSTRTAB], SHT_STRTAB, 0, offsets[SHSTRTAB],
+      contents[SHSTRTAB].length, 0, 0, 1, 0);
+    section(file, names[NOTE], SHT_PROGBITS, 0, offsets[NOTE], 0, 0, 0, 1, 0);
+    out.write(file.array());
+  }
+
+  private static ByteBuffer little(int size) {
+    return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static void symbol(ByteBuffer symtab, int name, int info, int shndx, long value,
+    long size) {
+    symtab.putInt(name).put((byte) info).put((byte) 0).putShort((short) shndx)
+      .putLong(value).putLong(size);
+  }
+
+  private static void section(ByteBuffer file, int name, int type, long flags, long offset,
+    long size, int link, int info, long align, long entsize) {
+    file.putInt(name).putInt(type).putLong(flags).putLong(0).putLong(offset)
+      .putLong(size).putInt(link).putInt(info).putLong(align).putLong(entsize);
+  }
+}
@@ -0,0 +1,88 @@
+// Sinks for the generated amd64 code
+import java.io.*;
+import java.util.*;
+
+/** Receives the assembly one line at a time, so that a program never has
+    to be rendered as a single string. */
+public abstract class Emitter {
+  public abstract void label(String label);
+  public abstract void instr(String op, String... args);
+  public abstract void comment(String text);
+
+  /** The name of an RTL label. -incremental names the labels of each
+      statement after the statement, so that its lines read the same
+      wherever it lands in the file. */
+  public String name(int label) {
+    return ".L" + label;
+  }
+
+  /** Pass on a line that was collected earlier */
+  public void line(Asm line) {
+    if (line.isLabel()) {
+      label(line.label);
+    } else if (line.op.startsWith("#")) {
+      comment(line.op.substring(1).trim());
+    } else {
+      instr(line.op, line.args);
+    }
+  }
+
+  /** Writes the lines as text. The writer should be buffered, since every
+      operand is written on its own. */
+  public static class Text extends Emitter {
+    private final Writer out;
+    public Text(Writer out) {
+      this.out = out;
+    }
+    @Override
+    public void label(String label) {
+      try {
+        this.out.write(label);
+        this.out.write(":\n");
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    @Override
+    public void instr(String op, String... args) {
+      try {
+        this.out.write('\t');
+        this.out.write(op);
+        for (int k = 0; k < args.length; k++) {
+          this.out.write(k == 0 ? " " : ", ");
+          this.out.write(args[k]);
+        }
+        this.out.write('\n');
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    @Override
+    public void comment(String text) {
+      try {
+        this.out.write("# ");
+        this.out.write(text);
+        this.out.write('\n');
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /** Collects the lines for the peephole optimiser */
+  public static class Lines extends Emitter {
+    public final List<Asm> code = new ArrayList<>();
+    @Override
+    public void label(String label) {
+      this.code.add(Asm.label(label));
+    }
+    @Override
+    public void instr(String op, String... args) {
+      this.code.add(Asm.instr(op, args));
+    }
+    @Override
+    public void comment(String text) {
+      this.code.add(Asm.instr("# " + text));
+    }
+  }
+}
@@ -0,0 +1,194 @@
+// Assembly kept for reuse by later compiles of the same statements
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/** The assembly that -incremental wrote for top-level statements, so that
+    a later compile can copy a statement instead of parsing and compiling
+    it again. Statements are compiled as with -stream, every variable in
+    its own stack slot and nothing looking past the statement, so what a
+    statement compiles to depends only on its bytes and its surroundings:
+    the type and slot of each variable it names, whether that is assigned
+    yet and what constant it holds, and the first slot free for
+    temporaries. A statement is stored under a digest of its bytes, with
+    the variables it names, and under that its assembly for each of the
+    surroundings it was compiled in, together with what it leaves behind.
+    Fragments live as long as the JVM, which for the daemon spans builds,
+    and the least recently used statements are dropped once they hold too
+    much text. */
+public class Fragments {
+  private static final long MAX_CHARS = 1L << 25;
+  private static final Map<String, Statement> mStore = new LinkedHashMap<>(16, 0.75f, true);
+  private static long mChars = 0;
+  // a digest for each thread that compiles, since making one is slow
+  private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  });
+
+  /** The variables a statement names, in order, and its assembly in each
+      surroundings */
+  public static class Statement {
+    public final String[] names;
+    final Map<String, Fragment> fragments = new HashMap<>();
+    long chars = 0;
+    Statement(String[] names) {
+      this.names = names;
+    }
+    public synchronized Fragment get(String surroundings) {
+      return this.fragments.get(surroundings);
+    }
+  }
+
+  /** The lines of a statement, the stack slots they use, and for each
+      variable it names the constant it leaves there, or null, and whether
+      it is assigned afterwards */
+  public static class Fragment {
+    public final String text;
+    public final int slots;
+    public final Ast.Source.Expr[] constants;
+    public final boolean[] assigned;
+    public Fragment(String text, int slots, Ast.Source.Expr[] constants, boolean[] assigned) {
+      this.text = text;
+      this.slots = slots;
+      this.constants = constants;
+      this.assigned = assigned;
+    }
+  }
+
+  public static synchronized Statement get(String source) {
+    return mStore.get(source);
+  }
+
+  public static synchronized void put(String source, String[] names, String surroundings,
+      Fragment fragment) {
+    Statement stmt = mStore.computeIfAbsent(source, s -> new Statement(names));
+    long chars = fragment.text.length() + surroundings.length();
+    synchronized (stmt) {
+      Fragment old = stmt.fragments.put(surroundings, fragment);
+      if (old != null) {
+        chars -= old.text.length() + surroundings.length();
+      }
+      stmt.chars += chars;
+    }
+    mChars += chars;
+    Iterator<Statement> eldest = mStore.values().iterator();
+    while (mChars > MAX_CHARS && eldest.hasNext()) {
+      mChars -= eldest.next().chars;
+      eldest.remove();
+    }
+  }
+
+  /** The digest of the bytes of a statement */
+  public static String source(Pratt parser, Pratt.Extent extent) {
+    MessageDigest digest = SHA256.get();
+    parser.digest(extent, digest);
+    return hex(digest.digest());
+  }
+
+  /** The prefix for the labels of a statement, made from everything its
+      assembly is kept under, so that its lines read the same wherever it
+      lands in the file */
+  public static String labels(String source, String surroundings) {
+    byte[] digest = SHA256.get().digest(
+      (source + '/' + surroundings).getBytes(StandardCharsets.UTF_8));
+    return ".L" + hex(digest).substring(0, 16) + "_";
+  }
+
+  private static String hex(byte[] bytes) {
+    char[] hex = new char[2 * bytes.length];
+    for (int k = 0; k < bytes.length; k++) {
+      hex[2 * k] = Character.forDigit((bytes[k] >> 4) & 0xf, 16);
+      hex[2 * k + 1] = Character.forDigit(bytes[k] & 0xf, 16);
+    }
+    return new String(hex);
+  }
+
+  /** The surroundings of a statement that names names, or null if one of
+      them is not declared */
+  public static String surroundings(String[] names, Map<String, Ast.Source.VarDecl> vars,
+      Map<String, Ast.Target.Dest> slots, Set<String> assigned,
+      Map<String, Ast.Source.Expr> constants) {
+    StringBuilder text = new StringBuilder();
+    text.append(slots.size());
+    for (String name : names) {
+      Ast.Source.VarDecl decl = vars.get(name);
+      if (decl == null) {
+        return null;
+      }
+      text.append(';').append(decl.type).append(slots.get(name).loc)
+        .append(assigned.contains(name) ? '=' : '!');
+      Ast.Source.Expr value = constants.get(name);
+      if (value == null) {
+        text.append('-');
+      } else if (!Opt.ConstProp.isConst(value)) {
+        text.append('?');
+      } else if (value instanceof Ast.Source.Expr.IntImm) {
+        text.append(((Ast.Source.Expr.IntImm) value).value);
+      } else {
+        text.append(((Ast.Source.Expr.BoolImm) value).isTrue ? 't' : 'f');
+      }
+    }
+    return text.toString();
+  }
+
+  /** The variables a statement names, in order */
+  public static String[] names(Ast.Source.Stmt stmt) {
+    Set<String> names = new TreeSet<>();
+    names(stmt, names);
+    return names.toArray(new String[0]);
+  }
+
+  private static void names(Ast.Source.Stmt stmt, Set<String> names) {
+    if (stmt instanceof Ast.Source.Stmt.Move) {
+      Ast.Source.Stmt.Move move = (Ast.Source.Stmt.Move) stmt;
+      names.add(move.dest.var);
+      names(move.source, names);
+    } else if (stmt instanceof Ast.Source.Stmt.Print) {
+      names(((Ast.Source.Stmt.Print) stmt).arg, names);
+    } else if (stmt instanceof Ast.Source.Stmt.Block) {
+      names(((Ast.Source.Stmt.Block) stmt).stmts, names);
+    } else if (stmt instanceof Ast.Source.Stmt.IfElse) {
+      Ast.Source.Stmt.IfElse ifElse = (Ast.Source.Stmt.IfElse) stmt;
+      names(ifElse.condition, names);
+      names(ifElse.thenBranch, names);
+      if (ifElse.elseBranch != null) {
+        names(ifElse.elseBranch, names);
+      }
+    } else if (stmt instanceof Ast.Source.Stmt.While) {
+      Ast.Source.Stmt.While whileStmt = (Ast.Source.Stmt.While) stmt;
+      names(whileStmt.condition, names);
+      names(whileStmt.body, names);
+    }
+  }
+
+  private static void names(List<Ast.Source.Stmt> stmts, Set<String> names) {
+    for (Ast.Source.Stmt stmt : stmts) {
+      names(stmt, names);
+    }
+  }
+
+  private static void names(Ast.Source.Expr expr, Set<String> names) {
+    if (expr instanceof Ast.Source.Expr.Read) {
+      names.add(((Ast.Source.Expr.Read) expr).dest.var);
+    } else if (expr instanceof Ast.Source.Expr.UnopApp) {
+      names(((Ast.Source.Expr.UnopApp) expr).arg, names);
+    } else if (expr instanceof Ast.Source.Expr.BinopApp) {
+      Ast.Source.Expr.BinopApp binop = (Ast.Source.Expr.BinopApp) expr;
+      names(binop.leftArg, names);
+      names(binop.rightArg, names);
+    } else if (expr instanceof Ast.Source.Expr.BoolOpApp) {
+      Ast.Source.Expr.BoolOpApp boolOp = (Ast.Source.Expr.BoolOpApp) expr;
+      names(boolOp.leftArg, names);
+      names(boolOp.rightArg, names);
+    } else if (expr instanceof Ast.Source.Expr.Comp) {
+      Ast.Source.Expr.Comp comp = (Ast.Source.Expr.Comp) expr;
+      names(comp.leftArg, names);
+      names(comp.rightArg, names);
+    }
+  }
+}
@@ -0,0 +1,272 @@
+// Reference interpreter for the RTL
+import java.util.*;
+import java.util.function.LongConsumer;
+
+/** Runs a program straight from its RTL, at any point in the pipeline:
+    over pseudo-registers, phis included, or over the machine locations
+    chosen by the register allocator. The instructions are first packed
+    into int columns with every label resolved to an instruction index and
+    every immediate to a register holding it, so that a step is a switch
+    over a dense opcode and touches nothing but arrays. Arithmetic follows
+    amd64: shift counts are taken mod 64, and idivq faults on a zero
+    divisor and on Long.MIN_VALUE / -1. */
+public class Interp {
+  private static final int COPY = 0, ADD = 1, SUB = 2, MUL = 3, DIV = 4, MOD = 5, AND = 6,
+    OR = 7, XOR = 8, SHL = 9, SAR = 10, NEG = 11, NOT = 12, EQ = 13, NEQ = 14, LT = 15,
+    LEQ = 16, GT = 17, GEQ = 18, GOTO = 19, PRINT = 20, PHI = 21, RETURN = 22, NOP = 23;
+  // the machine registers, in the order they take in the register file
+  private static final List<String> REGS = Arrays.asList("%rax", "%rcx", "%rdx", "%rbx",
+    "%rsp", "%rbp", "%rsi", "%rdi", "%r8", "%r9", "%r10", "%r11", "%r12", "%r13", "%r14",
+    "%r15");
+
+  /** What a program printed, whether it got to its end, and the fault
+      that stopped it if one did */
+  public static class Outcome {
+    public final String output;
+    public final boolean finished;
+    public final String fault;
+    Outcome(String output, boolean finished, String fault) {
+      this.output = output;
+      this.finished = finished;
+      this.fault = fault;
+    }
+    /** Whether two runs agree as far as both of them got */
+    public boolean agrees(Outcome other) {
+      if (this.finished && other.finished) {
+        return this.output.equals(other.output) && Objects.equals(this.fault, other.fault);
+      }
+      return this.finished ? this.output.startsWith(other.output)
+        : other.output.startsWith(this.output);
+    }
+    @Override
+    public String toString() {
+      return this.output + (this.fault != null ? this.fault + "\n"
+        : this.finished ? "" : "...\n");
+    }
+  }
+
+  /** A pass changed what a program prints */
+  public static class Mismatch extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+    public Mismatch(String message) {
+      super(message);
+    }
+  }
+
+  private final int size;
+  private final int[] op, d, a, b, next, alt;
+  // the block of every instruction, and whether it is the last of it
+  private final int[] block;
+  private final boolean[] ends;
+  // phi i takes phiArgs[k] when its block is entered from block
+  // phiPreds[k], for k from phiStart[i] up to phiStart[i + 1]; the first
+  // phi of a block has all the phis of the block in phiGroup
+  private final int[] phiStart, phiArgs, phiPreds;
+  private final int[][] phiGroup;
+  private final long[] init;
+  private final long[] scratch;
+  private final int entry;
+
+  /** Pack prog, reading pseudo-registers, or the locations the register
+      allocator chose when allocated is set */
+  public Interp(Ast.Target.Prog prog, boolean allocated) {
+    List<Ast.Target.Instr> instrs = prog.instructions;
+    this.size = instrs.size();
+    this.op = new int[this.size];
+    this.d = new int[this.size];
+    this.a = new int[this.size];
+    this.b = new int[this.size];
+    this.next = new int[this.size];
+    this.alt = new int[this.size];
+    this.phiStart = new int[this.size + 1];
+    this.phiGroup = new int[this.size][];
+
+    Cfg cfg = new Cfg(prog);
+    this.entry = Math.max(cfg.entry, 0);
+    this.block = cfg.blockOf;
+    this.ends = new boolean[this.size];
+    for (int[] instrsOf : cfg.blocks) {
+      this.ends[instrsOf[instrsOf.length - 1]] = true;
+    }
+
+    // registers: locations first, then one for every distinct immediate
+    int locations = 0;
+    for (Ast.Target.Instr instr : instrs) {
+      if (instr.def() != null) {
+        locations = Math.max(locations, location(instr.def(), allocated) + 1);
+      }
+      for (Ast.Target.Dest use : instr.uses()) {
+        locations = Math.max(locations, location(use, allocated) + 1);
+      }
+    }
+    Map<Long, Integer> constants = new LinkedHashMap<>();
+    List<Integer> args = new ArrayList<>(), preds = new ArrayList<>();
+    for (int i = 0; i < this.size; i++) {
+      Ast.Target.Instr instr = instrs.get(i);
+      this.phiStart[i] = args.size();
+      this.next[i] = cfg.indexOf(instr.outLabel1);
+      this.alt[i] = cfg.indexOf(instr.outLabel2);
+      if (instr.def() != null) {
+        this.d[i] = location(instr.def(), allocated);
+      }
+      if (instr instanceof Ast.Target.Instr.MoveImm) {
+        this.op[i] = COPY;
+        this.a[i] = constant(constants, locations, ((Ast.Target.Instr.MoveImm) instr).imm);
+      } else if (instr instanceof Ast.Target.Instr.MoveCp) {
+        this.op[i] = COPY;
+        this.a[i] = location(((Ast.Target.Instr.MoveCp) instr).source, allocated);
+      } else if (instr instanceof Ast.Target.Instr.MoveBinop) {
+        Ast.Target.Instr.MoveBinop move = (Ast.Target.Instr.MoveBinop) instr;
+        this.op[i] = ADD + move.op.ordinal();
+        this.a[i] = location(move.leftArg, allocated);
+        this.b[i] = move.rightArg != null ? location(move.rightArg, allocated)
+          : constant(constants, locations, move.imm);
+      } else if (instr instanceof Ast.Target.Instr.MoveUnop) {
+        Ast.Target.Instr.MoveUnop move = (Ast.Target.Instr.MoveUnop) instr;
+        this.op[i] = move.op == Ast.Source.Unop.Negate ? NEG : NOT;
+        this.a[i] = location(move.arg, allocated);
+      } else if (instr instanceof Ast.Target.Instr.UBranch) {
+        Ast.Target.Instr.UBranch branch = (Ast.Target.Instr.UBranch) instr;
+        this.op[i] = EQ + branch.op.ordinal();
+        this.a[i] = location(branch.arg, allocated);
+        this.b[i] = constant(constants, locations, 0);
+      } else if (instr instanceof Ast.Target.Instr.BBranch) {
+        Ast.Target.Instr.BBranch branch = (Ast.Target.Instr.BBranch) instr;
+        this.op[i] = EQ + branch.op.ordinal();
+        this.a[i] = location(branch.leftArg, allocated);
+        this.b[i] = location(branch.rightArg, allocated);
+      } else if (instr instanceof Ast.Target.Instr.Goto) {
+        this.op[i] = GOTO;
+      } else if (instr instanceof Ast.Target.Instr.Print) {
+        this.op[i] = PRINT;
+        this.a[i] = location(((Ast.Target.Instr.Print) instr).dest, allocated);
+      } else if (instr instanceof Ast.Target.Instr.Phi) {
+        Ast.Target.Instr.Phi phi = (Ast.Target.Instr.Phi) instr;
+        this.op[i] = PHI;
+        for (int k = 0; k < phi.args.length; k++) {
+          args.add(location(phi.args[k], allocated));
+          int pred = cfg.indexOf(phi.predLabels[k]);
+          preds.add(pred != -1 ? cfg.blockOf[pred] : -1);
+        }
+      } else if (instr instanceof Ast.Target.Instr.Return) {
+        this.op[i] = RETURN;
+      } else {
+        this.op[i] = NOP;
+      }
+    }
+    this.phiStart[this.size] = args.size();
+    this.phiArgs = args.stream().mapToInt(Integer::intValue).toArray();
+    this.phiPreds = preds.stream().mapToInt(Integer::intValue).toArray();
+
+    // the phis of a block take their values all at once, when the first
+    // of them is reached
+    int longest = 0;
+    for (int[] instrsOf : cfg.blocks) {
+      int[] group = Arrays.stream(instrsOf).filter(i -> this.op[i] == PHI).toArray();
+      if (group.length > 0) {
+        this.phiGroup[group[0]] = group;
+        longest = Math.max(longest, group.length);
+      }
+    }
+    this.scratch = new long[longest];
+    this.init = new long[locations + constants.size()];
+    for (Map.Entry<Long, Integer> constant : constants.entrySet()) {
+      this.init[constant.getValue()] = constant.getKey();
+    }
+  }
+
+  private static int location(Ast.Target.Dest dest, boolean allocated) {
+    if (!allocated) {
+      return dest.loc;
+    }
+    return dest.reg != null ? REGS.indexOf(dest.reg) : REGS.size() + dest.slot;
+  }
+
+  private static int constant(Map<Long, Integer> constants, int locations, long value) {
+    return constants.computeIfAbsent(value, v -> locations + constants.size());
+  }
+
+  /** Run for at most fuel steps, passing everything printed to print, and
+      tell whether the program got to its end */
+  public boolean run(LongConsumer print, long fuel) {
+    long[] r = this.init.clone();
+    int[] op = this.op, d = this.d, a = this.a, b = this.b, next = this.next;
+    int[] block = this.block;
+    int pc = this.entry;
+    // the block control came from, for choosing phi arguments
+    int from = -1;
+    for (long step = 0; step < fuel; step++) {
+      switch (op[pc]) {
+        case COPY: r[d[pc]] = r[a[pc]]; break;
+        case ADD: r[d[pc]] = r[a[pc]] + r[b[pc]]; break;
+        case SUB: r[d[pc]] = r[a[pc]] - r[b[pc]]; break;
+        case MUL: r[d[pc]] = r[a[pc]] * r[b[pc]]; break;
+        case DIV:
+        case MOD: {
+          long x = r[a[pc]], y = r[b[pc]];
+          if (y == 0 || (x == Long.MIN_VALUE && y == -1)) {
+            throw new ArithmeticException("idivq fault");
+          }
+          r[d[pc]] = op[pc] == DIV ? x / y : x % y;
+          break;
+        }
+        case AND: r[d[pc]] = r[a[pc]] & r[b[pc]]; break;
+        case OR: r[d[pc]] = r[a[pc]] | r[b[pc]]; break;
+        case XOR: r[d[pc]] = r[a[pc]] ^ r[b[pc]]; break;
+        // Java masks long shift counts to six bits, as salq and sarq do
+        case SHL: r[d[pc]] = r[a[pc]] << r[b[pc]]; break;
+        case SAR: r[d[pc]] = r[a[pc]] >> r[b[pc]]; break;
+        case NEG: r[d[pc]] = -r[a[pc]]; break;
+        case NOT: r[d[pc]] = ~r[a[pc]]; break;
+        case EQ: from = block[pc]; pc = r[a[pc]] == r[b[pc]] ? next[pc] : this.alt[pc]; continue;
+        case NEQ: from = block[pc]; pc = r[a[pc]] != r[b[pc]] ? next[pc] : this.alt[pc]; continue;
+        case LT: from = block[pc]; pc = r[a[pc]] < r[b[pc]] ? next[pc] : this.alt[pc]; continue;
+        case LEQ: from = block[pc]; pc = r[a[pc]] <= r[b[pc]] ? next[pc] : this.alt[pc]; continue;
+        case GT: from = block[pc]; pc = r[a[pc]] > r[b[pc]] ? next[pc] : this.alt[pc]; continue;
+        case GEQ: from = block[pc]; pc = r[a[pc]] >= r[b[pc]] ? next[pc] : this.alt[pc]; continue;
+        case GOTO: break;
+        case PRINT: print.accept(r[a[pc]]); break;
+        case PHI: {
+          int[] group = this.phiGroup[pc];
+          if (group == null) {
+            break;
+          }
+          for (int i = 0; i < group.length; i++) {
+            this.scratch[i] = r[phiArg(group[i], from)];
+          }
+          for (int i = 0; i < group.length; i++) {
+            r[d[group[i]]] = this.scratch[i];
+          }
+          break;
+        }
+        case RETURN: return true;
+        default: throw new IllegalStateException("no instruction to run at " + pc);
+      }
+      if (this.ends[pc]) {
+        from = block[pc];
+      }
+      pc = next[pc];
+    }
+    return false;
+  }
+
+  private int phiArg(int phi, int from) {
+    for (int k = this.phiStart[phi]; k < this.phiStart[phi + 1]; k++) {
+      if (this.phiPreds[k] == from) {
+        return this.phiArgs[k];
+      }
+    }
+    throw new IllegalStateException("phi entered from a block it does not name");
+  }
+
+  /** Run for at most fuel steps and collect what happened */
+  public Outcome run(long fuel) {
+    StringBuilder output = new StringBuilder();
+    try {
+      boolean finished = run(x -> output.append(x).append('\n'), fuel);
+      return new Outcome(output.toString(), finished, null);
+    } catch (ArithmeticException e) {
+      return new Outcome(output.toString(), true, e.getMessage());
+    }
+  }
+}
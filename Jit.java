@@ -0,0 +1,347 @@
+// Running a program in process by translating its RTL to JVM bytecode
+import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.util.*;
+import java.util.function.LongConsumer;
+
+/** Translates the instructions of a program into one static method,
+    run(LongConsumer), of a class of its own, and leaves compiling that to
+    the JVM. Every pseudo-register becomes a long local and every label a
+    bytecode offset; bx0_print becomes a call of the LongConsumer. The class
+    is written for the Java 5 verifier so that no stack maps are needed,
+    and is loaded by a class loader of its own, so that it is unloaded once
+    the program has run. */
+public class Jit {
+  // a method's code must fit 64KiB, and a branch can only reach 32KiB away
+  private static final int MAX_CODE = Short.MAX_VALUE;
+
+  private static final int LCONST_0 = 0x09, LCONST_1 = 0x0a, BIPUSH = 0x10, SIPUSH = 0x11,
+    LDC2_W = 0x14, LLOAD = 0x16, LSTORE = 0x37, LADD = 0x61, LSUB = 0x65, LMUL = 0x69,
+    LNEG = 0x75, LSHL = 0x79, LSHR = 0x7b, LAND = 0x7f, LOR = 0x81, LXOR = 0x83,
+    I2L = 0x85, L2I = 0x88, LCMP = 0x94, GOTO = 0xa7, RETURN = 0xb1, ALOAD_0 = 0x2a,
+    INVOKESTATIC = 0xb8, INVOKEINTERFACE = 0xb9, WIDE = 0xc4;
+
+  /** idivq faults where the JVM would quietly wrap around */
+  public static long divide(long left, long right) {
+    return Ast.Source.Binop.Divide.apply(left, right);
+  }
+  public static long modulus(long left, long right) {
+    return Ast.Source.Binop.Modulus.apply(left, right);
+  }
+
+  /** Run the program, passing everything it prints to print */
+  public static void run(Ast.Target.Prog prog, LongConsumer print) {
+    Class<?> program = new Loader().define(translate(prog));
+    try {
+      program.getMethod("run", LongConsumer.class).invoke(null, print);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    } catch (ReflectiveOperationException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static class Loader extends ClassLoader {
+    Loader() {
+      super(Jit.class.getClassLoader());
+    }
+    Class<?> define(byte[] bytes) {
+      return defineClass(null, bytes, 0, bytes.length);
+    }
+  }
+
+  // the constant pool of the class being written
+  private static class Pool {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final DataOutputStream out = new DataOutputStream(this.bytes);
+    final Map<String, Integer> entries = new HashMap<>();
+    int count = 1;
+
+    private int entry(String key, int slots, IOAction write) {
+      Integer index = this.entries.get(key);
+      if (index == null) {
+        index = this.count;
+        try {
+          write.run();
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+        this.count += slots;
+        this.entries.put(key, index);
+      }
+      return index;
+    }
+    int utf8(String str) {
+      return entry("u" + str, 1, () -> {
+        this.out.writeByte(1);
+        this.out.writeUTF(str);
+      });
+    }
+    int cls(String name) {
+      int utf = utf8(name);
+      return entry("c" + name, 1, () -> {
+        this.out.writeByte(7);
+        this.out.writeShort(utf);
+      });
+    }
+    int lng(long value) {
+      return entry("j" + value, 2, () -> {
+        this.out.writeByte(5);
+        this.out.writeLong(value);
+      });
+    }
+    int method(int tag, String owner, String name, String descriptor) {
+      int cls = cls(owner), nm = utf8(name), desc = utf8(descriptor);
+      int nameAndType = entry("n" + name + descriptor, 1, () -> {
+        this.out.writeByte(12);
+        this.out.writeShort(nm);
+        this.out.writeShort(desc);
+      });
+      return entry("m" + owner + "." + name + descriptor, 1, () -> {
+        this.out.writeByte(tag);
+        this.out.writeShort(cls);
+        this.out.writeShort(nameAndType);
+      });
+    }
+  }
+  private interface IOAction {
+    void run() throws IOException;
+  }
+
+  // the code of the method being written
+  private static class Code {
+    byte[] bytes = new byte[1024];
+    int size = 0;
+    void u1(int b) {
+      if (this.size == this.bytes.length) {
+        this.bytes = Arrays.copyOf(this.bytes, 2 * this.bytes.length);
+      }
+      this.bytes[this.size++] = (byte) b;
+    }
+    void u2(int v) {
+      u1(v >> 8);
+      u1(v);
+    }
+    // lload or lstore of a long local
+    void local(int op, int index) {
+      if (index <= 3) {
+        u1(op + 8 + index);
+      } else if (index <= 255) {
+        u1(op);
+        u1(index);
+      } else {
+        u1(WIDE);
+        u1(op);
+        u2(index);
+      }
+    }
+  }
+
+  // the first local slot of a pseudo-register, after the LongConsumer
+  private static int local(Ast.Target.Dest dest) {
+    return 1 + 2 * dest.loc;
+  }
+
+  private static final Map<Ast.Source.Binop, Integer> BINOPS = new EnumMap<>(Ast.Source.Binop.class);
+  static {
+    BINOPS.put(Ast.Source.Binop.Add, LADD);
+    BINOPS.put(Ast.Source.Binop.Subtract, LSUB);
+    BINOPS.put(Ast.Source.Binop.Multiply, LMUL);
+    BINOPS.put(Ast.Source.Binop.BitAnd, LAND);
+    BINOPS.put(Ast.Source.Binop.BitOr, LOR);
+    BINOPS.put(Ast.Source.Binop.BitXor, LXOR);
+    BINOPS.put(Ast.Source.Binop.Lshift, LSHL);
+    BINOPS.put(Ast.Source.Binop.Rshift, LSHR);
+  }
+
+  private static final Map<Ast.Source.CompOp, Integer> BRANCHES = new EnumMap<>(Ast.Source.CompOp.class);
+  static {
+    BRANCHES.put(Ast.Source.CompOp.Eq, 0x99);
+    BRANCHES.put(Ast.Source.CompOp.Neq, 0x9a);
+    BRANCHES.put(Ast.Source.CompOp.Lt, 0x9b);
+    BRANCHES.put(Ast.Source.CompOp.Geq, 0x9c);
+    BRANCHES.put(Ast.Source.CompOp.Gt, 0x9d);
+    BRANCHES.put(Ast.Source.CompOp.Leq, 0x9e);
+  }
+
+  /** The class file holding the program */
+  static byte[] translate(Ast.Target.Prog prog) {
+    Pool pool = new Pool();
+    Code code = new Code();
+    int maxLoc = 0;
+    for (Ast.Target.Instr instr : prog.instructions) {
+      if (instr.def() != null) {
+        maxLoc = Math.max(maxLoc, instr.def().loc);
+      }
+      for (Ast.Target.Dest use : instr.uses()) {
+        maxLoc = Math.max(maxLoc, use.loc);
+      }
+    }
+    // the verifier wants every local written before it is read
+    for (int loc = 0; loc <= maxLoc; loc++) {
+      code.u1(LCONST_0);
+      code.local(LSTORE, 1 + 2 * loc);
+    }
+
+    Map<Integer, Integer> labels = new HashMap<>();
+    // branch offsets to patch, each an instruction's start and its label
+    List<int[]> fixups = new ArrayList<>();
+    for (Ast.Target.Instr instr : prog.instructions) {
+      if (!(instr instanceof Ast.Target.Instr.Comment)) {
+        labels.put(instr.inLabel, code.size);
+      }
+      if (instr instanceof Ast.Target.Instr.MoveImm) {
+        Ast.Target.Instr.MoveImm move = (Ast.Target.Instr.MoveImm) instr;
+        constant(code, pool, move.imm);
+        code.local(LSTORE, local(move.dest));
+      } else if (instr instanceof Ast.Target.Instr.MoveCp) {
+        Ast.Target.Instr.MoveCp move = (Ast.Target.Instr.MoveCp) instr;
+        code.local(LLOAD, local(move.source));
+        code.local(LSTORE, local(move.dest));
+      } else if (instr instanceof Ast.Target.Instr.MoveBinop) {
+        Ast.Target.Instr.MoveBinop move = (Ast.Target.Instr.MoveBinop) instr;
+        boolean shift = move.op == Ast.Source.Binop.Lshift || move.op == Ast.Source.Binop.Rshift;
+        code.local(LLOAD, local(move.leftArg));
+        if (move.rightArg != null) {
+          code.local(LLOAD, local(move.rightArg));
+          if (shift) {
+            code.u1(L2I);
+          }
+        } else if (shift) {
+          code.u1(BIPUSH);
+          code.u1((int) (move.imm & 63));
+        } else {
+          constant(code, pool, move.imm);
+        }
+        if (move.op == Ast.Source.Binop.Divide || move.op == Ast.Source.Binop.Modulus) {
+          code.u1(INVOKESTATIC);
+          code.u2(pool.method(10, "Jit", move.op == Ast.Source.Binop.Divide ? "divide"
+            : "modulus", "(JJ)J"));
+        } else {
+          code.u1(BINOPS.get(move.op));
+        }
+        code.local(LSTORE, local(move.dest));
+      } else if (instr instanceof Ast.Target.Instr.MoveUnop) {
+        Ast.Target.Instr.MoveUnop move = (Ast.Target.Instr.MoveUnop) instr;
+        code.local(LLOAD, local(move.arg));
+        if (move.op == Ast.Source.Unop.Negate) {
+          code.u1(LNEG);
+        } else {
+          constant(code, pool, -1);
+          code.u1(LXOR);
+        }
+        code.local(LSTORE, local(move.dest));
+      } else if (instr instanceof Ast.Target.Instr.UBranch) {
+        Ast.Target.Instr.UBranch branch = (Ast.Target.Instr.UBranch) instr;
+        code.local(LLOAD, local(branch.arg));
+        code.u1(LCONST_0);
+        branch(code, fixups, branch.op, branch.outLabel1);
+      } else if (instr instanceof Ast.Target.Instr.BBranch) {
+        Ast.Target.Instr.BBranch branch = (Ast.Target.Instr.BBranch) instr;
+        code.local(LLOAD, local(branch.leftArg));
+        code.local(LLOAD, local(branch.rightArg));
+        branch(code, fixups, branch.op, branch.outLabel1);
+      } else if (instr instanceof Ast.Target.Instr.Print) {
+        code.u1(ALOAD_0);
+        code.local(LLOAD, local(((Ast.Target.Instr.Print) instr).dest));
+        code.u1(INVOKEINTERFACE);
+        code.u2(pool.method(11, "java/util/function/LongConsumer", "accept", "(J)V"));
+        code.u1(3);
+        code.u1(0);
+      } else if (instr instanceof Ast.Target.Instr.Return) {
+        code.u1(RETURN);
+        continue;
+      } else if (instr instanceof Ast.Target.Instr.Goto) {
+        // only the jump
+      } else if (instr instanceof Ast.Target.Instr.Comment) {
+        continue;
+      } else {
+        throw new IllegalArgumentException("cannot translate " + instr.toRtl());
+      }
+      // conditional branches go to outLabel2 when they do not jump
+      int next = instr instanceof Ast.Target.Instr.UBranch
+        || instr instanceof Ast.Target.Instr.BBranch ? instr.outLabel2 : instr.outLabel1;
+      if (instr.shouldJump) {
+        fixups.add(new int[] { code.size, next });
+        code.u1(GOTO);
+        code.u2(0);
+      }
+    }
+    if (code.size > MAX_CODE) {
+      throw new IllegalArgumentException(String.format(
+        "program too large to run in process (%d bytes of bytecode)", code.size));
+    }
+    for (int[] fixup : fixups) {
+      Integer target = labels.get(fixup[1]);
+      if (target == null) {
+        throw new IllegalStateException("no instruction at L" + fixup[1]);
+      }
+      int offset = target - fixup[0];
+      code.bytes[fixup[0] + 1] = (byte) (offset >> 8);
+      code.bytes[fixup[0] + 2] = (byte) offset;
+    }
+
+    int thisClass = pool.cls("BxProgram"), superClass = pool.cls("java/lang/Object");
+    int name = pool.utf8("run"), descriptor = pool.utf8("(Ljava/util/function/LongConsumer;)V");
+    int codeName = pool.utf8("Code");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(0xcafebabe);
+      out.writeShort(0);
+      out.writeShort(49);
+      out.writeShort(pool.count);
+      pool.bytes.writeTo(out);
+      out.writeShort(0x21);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(0);
+      out.writeShort(0);
+      // the one method, public static
+      out.writeShort(1);
+      out.writeShort(0x9);
+      out.writeShort(name);
+      out.writeShort(descriptor);
+      out.writeShort(1);
+      out.writeShort(codeName);
+      out.writeInt(12 + code.size);
+      out.writeShort(4);
+      out.writeShort(1 + 2 * (maxLoc + 1));
+      out.writeInt(code.size);
+      out.write(code.bytes, 0, code.size);
+      out.writeShort(0);
+      out.writeShort(0);
+      out.writeShort(0);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void constant(Code code, Pool pool, long value) {
+    if (value == 0 || value == 1) {
+      code.u1(LCONST_0 + (int) value);
+    } else if (value == (short) value) {
+      code.u1(value == (byte) value ? BIPUSH : SIPUSH);
+      if (value == (byte) value) {
+        code.u1((int) value);
+      } else {
+        code.u2((int) value);
+      }
+      code.u1(I2L);
+    } else {
+      code.u1(LDC2_W);
+      code.u2(pool.lng(value));
+    }
+  }
+
+  // compare the two longs on the stack and branch to label if op holds
+  private static void branch(Code code, List<int[]> fixups, Ast.Source.CompOp op, int label) {
+    code.u1(LCMP);
+    fixups.add(new int[] { code.size, label });
+    code.u1(BRANCHES.get(op));
+    code.u2(0);
+  }
+}
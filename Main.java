@@ -1,256 +1,271 @@
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class Main {
-  private static int mVarCounter = 0;
-  private static int mLabelCounter = 0;
-  private static HashMap<String, Ast.Target.Dest> mVars = new HashMap<>();
-  private static HashMap<Integer, Integer> mLabelChanges = new LinkedHashMap<>();
-  private static List<Ast.Target.Instr> mInstrs = new ArrayList<>();
+  // compilers between two files, kept for their warmed-up lexer and parser
+  private static final Queue<Compiler> mIdle = new ConcurrentLinkedQueue<>();
 
   public static void main(String[] args) throws Exception {
-    for (String bxFile : args) {
-      if (! bxFile.endsWith(".bx"))
-        throw new RuntimeException(String.format("%s does not end in .bx", bxFile));
-      Ast.Source.Prog sourceProg = Ast.Source.readProgram(bxFile);
-      // System.out.println(sourceProg.toString());
-      int Lend = RTLstmts(sourceProg.stmts, 0);
-      mInstrs.add(new Ast.Target.Instr.Return(Lend));
-      mLabelChanges.put(Lend, ++mLabelCounter);
-      Ast.Target.Prog targetProg = new Ast.Target.Prog(mInstrs, mLabelChanges);
-      // System.out.println(targetProg.toRtl());
-      String stem = bxFile.substring(0, bxFile.length() - 3);
-      String amd64File = stem + ".s";
-      PrintStream out = new PrintStream(amd64File);
-      out.println(String.format("\t.file \"%s\"", bxFile));
-      out.println(targetProg.toAmd64(mVarCounter /* varCount */));
-      out.close();
-      String gccCmd = String.format("gcc -no-pie -o %s.exe %s bx0rt.c", stem, amd64File);
-      Process gccProc = Runtime.getRuntime().exec(gccCmd);
-      gccProc.waitFor();
-    }
-  }
-
-  // return type for RTLi containing dest where calculation was stored and outlabel
-  private static class DestLabelPair {
-    public Ast.Target.Dest dest;
-    public int outLabel;
-    public DestLabelPair(Ast.Target.Dest dest, int outLabel) {
-      this.dest = dest;
-      this.outLabel = outLabel;
-    }
+    System.exit(run(new File("."), args, System.out, System.err));
   }
 
-  // return type for RTLb containing true and false outlabels
-  private static class TrueFalseLabels {
-    public int trueLabel;
-    public int falseLabel;
-    public TrueFalseLabels(int trueLabel, int falseLabel) {
-      this.trueLabel = trueLabel;
-      this.falseLabel = falseLabel;
+  /** Compile the files named on a command line, relative to dir, and
+      return the exit status */
+  public static int run(File dir, String[] args, PrintStream out, PrintStream err)
+    throws InterruptedException {
+    Compiler.Options options = new Compiler.Options();
+    int jobs = 1;
+    String cacheDir = null;
+    long cacheSize = 256L << 20;
+    boolean cacheStats = false;
+    boolean jit = false, interp = false;
+    // what needs the whole program, which -stream and -incremental never see
+    List<String> wholeProgram = new ArrayList<>();
+    List<String> bxFiles = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("-O2")) {
+        options.optLevel = 2;
+        wholeProgram.add(arg);
+      } else if (arg.startsWith("-peephole=")) {
+        wholeProgram.add(arg);
+        String rules = arg.substring("-peephole=".length());
+        options.peepholeRules = rules.equals("none") ? new ArrayList<>()
+          : Arrays.asList(rules.split(","));
+      } else if (arg.equals("-peephole-stats")) {
+        options.peepholeStats = true;
+        wholeProgram.add(arg);
+      } else if (arg.equals("-integrated-as")) {
+        options.integratedAs = true;
+        wholeProgram.add(arg);
+      } else if (arg.equals("-jit")) {
+        jit = true;
+        wholeProgram.add(arg);
+      } else if (arg.equals("-interp")) {
+        interp = true;
+        wholeProgram.add(arg);
+      } else if (arg.equals("-check")) {
+        options.check = true;
+        wholeProgram.add(arg);
+      } else if (arg.equals("-parser=pratt") || arg.equals("-parser=antlr")) {
+        options.pratt = arg.endsWith("pratt");
+        // the last -parser given is the one that counts
+        wholeProgram.remove("-parser=antlr");
+        if (!options.pratt) {
+          wholeProgram.add(arg);
+        }
+      } else if (arg.equals("-incremental")) {
+        options.incremental = true;
+      } else if (arg.equals("-stream")) {
+        options.stream = true;
+      } else if (arg.startsWith("-cache=")) {
+        cacheDir = arg.substring("-cache=".length());
+      } else if (arg.startsWith("-cache-size=")) {
+        String size = arg.substring("-cache-size=".length());
+        try {
+          cacheSize = Long.parseLong(size) << 20;
+        } catch (NumberFormatException e) {
+          cacheSize = -1;
+        }
+        if (cacheSize < 0) {
+          err.println(String.format("-cache-size needs a size in MB, not '%s'", size));
+          return 2;
+        }
+      } else if (arg.equals("-cache-stats")) {
+        cacheStats = true;
+      } else if (arg.startsWith("-j")) {
+        String count = arg.length() > 2 ? arg.substring(2)
+          : i + 1 < args.length ? args[++i] : "";
+        try {
+          jobs = Integer.parseInt(count);
+        } catch (NumberFormatException e) {
+          jobs = 0;
+        }
+        if (jobs < 1) {
+          err.println(String.format("-j needs a positive number of jobs, not '%s'", count));
+          return 2;
+        }
+      } else {
+        bxFiles.add(arg);
+      }
     }
-    public TrueFalseLabels reverse() {
-      int temp = this.trueLabel;
-      this.trueLabel = this.falseLabel;
-      this.falseLabel = temp;
-      return this;
+    if (options.stream && options.incremental) {
+      err.println("-incremental already compiles a statement at a time; leave out -stream");
+      return 2;
     }
-  }
-
-  private static int RTLstmts(List<Ast.Source.Stmt> stmts, int Li) {
-    int Lo = Li;
-    for (Ast.Source.Stmt stmt : stmts) {
-      Lo = RTLs(stmt, Lo);
+    if ((options.stream || options.incremental) && !wholeProgram.isEmpty()) {
+      err.println(String.format("%s compiles a statement at a time and cannot be used with %s",
+        options.stream ? "-stream" : "-incremental", String.join(" ", wholeProgram)));
+      return 2;
     }
-   return Lo;
-  }
-
-  // RTL for a statement. returns outlabel
-  private static int RTLs(Ast.Source.Stmt stmt, int Li) {
-    if (stmt instanceof Ast.Source.Stmt.Move) {
-      Ast.Source.Stmt.Move move = (Ast.Source.Stmt.Move) stmt;
-      Ast.Target.Dest sourceDest;
-      int Lo;
-      if (move.source.getType() == Ast.Source.Types.int64) {
-        DestLabelPair res = RTLi(move.source, Li);
-        Lo = res.outLabel;
-        sourceDest = res.dest;
-      } else {
-        TrueFalseLabels res = RTLb(move.source, Li);
-        Lo = ++mLabelCounter;
-        sourceDest = new Ast.Target.Dest(mVarCounter++);
-        mInstrs.add(new Ast.Target.Instr.MoveImm(res.trueLabel, sourceDest, 1, Lo));
-        mInstrs.add(new Ast.Target.Instr.MoveImm(res.falseLabel, sourceDest, 0, Lo));
+    for (String bxFile : bxFiles) {
+      if (! bxFile.endsWith(".bx")) {
+        err.println(String.format("%s does not end in .bx", bxFile));
+        return 2;
       }
-      Ast.Target.Dest targetDest = mVars.get(move.dest.var);
-      // check if new mapping needs to be created/if copy needs to be done
-      if (targetDest == null && mVars.containsValue(sourceDest)) {
-        Ast.Target.Dest freshDest = new Ast.Target.Dest(mVarCounter++);
-        mVars.put(move.dest.var, freshDest);
-        Lo = ++mLabelCounter;
-        mInstrs.add(new Ast.Target.Instr.MoveCp(Lo - 1, freshDest, sourceDest, Lo));
-      } else if (targetDest == null) {
-        mVars.put(move.dest.var, sourceDest);
-      } else {
-        Lo = ++mLabelCounter;
-        mInstrs.add(new Ast.Target.Instr.MoveCp(Lo - 1, targetDest, sourceDest, Lo));
-      }
-      return Lo;
     }
-    else if (stmt instanceof Ast.Source.Stmt.IfElse) {
-      Ast.Source.Stmt.IfElse ifElse = (Ast.Source.Stmt.IfElse) stmt;
-      TrueFalseLabels res = RTLb(ifElse.condition, Li);
-      int Lo = RTLstmts(ifElse.thenBranch, res.trueLabel);
-      // change last instruction to have correct outLabel
-      if (ifElse.elseBranch != null && !ifElse.elseBranch.isEmpty()) {
-        int L1 = RTLstmts(ifElse.elseBranch, res.falseLabel);
-        mLabelChanges.put(L1, Lo);
-      } else if (!ifElse.thenBranch.isEmpty()) {
-        mLabelChanges.put(Lo, res.falseLabel);
-        Lo = res.falseLabel;
+    Cache cache = null;
+    if (cacheDir != null) {
+      try {
+        cache = new Cache(Compiler.resolve(dir, cacheDir).toPath(), cacheSize);
+      } catch (IOException e) {
+        err.println(String.format("cannot use cache %s: %s", cacheDir, e));
+        return 2;
       }
-      return Lo;
-    }
-    else if (stmt instanceof Ast.Source.Stmt.While) {
-      Ast.Source.Stmt.While whileStmt = (Ast.Source.Stmt.While) stmt;
-      TrueFalseLabels res = RTLb(whileStmt.condition, Li);
-      int Lo = RTLstmts(whileStmt.body, res.trueLabel);
-      mInstrs.add(new Ast.Target.Instr.Goto(Lo, Li));
-      return res.falseLabel;
     }
-    else if (stmt instanceof Ast.Source.Stmt.Block) {
-      Ast.Source.Stmt.Block block = (Ast.Source.Stmt.Block) stmt;
-      return RTLstmts(block.stmts, Li);
+    // files are compiled on a work-stealing pool, and gcc runs on a pool of
+    // its own so that no more than `jobs` processes are started at a time
+    ExecutorService compilers = Executors.newWorkStealingPool(jobs);
+    ExecutorService assemblers = Executors.newFixedThreadPool(jobs);
+    List<CompletableFuture<String>> results = new ArrayList<>();
+    for (String bxFile : bxFiles) {
+      String stem = bxFile.substring(0, bxFile.length() - 3);
+      String outFile = stem + options.outputExtension();
+      if (jit || interp) {
+        // nothing to write or link: what the program prints is the report
+        boolean useJit = jit;
+        results.add(CompletableFuture.supplyAsync(() -> {
+          try {
+            return withCompiler(compiler -> compiler.run(options, dir, bxFile, useJit));
+          } catch (Exception e) {
+            throw new CompletionException(e);
+          }
+        }, compilers));
+        continue;
+      }
+      Cache fileCache = cache;
+      results.add(CompletableFuture.supplyAsync(() -> {
+        String key = null;
+        try {
+          // a hit skips both the compiler and gcc
+          if (fileCache != null) {
+            key = fileCache.key(Compiler.resolve(dir, bxFile),
+              Compiler.resolve(dir, "bx0rt.c"), options.key());
+            String log = fileCache.fetch(key, Compiler.resolve(dir, outFile),
+              Compiler.resolve(dir, stem + ".exe"));
+            if (log != null) {
+              return CompletableFuture.completedFuture(log);
+            }
+          }
+          String log = withCompiler(
+            compiler -> compiler.compile(options, dir, bxFile, outFile));
+          String storeKey = key;
+          return CompletableFuture.supplyAsync(() -> {
+            try {
+              assemble(options, dir, stem);
+              if (storeKey != null) {
+                fileCache.store(storeKey, Compiler.resolve(dir, outFile),
+                  Compiler.resolve(dir, stem + ".exe"), log);
+              }
+              return log;
+            } catch (IOException | InterruptedException e) {
+              throw new CompletionException(e);
+            }
+          }, assemblers);
+        } catch (Exception e) {
+          throw new CompletionException(e);
+        }
+      }, compilers).thenCompose(assembled -> assembled));
     }
-    else if (stmt instanceof Ast.Source.Stmt.Print) {
-      Ast.Source.Stmt.Print print = (Ast.Source.Stmt.Print) stmt;
-      if (print.arg.getType() == Ast.Source.Types.int64) {
-        DestLabelPair res = RTLi(print.arg, Li);
-        int L1 = ++mLabelCounter;
-        mInstrs.add(new Ast.Target.Instr.Print(res.outLabel, res.dest, L1));
-        return L1;
-      } else {
-        TrueFalseLabels res = RTLb(print.arg, Li);
-        Ast.Target.Dest dest = new Ast.Target.Dest(mVarCounter++);
-        int L1 = ++mLabelCounter;
-        int L2 = ++mLabelCounter;
-        mInstrs.add(new Ast.Target.Instr.MoveImm(res.trueLabel, dest, 1, L1));
-        mInstrs.add(new Ast.Target.Instr.MoveImm(res.falseLabel, dest, 0, L1));
-        mInstrs.add(new Ast.Target.Instr.Print(L1, dest, L2));
-        return L2;
+    // report in the order of the command line
+    int status = 0;
+    for (int k = 0; k < results.size(); k++) {
+      try {
+        out.print(results.get(k).join());
+      } catch (CompletionException e) {
+        status = 1;
+        if (e.getCause() instanceof Ast.Source.CompileError) {
+          out.println(e.getCause().getMessage());
+        } else if (e.getCause() instanceof Interp.Mismatch) {
+          err.print(e.getCause().getMessage());
+        } else if (e.getCause() instanceof ArithmeticException
+            || e.getCause() instanceof IllegalArgumentException) {
+          // a division that would have trapped in the executable, or a
+          // program beyond what -jit or -integrated-as can handle
+          err.println(String.format("%s: %s", bxFiles.get(k), e.getCause().getMessage()));
+        } else if (e.getCause() instanceof NoSuchFileException) {
+          err.println(String.format("%s: no such file", bxFiles.get(k)));
+        } else if (e.getCause() instanceof IOException) {
+          err.println(String.format("%s: %s", bxFiles.get(k),
+            e.getCause().getMessage()));
+        } else {
+          e.getCause().printStackTrace(err);
+        }
       }
     }
-    return -1;
+    assemblers.shutdown();
+    compilers.shutdown();
+    if (cacheStats && cache != null) {
+      out.println(String.format("cache: %d hits, %d misses", cache.hits.get(),
+        cache.misses.get()));
+    }
+    return status;
   }
 
-  // RTL for int exprs. takes in expr and inlabel; returns destLabel (bottom-up)
-  private static DestLabelPair RTLi(Ast.Source.Expr expr, int Li) {
-    if (expr instanceof Ast.Source.Expr.IntImm) {
-      Ast.Source.Expr.IntImm intImm = (Ast.Source.Expr.IntImm) expr;
-      Ast.Target.Dest dest = new Ast.Target.Dest(mVarCounter++);
-      int Lo = ++mLabelCounter;
-      mInstrs.add(new Ast.Target.Instr.MoveImm(Li, dest, intImm.value, Lo));
-      return new DestLabelPair(dest, Lo);
-    }
-    else if (expr instanceof Ast.Source.Expr.Read) {
-      Ast.Source.Expr.Read read = (Ast.Source.Expr.Read) expr;
-      return new DestLabelPair(lookup(read.dest.var), Li);
-    }
-    else if (expr instanceof Ast.Source.Expr.UnopApp) {
-      Ast.Source.Expr.UnopApp unopApp = (Ast.Source.Expr.UnopApp) expr;
-      Ast.Target.Dest dest = new Ast.Target.Dest(mVarCounter++);
-      DestLabelPair argRes = RTLi(unopApp.arg, Li);
-      int Lo = ++mLabelCounter;
-      mInstrs.add(new Ast.Target.Instr.MoveUnop(
-        argRes.outLabel, dest, unopApp.op, argRes.dest, Lo));
-      return new DestLabelPair(dest, Lo);
-    }
-    else if (expr instanceof Ast.Source.Expr.BinopApp) {
-      Ast.Source.Expr.BinopApp binopApp = (Ast.Source.Expr.BinopApp) expr;
-      Ast.Target.Dest dest = new Ast.Target.Dest(mVarCounter++);
-      DestLabelPair leftRes = RTLi(binopApp.leftArg, Li);
-      DestLabelPair rightRes = RTLi(binopApp.rightArg, leftRes.outLabel);
-      int Lo = ++mLabelCounter;
-      mInstrs.add(new Ast.Target.Instr.MoveBinop(
-        rightRes.outLabel, dest, leftRes.dest, binopApp.op, rightRes.dest, Lo));
-      return new DestLabelPair(dest, Lo);
-    }
-    return null;
+  private interface Task {
+    String run(Compiler compiler) throws Exception;
   }
 
-  // RTL for bool exprs. takes in expr and inlabel; returns true and false outLabels (bottom-up)
-  private static TrueFalseLabels RTLb(Ast.Source.Expr expr, int Li) {
-    if (expr instanceof Ast.Source.Expr.BoolImm) {
-      Ast.Source.Expr.BoolImm boolImm = (Ast.Source.Expr.BoolImm) expr;
-      return boolImm.isTrue ? new TrueFalseLabels(Li, ++mLabelCounter)
-        : new TrueFalseLabels(++mLabelCounter, Li);
-    }
-    else if (expr instanceof Ast.Source.Expr.Read) {
-      Ast.Source.Expr.Read read = (Ast.Source.Expr.Read) expr;
-      TrueFalseLabels ret = new TrueFalseLabels(++mLabelCounter, ++mLabelCounter);
-      // jump to true label if not zero, otherwise jump to false label
-      mInstrs.add(new Ast.Target.Instr.UBranch(Li, Ast.Source.CompOp.Neq,
-        lookup(read.dest.var), ret.trueLabel, ret.falseLabel));
-      return ret;
+  // run a task on an idle compiler, or on a new one if none is idle
+  private static String withCompiler(Task task) throws Exception {
+    Compiler compiler = mIdle.poll();
+    compiler = compiler != null ? compiler : new Compiler();
+    try {
+      return task.run(compiler);
+    } finally {
+      mIdle.add(compiler);
     }
-    else if (expr instanceof Ast.Source.Expr.UnopApp) {
-      Ast.Source.Expr.UnopApp unopApp = (Ast.Source.Expr.UnopApp) expr;
-      return RTLb(unopApp.arg, Li).reverse();
+  }
+
+  // assemble and link stem.s, or only link stem.o against bx0rt.o
+  private static void assemble(Compiler.Options options, File dir, String stem)
+    throws IOException, InterruptedException {
+    if (options.integratedAs) {
+      buildRuntime(dir);
+      gcc(dir, "-no-pie", "-o", stem + ".exe", stem + ".o", "bx0rt.o");
+    } else {
+      gcc(dir, "-no-pie", "-o", stem + ".exe", stem + ".s", "bx0rt.c");
     }
-    else if (expr instanceof Ast.Source.Expr.BoolOpApp) {
-      Ast.Source.Expr.BoolOpApp boolOpApp = (Ast.Source.Expr.BoolOpApp) expr;
-      TrueFalseLabels leftRes = RTLb(boolOpApp.leftArg, Li);
-      if (boolOpApp.op == Ast.Source.BoolOp.And) {
-        TrueFalseLabels rightRes = RTLb(boolOpApp.rightArg, leftRes.trueLabel);
-        // make sure equivalent cases end up at same place
-        mLabelChanges.put(rightRes.falseLabel, leftRes.falseLabel);
-        return new TrueFalseLabels(rightRes.trueLabel, leftRes.falseLabel);
-      } else {
-        TrueFalseLabels rightRes = RTLb(boolOpApp.rightArg, leftRes.falseLabel);
-        mLabelChanges.put(rightRes.trueLabel, leftRes.trueLabel);
-        return new TrueFalseLabels(leftRes.trueLabel, rightRes.falseLabel);
-      }
+  }
+
+  // compile bx0rt.c into bx0rt.o, unless that is up to date already; the
+  // object is renamed into place so that other builds never see half of it
+  private static synchronized void buildRuntime(File dir)
+    throws IOException, InterruptedException {
+    File source = new File(dir, "bx0rt.c"), object = new File(dir, "bx0rt.o");
+    if (object.exists() && object.lastModified() >= source.lastModified()) {
+      return;
     }
-    else if (expr instanceof Ast.Source.Expr.Comp) {
-      Ast.Source.Expr.Comp comp = (Ast.Source.Expr.Comp) expr;
-      if (comp.leftArg.getType() == Ast.Source.Types.int64) {
-        DestLabelPair leftRes = RTLi(comp.leftArg, Li);
-        DestLabelPair rightRes = RTLi(comp.rightArg, leftRes.outLabel);
-        TrueFalseLabels ret = new TrueFalseLabels(++mLabelCounter, ++mLabelCounter);
-        mInstrs.add(new Ast.Target.Instr.BBranch(rightRes.outLabel, leftRes.dest,
-          comp.op, rightRes.dest, ret.trueLabel, ret.falseLabel));
-        return ret;
-      } else {
-        if (comp.op == Ast.Source.CompOp.Eq) {
-          // (e1 == e2) ≡ (e1 && e2) || ! (e1 || e2)
-          Ast.Source.Expr e1 = new Ast.Source.Expr.BoolOpApp(
-            comp.leftArg, Ast.Source.BoolOp.And, comp.rightArg);
-          Ast.Source.Expr e2 = new Ast.Source.Expr.BoolOpApp(
-            comp.leftArg, Ast.Source.BoolOp.Or, comp.rightArg);
-          Ast.Source.Expr e3 = new Ast.Source.Expr.UnopApp(Ast.Source.Unop.BoolNot, e2);
-          Ast.Source.Expr e4 = new Ast.Source.Expr.BoolOpApp(e1, Ast.Source.BoolOp.Or, e3);
-          return RTLb(e4, Li);
-        }
-        else {
-          // (e1 != e2) ≡ ! (e1 && e2) && (e1 || e2)
-          Ast.Source.Expr e1 = new Ast.Source.Expr.BoolOpApp(
-            comp.leftArg, Ast.Source.BoolOp.And, comp.rightArg);
-          Ast.Source.Expr e2 = new Ast.Source.Expr.BoolOpApp(
-            comp.leftArg, Ast.Source.BoolOp.Or, comp.rightArg);
-          Ast.Source.Expr e3 = new Ast.Source.Expr.UnopApp(Ast.Source.Unop.BoolNot, e1);
-          Ast.Source.Expr e4 = new Ast.Source.Expr.BoolOpApp(e1, Ast.Source.BoolOp.And, e3);
-          return RTLb(e4, Li);
-        }
-      }
+    File tmp = File.createTempFile("bx0rt", ".o", dir);
+    try {
+      gcc(dir, "-c", "-O2", "-o", tmp.getName(), "bx0rt.c");
+      Files.move(tmp.toPath(), object.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      tmp.delete();
     }
-    return null;
   }
 
-  private static Ast.Target.Dest lookup(String var) {
-    Ast.Target.Dest dest = mVars.get(var);
-    if (dest == null) {
-      Ast.Source.raise(Ast.Source.Error.UninitializedVarException, var);
+  // run gcc in dir, failing with what it printed if it fails
+  private static void gcc(File dir, String... args)
+    throws IOException, InterruptedException {
+    List<String> command = new ArrayList<>(Collections.singletonList("gcc"));
+    command.addAll(Arrays.asList(args));
+    Process gcc = new ProcessBuilder(command).directory(dir).redirectErrorStream(true)
+      .start();
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    try (InputStream in = gcc.getInputStream()) {
+      byte[] buf = new byte[4096];
+      for (int n; (n = in.read(buf)) != -1; ) {
+        output.write(buf, 0, n);
+      }
+    }
+    if (gcc.waitFor() != 0) {
+      throw new IOException("gcc failed\n" + output.toString().trim());
     }
-    return dest;
   }
 }
@@ -0,0 +1,100 @@
+// Source text for the ANTLR lexer, read in place from a mapped file
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+/** A CharStream over a memory-mapped file, taking every byte as one
+    character. BX0 is all ASCII, so unlike CharStreams.fromFileName nothing
+    is decoded or copied onto the heap: the lexer reads the page cache, and
+    a token's text is only made into a String when it is asked for, which
+    the default token factory leaves until then. A byte outside ASCII is
+    a lexer error either way, but is reported byte by byte. Files are
+    limited to 2GB, as ANTLR's character indexes are ints. */
+public class MappedCharStream implements CharStream {
+  private final MappedByteBuffer bytes;
+  private final int size;
+  private final String name;
+  private int position = 0;
+
+  public MappedCharStream(String file) throws IOException {
+    try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(String.format("%s is larger than 2GB", file));
+      }
+      this.bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    this.size = this.bytes.limit();
+    this.name = file;
+  }
+
+  @Override
+  public int LA(int i) {
+    // LA(1) is the next character and LA(-1) the one before it
+    int at = i > 0 ? this.position + i - 1 : this.position + i;
+    if (i == 0) {
+      return 0;
+    } else if (at < 0 || at >= this.size) {
+      return IntStream.EOF;
+    }
+    return this.bytes.get(at) & 0xff;
+  }
+
+  @Override
+  public void consume() {
+    if (this.position >= this.size) {
+      throw new IllegalStateException("cannot consume EOF");
+    }
+    this.position++;
+  }
+
+  @Override
+  public int index() {
+    return this.position;
+  }
+
+  @Override
+  public void seek(int index) {
+    this.position = index;
+  }
+
+  @Override
+  public int size() {
+    return this.size;
+  }
+
+  // the whole file is always there, so marks need no bookkeeping
+  @Override
+  public int mark() {
+    return -1;
+  }
+
+  @Override
+  public void release(int marker) {
+  }
+
+  @Override
+  public String getSourceName() {
+    return this.name;
+  }
+
+  @Override
+  public String getText(Interval interval) {
+    int start = Math.min(interval.a, this.size);
+    int length = Math.min(interval.b - interval.a + 1, this.size - start);
+    byte[] text = new byte[Math.max(length, 0)];
+    for (int k = 0; k < text.length; k++) {
+      text[k] = this.bytes.get(start + k);
+    }
+    return new String(text, StandardCharsets.ISO_8859_1);
+  }
+
+  @Override
+  public String toString() {
+    return getText(Interval.of(0, this.size - 1));
+  }
+}
@@ -0,0 +1,1058 @@
+// Optimisation passes over the source AST and the RTL
+import java.util.*;
+
+public abstract class Opt {
+  // the instruction defining each pseudo-register that has a single one
+  private static Map<Integer, Ast.Target.Instr> singleDefs(Ast.Target.Prog prog) {
+    Map<Integer, Ast.Target.Instr> defOf = new HashMap<>();
+    Set<Integer> multiple = new HashSet<>();
+    for (Ast.Target.Instr instr : prog.instructions) {
+      if (instr.def() != null && defOf.put(instr.def().loc, instr) != null) {
+        multiple.add(instr.def().loc);
+      }
+    }
+    defOf.keySet().removeAll(multiple);
+    return defOf;
+  }
+
+  // the value of a pseudo-register whose only definition is a MoveImm
+  private static Long constantOf(Map<Integer, Ast.Target.Instr> defOf,
+      Ast.Target.Dest dest) {
+    Ast.Target.Instr def = defOf.get(dest.loc);
+    return def instanceof Ast.Target.Instr.MoveImm
+      ? ((Ast.Target.Instr.MoveImm) def).imm : null;
+  }
+
+  /** Dead code elimination driven by liveness. Instructions that only write
+      a pseudo-register nobody reads afterwards are removed until none is
+      left, then the surviving pseudo-registers are renumbered densely. */
+  public static class DeadCode {
+    public static int run(Ast.Target.Prog prog) {
+      int removed = 0, round;
+      do {
+        round = 0;
+        Cfg cfg = new Cfg(prog);
+        cfg.computeLiveness();
+        Ast.Target.Code.Cursor at = cfg.code.cursor();
+        for (int b = 0; b < cfg.blocks.length; b++) {
+          BitSet live = (BitSet) cfg.liveOut[b].clone();
+          for (int k = cfg.blocks[b].length - 1; k >= 0; k--) {
+            at.at(cfg.blocks[b][k]);
+            boolean selfCopy = at.opcode() == Ast.Target.Code.MOVE_CP
+              && at.use(0) == at.def();
+            if (Ast.Target.Code.isMove(at.opcode()) && (!live.get(at.def()) || selfCopy)) {
+              cfg.instrs.set(at.index(), new Ast.Target.Instr.Goto(at.inLabel(),
+                at.outLabel1()));
+              round++;
+            } else {
+              cfg.code.transfer(at.index(), live);
+            }
+          }
+        }
+        removed += round;
+      } while (round > 0);
+      prog.removeGotos();
+      renumber(prog);
+      return removed;
+    }
+
+    private static void renumber(Ast.Target.Prog prog) {
+      Map<Integer, Integer> newLocs = new HashMap<>();
+      Set<Ast.Target.Dest> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+      for (Ast.Target.Instr instr : prog.instructions) {
+        List<Ast.Target.Dest> dests = new ArrayList<>(Arrays.asList(instr.uses()));
+        if (instr.def() != null) {
+          dests.add(instr.def());
+        }
+        for (Ast.Target.Dest dest : dests) {
+          if (seen.add(dest)) {
+            newLocs.putIfAbsent(dest.loc, newLocs.size());
+            dest.loc = newLocs.get(dest.loc);
+            dest.slot = dest.loc;
+          }
+        }
+      }
+      prog.varCount = newLocs.size();
+      prog.frameSlots = prog.varCount;
+    }
+  }
+
+  /** Loop-invariant code motion on SSA form. Natural loops are found from
+      the back edges of the dominator tree and handled innermost first, and
+      each of them is given a preheader with a single edge into the header.
+      Operations whose operands are all defined outside the loop move to a
+      preheader in front of the header; a division only moves when its
+      divisor is a constant that cannot fault, since the preheader runs even
+      when the loop guard fails. */
+  public static class Licm {
+    public static int run(Ast.Target.Prog prog) {
+      Set<Integer> done = new HashSet<>();
+      int hoisted = 0;
+      while (true) {
+        Cfg cfg = new Cfg(prog);
+        cfg.computeDominators();
+        Map<Integer, BitSet> loops = cfg.findLoops();
+        int header = -1;
+        for (Map.Entry<Integer, BitSet> loop : loops.entrySet()) {
+          int label = cfg.instrs.get(cfg.blocks[loop.getKey()][0]).inLabel;
+          if (!done.contains(label) && (header == -1
+              || loop.getValue().cardinality() < loops.get(header).cardinality())) {
+            header = loop.getKey();
+          }
+        }
+        if (header == -1) {
+          return hoisted;
+        }
+        done.add(cfg.instrs.get(cfg.blocks[header][0]).inLabel);
+        hoisted += hoist(prog, cfg, header, loops.get(header));
+      }
+    }
+
+    private static boolean isCandidate(Ast.Target.Instr instr) {
+      return instr instanceof Ast.Target.Instr.MoveImm
+        || instr instanceof Ast.Target.Instr.MoveBinop
+        || instr instanceof Ast.Target.Instr.MoveUnop;
+    }
+
+    private static int hoist(Ast.Target.Prog prog, Cfg cfg, int header, BitSet body) {
+      int[] defBlock = new int[prog.varCount];
+      Arrays.fill(defBlock, -1);
+      Map<Integer, Ast.Target.Instr> defOf = new HashMap<>();
+      for (int i = 0; i < cfg.instrs.size(); i++) {
+        Ast.Target.Instr instr = cfg.instrs.get(i);
+        if (instr.def() != null) {
+          defBlock[instr.def().loc] = cfg.blockOf[i];
+          defOf.put(instr.def().loc, instr);
+        }
+      }
+      BitSet invariant = new BitSet(prog.varCount);
+      List<Integer> moved = new ArrayList<>();
+      boolean changed = true;
+      while (changed) {
+        changed = false;
+        for (int b : cfg.rpo) {
+          if (!body.get(b)) {
+            continue;
+          }
+          for (int i : cfg.blocks[b]) {
+            Ast.Target.Instr instr = cfg.instrs.get(i);
+            if (!isCandidate(instr) || invariant.get(instr.def().loc)) {
+              continue;
+            }
+            boolean ok = true;
+            for (Ast.Target.Dest use : instr.uses()) {
+              ok &= invariant.get(use.loc) || defBlock[use.loc] == -1
+                || !body.get(defBlock[use.loc]);
+            }
+            if (ok && instr instanceof Ast.Target.Instr.MoveBinop) {
+              Ast.Target.Instr.MoveBinop binop = (Ast.Target.Instr.MoveBinop) instr;
+              if (binop.op == Ast.Source.Binop.Divide
+                  || binop.op == Ast.Source.Binop.Modulus) {
+                Long divisor = binop.rightArg == null ? (Long) binop.imm
+                  : constantOf(defOf, binop.rightArg);
+                ok = divisor != null && divisor != 0 && divisor != -1;
+              }
+            }
+            if (ok) {
+              invariant.set(instr.def().loc);
+              if (!(instr instanceof Ast.Target.Instr.MoveImm)) {
+                moved.add(i);
+              }
+              changed = true;
+            }
+          }
+        }
+      }
+
+      int head = cfg.instrs.get(cfg.blocks[header][0]).inLabel;
+      List<Ast.Target.Instr> outside = new ArrayList<>();
+      for (int p : cfg.preds[cfg.blocks[header][0]]) {
+        if (!body.get(cfg.blockOf[p])) {
+          outside.add(cfg.instrs.get(p));
+        }
+      }
+      int[] outsideLabels = new int[outside.size()];
+      for (int k = 0; k < outsideLabels.length; k++) {
+        outsideLabels[k] = outside.get(k).inLabel;
+      }
+
+      // the preheader: phis merging the values from outside the loop when
+      // there is more than one way in, then the hoisted instructions
+      List<Ast.Target.Instr> preheader = new ArrayList<>();
+      List<Integer> phiIndices = new ArrayList<>();
+      List<Ast.Target.Dest> entryArgs = new ArrayList<>();
+      for (int i : cfg.blocks[header]) {
+        if (!(cfg.instrs.get(i) instanceof Ast.Target.Instr.Phi)) {
+          continue;
+        }
+        Ast.Target.Instr.Phi phi = (Ast.Target.Instr.Phi) cfg.instrs.get(i);
+        Ast.Target.Dest[] args = new Ast.Target.Dest[outside.size()];
+        for (int k = 0; k < args.length; k++) {
+          for (int j = 0; j < phi.predLabels.length; j++) {
+            args[k] = phi.predLabels[j] == outsideLabels[k] ? phi.args[j] : args[k];
+          }
+        }
+        if (args.length == 1) {
+          entryArgs.add(args[0]);
+        } else {
+          Ast.Target.Instr.Phi merge = new Ast.Target.Instr.Phi(-1,
+            prog.newDest(), args, outsideLabels.clone(), -1);
+          preheader.add(merge);
+          entryArgs.add(merge.dest);
+        }
+        phiIndices.add(i);
+      }
+      // constants stay in the loop, where they are as cheap as a reload
+      // from the stack, and are materialised again for the moved operations
+      Map<Integer, Ast.Target.Dest> constants = new HashMap<>();
+      for (int i : moved) {
+        Ast.Target.Instr instr = cfg.instrs.get(i);
+        Ast.Target.Dest[] uses = instr.uses();
+        for (int k = 0; k < uses.length; k++) {
+          Ast.Target.Instr def = defOf.get(uses[k].loc);
+          if (def instanceof Ast.Target.Instr.MoveImm && body.get(defBlock[uses[k].loc])) {
+            Ast.Target.Dest copy = constants.get(uses[k].loc);
+            if (copy == null) {
+              copy = prog.newDest();
+              constants.put(uses[k].loc, copy);
+              preheader.add(new Ast.Target.Instr.MoveImm(-1, copy,
+                ((Ast.Target.Instr.MoveImm) def).imm, -1));
+            }
+            uses[k] = copy;
+          }
+        }
+        instr.setUses(uses);
+      }
+      for (int i : moved) {
+        Ast.Target.Instr instr = cfg.instrs.get(i);
+        cfg.instrs.set(i, new Ast.Target.Instr.Goto(instr.inLabel, instr.outLabel1));
+        preheader.add(instr);
+      }
+      if (preheader.isEmpty()) {
+        // an empty preheader still gives later passes a single way in
+        preheader.add(new Ast.Target.Instr.Goto(-1, -1));
+      }
+      int first = prog.newLabel();
+      int label = first;
+      for (int k = 0; k < preheader.size(); k++) {
+        preheader.get(k).inLabel = label;
+        label = k == preheader.size() - 1 ? head : prog.newLabel();
+        preheader.get(k).outLabel1 = label;
+      }
+      int last = preheader.get(preheader.size() - 1).inLabel;
+
+      // the header phis now have a single incoming value from outside
+      for (int k = 0; k < phiIndices.size(); k++) {
+        Ast.Target.Instr.Phi phi = (Ast.Target.Instr.Phi) cfg.instrs.get(phiIndices.get(k));
+        List<Ast.Target.Dest> args = new ArrayList<>();
+        List<Integer> preds = new ArrayList<>();
+        for (int j = 0; j < phi.args.length; j++) {
+          boolean fromOutside = false;
+          for (int outsideLabel : outsideLabels) {
+            fromOutside |= outsideLabel == phi.predLabels[j];
+          }
+          if (!fromOutside) {
+            args.add(phi.args[j]);
+            preds.add(phi.predLabels[j]);
+          }
+        }
+        args.add(entryArgs.get(k));
+        preds.add(last);
+        int[] predLabels = new int[preds.size()];
+        for (int j = 0; j < predLabels.length; j++) {
+          predLabels[j] = preds.get(j);
+        }
+        cfg.instrs.set(phiIndices.get(k), new Ast.Target.Instr.Phi(phi.inLabel,
+          phi.dest, args.toArray(new Ast.Target.Dest[0]), predLabels, phi.outLabel1));
+      }
+      for (Ast.Target.Instr pred : outside) {
+        pred.outLabel1 = pred.outLabel1 == head ? first : pred.outLabel1;
+        pred.outLabel2 = pred.outLabel2 == head ? first : pred.outLabel2;
+      }
+      prog.instructions.addAll(preheader);
+      return moved.size() + constants.size();
+    }
+  }
+
+  /** Strength reduction of induction variables on SSA form, after Licm has
+      given every loop a preheader. A basic induction variable is a header
+      phi stepped by a constant on the way round the loop; a product of it
+      with a constant or a loop-invariant pseudo-register becomes a phi of
+      its own, started in the preheader and stepped by an addition next to
+      the step of the basic variable. */
+  public static class Induction {
+    public static int run(Ast.Target.Prog prog) {
+      Cfg cfg = new Cfg(prog);
+      cfg.computeDominators();
+      Map<Integer, Ast.Target.Instr> defOf = singleDefs(prog);
+      int[] defBlock = new int[prog.varCount];
+      Arrays.fill(defBlock, -1);
+      for (int i = 0; i < cfg.instrs.size(); i++) {
+        if (cfg.instrs.get(i).def() != null) {
+          defBlock[cfg.instrs.get(i).def().loc] = cfg.blockOf[i];
+        }
+      }
+      int reduced = 0;
+      for (Map.Entry<Integer, BitSet> loop : cfg.findLoops().entrySet()) {
+        BitSet body = loop.getValue();
+        Ast.Target.Instr entry = null;
+        int entries = 0;
+        for (int p : cfg.preds[cfg.blocks[loop.getKey()][0]]) {
+          if (!body.get(cfg.blockOf[p])) {
+            entry = cfg.instrs.get(p);
+            entries++;
+          }
+        }
+        if (entries != 1 || entry.outLabel2 != -1) {
+          continue;
+        }
+        List<Ast.Target.Instr.Phi> phis = new ArrayList<>();
+        for (int i : cfg.blocks[loop.getKey()]) {
+          if (cfg.instrs.get(i) instanceof Ast.Target.Instr.Phi) {
+            phis.add((Ast.Target.Instr.Phi) cfg.instrs.get(i));
+          }
+        }
+        for (Ast.Target.Instr.Phi phi : phis) {
+          if (phi.args.length != 2) {
+            continue;
+          }
+          int back = phi.predLabels[0] == entry.inLabel ? 1 : 0;
+          Ast.Target.Instr step = defOf.get(phi.args[back].loc);
+          Long stride = strideOf(defOf, phi, step);
+          if (stride == null || !body.get(defBlock[phi.args[back].loc])) {
+            continue;
+          }
+          // the products of the phi with the same factor share one phi
+          Map<Object, Ast.Target.Dest> derived = new HashMap<>();
+          for (int b = body.nextSetBit(0); b >= 0; b = body.nextSetBit(b + 1)) {
+            for (int i : cfg.blocks[b]) {
+              if (!(cfg.instrs.get(i) instanceof Ast.Target.Instr.MoveBinop)) {
+                continue;
+              }
+              Ast.Target.Instr.MoveBinop mul = (Ast.Target.Instr.MoveBinop) cfg.instrs.get(i);
+              Ast.Target.Dest factor = mul.op != Ast.Source.Binop.Multiply ? null
+                : mul.leftArg.loc == phi.dest.loc ? mul.rightArg
+                : mul.rightArg != null && mul.rightArg.loc == phi.dest.loc ? mul.leftArg
+                : null;
+              if (factor == null || factor.loc == phi.dest.loc) {
+                continue;
+              }
+              Long constant = constantOf(defOf, factor);
+              if (constant == null && defBlock[factor.loc] != -1
+                  && body.get(defBlock[factor.loc])) {
+                continue;
+              }
+              Object key = constant != null ? (Object) constant : (Object) factor.loc;
+              Ast.Target.Dest product = derived.get(key);
+              if (product == null) {
+                product = prog.newDest();
+                entry = reduce(prog, phi, back, entry, step, stride, constant,
+                  factor, product);
+                derived.put(key, product);
+              }
+              cfg.instrs.set(i, new Ast.Target.Instr.MoveCp(mul.inLabel, mul.dest,
+                product, mul.outLabel1));
+              reduced++;
+            }
+          }
+        }
+      }
+      return reduced;
+    }
+
+    // the constant a basic induction variable grows by on each iteration
+    private static Long strideOf(Map<Integer, Ast.Target.Instr> defOf,
+        Ast.Target.Instr.Phi phi, Ast.Target.Instr step) {
+      if (!(step instanceof Ast.Target.Instr.MoveBinop)) {
+        return null;
+      }
+      Ast.Target.Instr.MoveBinop binop = (Ast.Target.Instr.MoveBinop) step;
+      boolean negate = binop.op == Ast.Source.Binop.Subtract;
+      if (binop.op != Ast.Source.Binop.Add && !negate) {
+        return null;
+      }
+      Long c = null;
+      if (binop.leftArg.loc == phi.dest.loc) {
+        c = binop.rightArg == null ? (Long) binop.imm : constantOf(defOf, binop.rightArg);
+      } else if (!negate && binop.rightArg != null
+          && binop.rightArg.loc == phi.dest.loc) {
+        c = constantOf(defOf, binop.leftArg);
+      }
+      return c == null ? null : negate ? -c : c;
+    }
+
+    // start the product of the phi with the factor in the preheader, step it
+    // after the step of the phi, and merge the two in the header; returns
+    // the new end of the preheader
+    private static Ast.Target.Instr reduce(Ast.Target.Prog prog,
+        Ast.Target.Instr.Phi phi, int back, Ast.Target.Instr entry,
+        Ast.Target.Instr step, long stride, Long constant, Ast.Target.Dest factor,
+        Ast.Target.Dest product) {
+      Ast.Target.Dest start = prog.newDest();
+      Ast.Target.Dest next = prog.newDest();
+      Ast.Target.Dest increment = prog.newDest();
+      List<Ast.Target.Instr> init = new ArrayList<>();
+      List<Ast.Target.Instr> update = new ArrayList<>();
+      if (constant != null) {
+        Ast.Target.Dest k = prog.newDest();
+        init.add(new Ast.Target.Instr.MoveImm(-1, k, constant, -1));
+        init.add(new Ast.Target.Instr.MoveBinop(-1, start, phi.args[1 - back],
+          Ast.Source.Binop.Multiply, k, -1));
+        // like other constants, the increment stays inside the loop
+        update.add(new Ast.Target.Instr.MoveImm(-1, increment, stride * constant, -1));
+      } else {
+        Ast.Target.Dest s = prog.newDest();
+        init.add(new Ast.Target.Instr.MoveBinop(-1, start, phi.args[1 - back],
+          Ast.Source.Binop.Multiply, factor, -1));
+        init.add(new Ast.Target.Instr.MoveImm(-1, s, stride, -1));
+        init.add(new Ast.Target.Instr.MoveBinop(-1, increment, s,
+          Ast.Source.Binop.Multiply, factor, -1));
+      }
+      update.add(new Ast.Target.Instr.MoveBinop(-1, next, product,
+        Ast.Source.Binop.Add, increment, -1));
+      entry = insertAfter(prog, entry, init);
+      insertAfter(prog, step, update);
+
+      Ast.Target.Dest[] args = new Ast.Target.Dest[2];
+      args[back] = next;
+      args[1 - back] = start;
+      int label = prog.newLabel();
+      prog.instructions.add(new Ast.Target.Instr.Phi(label, product, args,
+        phi.predLabels.clone(), phi.outLabel1));
+      phi.outLabel1 = label;
+      return entry;
+    }
+
+    // chain instructions after one with a single successor, keeping the
+    // phis that name it as a predecessor up to date; returns the last one
+    private static Ast.Target.Instr insertAfter(Ast.Target.Prog prog,
+        Ast.Target.Instr instr, List<Ast.Target.Instr> chain) {
+      int label = prog.newLabel();
+      int out = instr.outLabel1;
+      instr.outLabel1 = label;
+      for (int k = 0; k < chain.size(); k++) {
+        chain.get(k).inLabel = label;
+        label = k == chain.size() - 1 ? out : prog.newLabel();
+        chain.get(k).outLabel1 = label;
+      }
+      Ast.Target.Instr last = chain.get(chain.size() - 1);
+      for (Ast.Target.Instr other : prog.instructions) {
+        if (other instanceof Ast.Target.Instr.Phi) {
+          int[] predLabels = ((Ast.Target.Instr.Phi) other).predLabels;
+          for (int k = 0; k < predLabels.length; k++) {
+            predLabels[k] = predLabels[k] == instr.inLabel ? last.inLabel : predLabels[k];
+          }
+        }
+      }
+      prog.instructions.addAll(chain);
+      return last;
+    }
+  }
+
+  /** Fold constant operands into binops, so that emit can use immediate
+      forms: shifts for multiplication and division by powers of two, leaq
+      for small factors. Only constants that fit in 32 bits are folded, and
+      only pseudo-registers with a single definition are trusted. */
+  public static class Immediates {
+    public static int run(Ast.Target.Prog prog) {
+      Map<Integer, Ast.Target.Instr> defOf = singleDefs(prog);
+      List<Ast.Target.Instr> instrs = prog.instructions;
+      int folded = 0;
+      for (int i = 0; i < instrs.size(); i++) {
+        if (!(instrs.get(i) instanceof Ast.Target.Instr.MoveBinop)) {
+          continue;
+        }
+        Ast.Target.Instr.MoveBinop binop = (Ast.Target.Instr.MoveBinop) instrs.get(i);
+        if (binop.rightArg == null) {
+          continue;
+        }
+        Ast.Target.Dest left = binop.leftArg;
+        Long constant = constantOf(defOf, binop.rightArg);
+        if (constant == null && Gvn.isCommutative(binop.op)) {
+          left = binop.rightArg;
+          constant = constantOf(defOf, binop.leftArg);
+        }
+        if (constant != null && constant == (int) (long) constant) {
+          Ast.Target.Instr.MoveBinop imm = new Ast.Target.Instr.MoveBinop(
+            binop.inLabel, binop.dest, left, binop.op, constant, binop.outLabel1);
+          imm.shouldJump = binop.shouldJump;
+          instrs.set(i, imm);
+          folded++;
+        }
+      }
+      return folded;
+    }
+  }
+
+  /** Sparse conditional constant propagation over the source statements.
+      The environment maps a variable to the constant every assignment
+      reaching this point agrees on, or to NOT_CONST; variables with no
+      reaching assignment yet are absent. Branches and loop bodies whose
+      condition folds to false are dropped before their assignments are
+      merged in, and loops are iterated until their entry state is stable. */
+  public static class ConstProp {
+    private static final Ast.Source.Expr NOT_CONST = new Ast.Source.Expr.BoolImm(false);
+
+    public static void run(Ast.Source.Prog prog) {
+      List<Ast.Source.Stmt> stmts = foldStmts(prog.stmts, new HashMap<>());
+      prog.stmts.clear();
+      prog.stmts.addAll(stmts);
+    }
+
+    /** Fold the next top-level statement of a program read a statement at
+        a time, in env as the statements before it left it. Returns null if
+        the statement has no effect. */
+    public static Ast.Source.Stmt run(Ast.Source.Stmt stmt, Map<String, Ast.Source.Expr> env) {
+      return foldStmt(stmt, env);
+    }
+
+    static boolean isConst(Ast.Source.Expr expr) {
+      return expr != NOT_CONST && (expr instanceof Ast.Source.Expr.IntImm
+        || expr instanceof Ast.Source.Expr.BoolImm);
+    }
+
+    private static boolean sameValue(Ast.Source.Expr e1, Ast.Source.Expr e2) {
+      if (e1 instanceof Ast.Source.Expr.IntImm && e2 instanceof Ast.Source.Expr.IntImm) {
+        return ((Ast.Source.Expr.IntImm) e1).value == ((Ast.Source.Expr.IntImm) e2).value;
+      }
+      if (isConst(e1) && isConst(e2)) {
+        return e1 instanceof Ast.Source.Expr.BoolImm && e2 instanceof Ast.Source.Expr.BoolImm
+          && ((Ast.Source.Expr.BoolImm) e1).isTrue == ((Ast.Source.Expr.BoolImm) e2).isTrue;
+      }
+      return e1 == e2;
+    }
+
+    // merge the state of another path into env
+    private static void join(Map<String, Ast.Source.Expr> env,
+      Map<String, Ast.Source.Expr> other) {
+      for (Map.Entry<String, Ast.Source.Expr> entry : other.entrySet()) {
+        Ast.Source.Expr mine = env.get(entry.getKey());
+        if (mine == null) {
+          env.put(entry.getKey(), entry.getValue());
+        } else if (!sameValue(mine, entry.getValue())) {
+          env.put(entry.getKey(), NOT_CONST);
+        }
+      }
+    }
+
+    private static boolean sameEnv(Map<String, Ast.Source.Expr> env1,
+      Map<String, Ast.Source.Expr> env2) {
+      if (!env1.keySet().equals(env2.keySet())) {
+        return false;
+      }
+      for (Map.Entry<String, Ast.Source.Expr> entry : env1.entrySet()) {
+        if (!sameValue(entry.getValue(), env2.get(entry.getKey()))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static boolean isFalse(Ast.Source.Expr expr) {
+      return expr instanceof Ast.Source.Expr.BoolImm
+        && !((Ast.Source.Expr.BoolImm) expr).isTrue;
+    }
+
+    private static List<Ast.Source.Stmt> foldStmts(List<Ast.Source.Stmt> stmts,
+      Map<String, Ast.Source.Expr> env) {
+      List<Ast.Source.Stmt> res = new ArrayList<>();
+      for (Ast.Source.Stmt stmt : stmts) {
+        Ast.Source.Stmt folded = foldStmt(stmt, env);
+        if (folded != null) {
+          res.add(folded);
+        }
+      }
+      return res;
+    }
+
+    // returns the folded statement, or null if it has no effect
+    private static Ast.Source.Stmt foldStmt(Ast.Source.Stmt stmt,
+      Map<String, Ast.Source.Expr> env) {
+      if (stmt instanceof Ast.Source.Stmt.Move) {
+        Ast.Source.Stmt.Move move = (Ast.Source.Stmt.Move) stmt;
+        Ast.Source.Expr source = fold(move.source, env);
+        env.put(move.dest.var, isConst(source) ? source : NOT_CONST);
+        return new Ast.Source.Stmt.Move(move.dest, source);
+      }
+      else if (stmt instanceof Ast.Source.Stmt.Print) {
+        Ast.Source.Stmt.Print print = (Ast.Source.Stmt.Print) stmt;
+        return new Ast.Source.Stmt.Print(fold(print.arg, env));
+      }
+      else if (stmt instanceof Ast.Source.Stmt.Block) {
+        Ast.Source.Stmt.Block block = new Ast.Source.Stmt.Block();
+        block.stmts.addAll(foldStmts(((Ast.Source.Stmt.Block) stmt).stmts, env));
+        return block;
+      }
+      else if (stmt instanceof Ast.Source.Stmt.IfElse) {
+        Ast.Source.Stmt.IfElse ifElse = (Ast.Source.Stmt.IfElse) stmt;
+        Ast.Source.Expr condition = fold(ifElse.condition, env);
+        if (condition instanceof Ast.Source.Expr.BoolImm) {
+          List<Ast.Source.Stmt> taken = ((Ast.Source.Expr.BoolImm) condition).isTrue
+            ? ifElse.thenBranch : ifElse.elseBranch;
+          if (taken == null) {
+            return null;
+          }
+          Ast.Source.Stmt.Block block = new Ast.Source.Stmt.Block();
+          block.stmts.addAll(foldStmts(taken, env));
+          return block;
+        }
+        Map<String, Ast.Source.Expr> elseEnv = new HashMap<>(env);
+        List<Ast.Source.Stmt> thenBranch = foldStmts(ifElse.thenBranch, env);
+        List<Ast.Source.Stmt> elseBranch = ifElse.elseBranch == null ? null
+          : foldStmts(ifElse.elseBranch, elseEnv);
+        join(env, elseEnv);
+        return new Ast.Source.Stmt.IfElse(condition, thenBranch, elseBranch);
+      }
+      else if (stmt instanceof Ast.Source.Stmt.While) {
+        Ast.Source.Stmt.While whileStmt = (Ast.Source.Stmt.While) stmt;
+        // the state at the condition is the join of the state before the
+        // loop with the state at the end of every iteration
+        Map<String, Ast.Source.Expr> entry = new HashMap<>(env);
+        while (!isFalse(fold(whileStmt.condition, entry))) {
+          Map<String, Ast.Source.Expr> bodyEnv = new HashMap<>(entry);
+          foldStmts(whileStmt.body, bodyEnv);
+          Map<String, Ast.Source.Expr> next = new HashMap<>(env);
+          join(next, bodyEnv);
+          if (sameEnv(next, entry)) {
+            break;
+          }
+          entry = next;
+        }
+        env.clear();
+        env.putAll(entry);
+        Ast.Source.Expr condition = fold(whileStmt.condition, env);
+        if (isFalse(condition)) {
+          return null;
+        }
+        return new Ast.Source.Stmt.While(condition,
+          foldStmts(whileStmt.body, new HashMap<>(entry)));
+      }
+      return stmt;
+    }
+
+    // whether evaluating the expression may fault in idivq
+    private static boolean mayTrap(Ast.Source.Expr expr) {
+      if (expr instanceof Ast.Source.Expr.UnopApp) {
+        return mayTrap(((Ast.Source.Expr.UnopApp) expr).arg);
+      }
+      else if (expr instanceof Ast.Source.Expr.BinopApp) {
+        Ast.Source.Expr.BinopApp binopApp = (Ast.Source.Expr.BinopApp) expr;
+        return binopApp.op == Ast.Source.Binop.Divide
+          || binopApp.op == Ast.Source.Binop.Modulus
+          || mayTrap(binopApp.leftArg) || mayTrap(binopApp.rightArg);
+      }
+      else if (expr instanceof Ast.Source.Expr.BoolOpApp) {
+        Ast.Source.Expr.BoolOpApp boolOpApp = (Ast.Source.Expr.BoolOpApp) expr;
+        return mayTrap(boolOpApp.leftArg) || mayTrap(boolOpApp.rightArg);
+      }
+      else if (expr instanceof Ast.Source.Expr.Comp) {
+        Ast.Source.Expr.Comp comp = (Ast.Source.Expr.Comp) expr;
+        return mayTrap(comp.leftArg) || mayTrap(comp.rightArg);
+      }
+      return false;
+    }
+
+    private static Ast.Source.Expr fold(Ast.Source.Expr expr,
+      Map<String, Ast.Source.Expr> env) {
+      if (expr instanceof Ast.Source.Expr.Read) {
+        Ast.Source.Expr value = env.get(((Ast.Source.Expr.Read) expr).dest.var);
+        return isConst(value) ? value : expr;
+      }
+      else if (expr instanceof Ast.Source.Expr.UnopApp) {
+        Ast.Source.Expr.UnopApp unopApp = (Ast.Source.Expr.UnopApp) expr;
+        Ast.Source.Expr arg = fold(unopApp.arg, env);
+        if (arg instanceof Ast.Source.Expr.IntImm) {
+          return new Ast.Source.Expr.IntImm(
+            unopApp.op.apply(((Ast.Source.Expr.IntImm) arg).value));
+        } else if (arg instanceof Ast.Source.Expr.BoolImm) {
+          return new Ast.Source.Expr.BoolImm(!((Ast.Source.Expr.BoolImm) arg).isTrue);
+        }
+        return arg == unopApp.arg ? expr : new Ast.Source.Expr.UnopApp(unopApp.op, arg);
+      }
+      else if (expr instanceof Ast.Source.Expr.BinopApp) {
+        Ast.Source.Expr.BinopApp binopApp = (Ast.Source.Expr.BinopApp) expr;
+        Ast.Source.Expr left = fold(binopApp.leftArg, env);
+        Ast.Source.Expr right = fold(binopApp.rightArg, env);
+        if (left instanceof Ast.Source.Expr.IntImm && right instanceof Ast.Source.Expr.IntImm) {
+          try {
+            return new Ast.Source.Expr.IntImm(binopApp.op.apply(
+              ((Ast.Source.Expr.IntImm) left).value, ((Ast.Source.Expr.IntImm) right).value));
+          } catch (ArithmeticException e) {
+            // leave the fault to run time
+          }
+        }
+        return left == binopApp.leftArg && right == binopApp.rightArg ? expr
+          : new Ast.Source.Expr.BinopApp(left, binopApp.op, right);
+      }
+      else if (expr instanceof Ast.Source.Expr.Comp) {
+        Ast.Source.Expr.Comp comp = (Ast.Source.Expr.Comp) expr;
+        Ast.Source.Expr left = fold(comp.leftArg, env);
+        Ast.Source.Expr right = fold(comp.rightArg, env);
+        if (left instanceof Ast.Source.Expr.IntImm && right instanceof Ast.Source.Expr.IntImm) {
+          return new Ast.Source.Expr.BoolImm(comp.op.test(
+            ((Ast.Source.Expr.IntImm) left).value, ((Ast.Source.Expr.IntImm) right).value));
+        } else if (left instanceof Ast.Source.Expr.BoolImm
+            && right instanceof Ast.Source.Expr.BoolImm) {
+          boolean equal = sameValue(left, right);
+          return new Ast.Source.Expr.BoolImm(comp.op == Ast.Source.CompOp.Eq ? equal : !equal);
+        }
+        return left == comp.leftArg && right == comp.rightArg ? expr
+          : new Ast.Source.Expr.Comp(left, comp.op, right);
+      }
+      else if (expr instanceof Ast.Source.Expr.BoolOpApp) {
+        Ast.Source.Expr.BoolOpApp boolOpApp = (Ast.Source.Expr.BoolOpApp) expr;
+        Ast.Source.Expr left = fold(boolOpApp.leftArg, env);
+        Ast.Source.Expr right = fold(boolOpApp.rightArg, env);
+        boolean isAnd = boolOpApp.op == Ast.Source.BoolOp.And;
+        if (left instanceof Ast.Source.Expr.BoolImm) {
+          // the right operand only runs if the left one does not decide
+          return ((Ast.Source.Expr.BoolImm) left).isTrue == isAnd ? right : left;
+        } else if (right instanceof Ast.Source.Expr.BoolImm) {
+          if (((Ast.Source.Expr.BoolImm) right).isTrue == isAnd) {
+            return left;
+          } else if (!mayTrap(left)) {
+            return right;
+          }
+        }
+        return left == boolOpApp.leftArg && right == boolOpApp.rightArg ? expr
+          : new Ast.Source.Expr.BoolOpApp(left, boolOpApp.op, right);
+      }
+      return expr;
+    }
+  }
+
+  /** Dominator-based global value numbering. Blocks are visited down the
+      dominator tree with scoped tables, so a computation can be reused
+      wherever the block that first made it dominates. A pseudo-register
+      with a single definition keeps the value number given at that
+      definition below it; any other value number, such as that of a user
+      variable reassigned through MoveCp, is only trusted until the next
+      block with several predecessors. Redundant MoveImm, MoveUnop and
+      MoveBinop instructions become copies from the register holding the
+      value. */
+  public static class Gvn {
+    // value number of a pseudo-register and the merge epoch it is valid in
+    private static class Number {
+      final int vn, epoch;
+      final boolean atDef;
+      Number(int vn, int epoch, boolean atDef) {
+        this.vn = vn;
+        this.epoch = epoch;
+        this.atDef = atDef;
+      }
+    }
+
+    // a key of one of the tables and what it held before, null if nothing
+    private static class Undo<K, V> {
+      final K key;
+      final V previous;
+      Undo(K key, V previous) {
+        this.key = key;
+        this.previous = previous;
+      }
+    }
+
+    private final Ast.Target.Prog prog;
+    private final boolean[] singleDef;
+    private final Map<Integer, Number> numbers = new HashMap<>();
+    private final Map<List<Object>, int[]> table = new HashMap<>();
+    // undo logs restoring the tables when leaving a dominator subtree
+    private final Deque<Undo<Integer, Number>> numbersLog = new ArrayDeque<>();
+    private final Deque<Undo<List<Object>, int[]>> tableLog = new ArrayDeque<>();
+    private int nextVn = 0, nextEpoch = 0, epoch = 0;
+    private int replaced = 0;
+
+    private Gvn(Ast.Target.Prog prog) {
+      this.prog = prog;
+      this.singleDef = new boolean[prog.varCount];
+      int[] defCount = new int[prog.varCount];
+      for (Ast.Target.Instr instr : prog.instructions) {
+        if (instr.def() != null) {
+          defCount[instr.def().loc]++;
+        }
+      }
+      for (int v = 0; v < prog.varCount; v++) {
+        this.singleDef[v] = defCount[v] == 1;
+      }
+    }
+
+    public static int run(Ast.Target.Prog prog) {
+      Gvn gvn = new Gvn(prog);
+      Cfg cfg = new Cfg(prog);
+      cfg.computeDominators();
+      if (cfg.rpo.length == 0) {
+        return 0;
+      }
+      int root = cfg.rpo[0];
+      // each stack entry is a block, with its log sizes once it was entered
+      Deque<int[]> stack = new ArrayDeque<>();
+      stack.push(new int[] { root, -1, -1, -1 });
+      while (!stack.isEmpty()) {
+        int[] top = stack.pop();
+        if (top[1] != -1) {
+          gvn.undo(top[1], top[2]);
+          gvn.epoch = top[3];
+          continue;
+        }
+        int b = top[0];
+        stack.push(new int[] { b, gvn.numbersLog.size(), gvn.tableLog.size(), gvn.epoch });
+        if (b == root || cfg.blockPreds[b].length != 1) {
+          gvn.epoch = ++gvn.nextEpoch;
+        }
+        for (int i : cfg.blocks[b]) {
+          gvn.visit(cfg, i);
+        }
+        for (int c : cfg.domChildren[b]) {
+          stack.push(new int[] { c, -1, -1, -1 });
+        }
+      }
+      return gvn.replaced;
+    }
+
+    private void undo(int numbersSize, int tableSize) {
+      undo(numbersLog, numbers, numbersSize);
+      undo(tableLog, table, tableSize);
+    }
+
+    private static <K, V> void undo(Deque<Undo<K, V>> log, Map<K, V> map, int size) {
+      while (log.size() > size) {
+        Undo<K, V> entry = log.pop();
+        if (entry.previous == null) {
+          map.remove(entry.key);
+        } else {
+          map.put(entry.key, entry.previous);
+        }
+      }
+    }
+
+    private void setNumber(int loc, int vn, boolean atDef) {
+      numbersLog.push(new Undo<>(loc, numbers.get(loc)));
+      numbers.put(loc, new Number(vn, this.epoch, atDef));
+    }
+
+    private int vnOf(Ast.Target.Dest dest) {
+      Number number = numbers.get(dest.loc);
+      if (number != null && (number.epoch == this.epoch
+          || (number.atDef && singleDef[dest.loc]))) {
+        return number.vn;
+      }
+      int vn = nextVn++;
+      setNumber(dest.loc, vn, false);
+      return vn;
+    }
+
+    static boolean isCommutative(Ast.Source.Binop op) {
+      return op == Ast.Source.Binop.Add || op == Ast.Source.Binop.Multiply
+        || op == Ast.Source.Binop.BitAnd || op == Ast.Source.Binop.BitOr
+        || op == Ast.Source.Binop.BitXor;
+    }
+
+    private void visit(Cfg cfg, int i) {
+      Ast.Target.Instr instr = cfg.instrs.get(i);
+      List<Object> key = null;
+      if (instr instanceof Ast.Target.Instr.MoveImm) {
+        key = Arrays.asList("imm", ((Ast.Target.Instr.MoveImm) instr).imm);
+      } else if (instr instanceof Ast.Target.Instr.MoveUnop) {
+        Ast.Target.Instr.MoveUnop unop = (Ast.Target.Instr.MoveUnop) instr;
+        key = Arrays.asList(unop.op, vnOf(unop.arg));
+      } else if (instr instanceof Ast.Target.Instr.MoveBinop) {
+        Ast.Target.Instr.MoveBinop binop = (Ast.Target.Instr.MoveBinop) instr;
+        if (binop.rightArg == null) {
+          key = Arrays.asList(binop.op, vnOf(binop.leftArg), "imm", binop.imm);
+        } else {
+          int vn1 = vnOf(binop.leftArg), vn2 = vnOf(binop.rightArg);
+          if (isCommutative(binop.op) && vn1 > vn2) {
+            int tmp = vn1;
+            vn1 = vn2;
+            vn2 = tmp;
+          }
+          key = Arrays.asList(binop.op, vn1, vn2);
+        }
+      } else if (instr instanceof Ast.Target.Instr.MoveCp) {
+        int vn = vnOf(((Ast.Target.Instr.MoveCp) instr).source);
+        setNumber(instr.def().loc, vn, true);
+        return;
+      } else if (instr instanceof Ast.Target.Instr.Phi) {
+        // a merge of values from different paths is a value of its own
+        setNumber(instr.def().loc, nextVn++, true);
+        return;
+      } else {
+        // branches and prints read their operands without defining anything
+        for (Ast.Target.Dest use : instr.uses()) {
+          vnOf(use);
+        }
+        return;
+      }
+
+      Ast.Target.Dest dest = instr.def();
+      int[] known = table.get(key);
+      if (known != null) {
+        Number holder = numbers.get(known[1]);
+        boolean valid = holder != null && holder.vn == known[0]
+          && (holder.epoch == this.epoch || (holder.atDef && singleDef[known[1]]));
+        // a constant is as cheap to rematerialise as to copy
+        if (valid && known[1] != dest.loc
+            && !(instr instanceof Ast.Target.Instr.MoveImm)) {
+          Ast.Target.Dest source = findDest(cfg, known[1]);
+          cfg.instrs.set(i, new Ast.Target.Instr.MoveCp(instr.inLabel, dest,
+            source, instr.outLabel1));
+          setNumber(dest.loc, known[0], true);
+          replaced++;
+          return;
+        } else if (valid) {
+          setNumber(dest.loc, known[0], true);
+          return;
+        }
+      }
+      int vn = nextVn++;
+      setNumber(dest.loc, vn, true);
+      tableLog.push(new Undo<>(key, known));
+      table.put(key, new int[] { vn, dest.loc });
+    }
+
+    // the Dest object of a pseudo-register, looked up once per register
+    private final Map<Integer, Ast.Target.Dest> dests = new HashMap<>();
+    private Ast.Target.Dest findDest(Cfg cfg, int loc) {
+      if (dests.isEmpty()) {
+        for (Ast.Target.Instr instr : cfg.instrs) {
+          if (instr.def() != null) {
+            dests.putIfAbsent(instr.def().loc, instr.def());
+          }
+        }
+      }
+      return dests.get(loc);
+    }
+  }
+
+  /** Block layout after Pettis and Hansen. The edges between blocks are
+      visited from the most to the least often taken, and an edge from the
+      end of one chain of blocks to the start of another joins the two, so
+      that it becomes a fall-through. How often an edge is taken is guessed
+      from its loop depth, and back edges win ties, which rotates a loop so
+      that its test sits at the bottom. A jump to the next instruction is
+      then dropped, inverting a branch where that helps. */
+  public static class Layout {
+    public static void run(Ast.Target.Prog prog) {
+      Cfg cfg = new Cfg(prog);
+      int nb = cfg.blocks.length;
+      if (nb == 0) {
+        return;
+      }
+      cfg.computeDominators();
+      Map<Integer, BitSet> loops = cfg.findLoops();
+      int[] depth = new int[nb];
+      int maxDepth = 0;
+      for (BitSet body : loops.values()) {
+        for (int b = body.nextSetBit(0); b >= 0; b = body.nextSetBit(b + 1)) {
+          maxDepth = Math.max(maxDepth, ++depth[b]);
+        }
+      }
+
+      // edges by weight: twice the depth, plus one for a back edge
+      List<List<int[]>> buckets = new ArrayList<>();
+      for (int w = 0; w <= 2 * maxDepth + 1; w++) {
+        buckets.add(new ArrayList<>());
+      }
+      for (int b = 0; b < nb; b++) {
+        int[] succs = cfg.blockSuccs[b];
+        // the false side of a branch comes last, and is tried first
+        for (int k = succs.length - 1; k >= 0; k--) {
+          int s = succs[k];
+          boolean back = loops.containsKey(s) && loops.get(s).get(b);
+          buckets.get(2 * Math.min(depth[b], depth[s]) + (back ? 1 : 0))
+            .add(new int[] { b, s });
+        }
+      }
+
+      // next and prev link the chains; the two ends of a chain point at
+      // each other through end
+      int entry = cfg.blockOf[cfg.entry];
+      int[] next = new int[nb], prev = new int[nb], end = new int[nb];
+      Arrays.fill(next, -1);
+      Arrays.fill(prev, -1);
+      for (int b = 0; b < nb; b++) {
+        end[b] = b;
+      }
+      for (int w = buckets.size() - 1; w >= 0; w--) {
+        for (int[] edge : buckets.get(w)) {
+          int b = edge[0], s = edge[1];
+          // the entry follows the prologue, so nothing may fall into it
+          if (next[b] != -1 || prev[s] != -1 || s == entry || end[b] == s) {
+            continue;
+          }
+          int head = end[b], tail = end[s];
+          next[b] = s;
+          prev[s] = b;
+          end[head] = tail;
+          end[tail] = head;
+        }
+      }
+
+      // place the chains from the entry on, each followed by the chains
+      // it branches to, and then whatever cannot be reached
+      int[] headOf = new int[nb];
+      List<Integer> heads = new ArrayList<>();
+      heads.add(entry);
+      for (int h = 0; h < nb; h++) {
+        if (prev[h] == -1) {
+          heads.add(h);
+          for (int b = h; b != -1; b = next[b]) {
+            headOf[b] = h;
+          }
+        }
+      }
+      List<Ast.Target.Instr> laid = new ArrayList<>(cfg.instrs.size());
+      boolean[] placed = new boolean[nb];
+      Deque<Integer> worklist = new ArrayDeque<>();
+      for (int first : heads) {
+        worklist.add(first);
+        while (!worklist.isEmpty()) {
+          int head = worklist.poll();
+          if (placed[head]) {
+            continue;
+          }
+          for (int b = head; b != -1; b = next[b]) {
+            placed[b] = true;
+            for (int i : cfg.blocks[b]) {
+              laid.add(cfg.instrs.get(i));
+            }
+            for (int s : cfg.blockSuccs[b]) {
+              if (!placed[headOf[s]]) {
+                worklist.add(headOf[s]);
+              }
+            }
+          }
+        }
+      }
+      prog.instructions.clear();
+      prog.instructions.addAll(laid);
+      removeJumps(prog.instructions);
+    }
+
+    /** Drop every jump to the next instruction */
+    static void removeJumps(List<Ast.Target.Instr> instrs) {
+      for (int i = 0; i < instrs.size(); i++) {
+        Ast.Target.Instr instr = instrs.get(i);
+        int next = i + 1 < instrs.size() ? instrs.get(i + 1).inLabel : -1;
+        if (instr.outLabel2 != -1 && instr.outLabel1 == next
+            && instr.outLabel2 != next) {
+          instr = invert(instr);
+          instrs.set(i, instr);
+        }
+        instr.shouldJump = (instr.outLabel2 != -1 ? instr.outLabel2 : instr.outLabel1) != next;
+      }
+    }
+
+    // the same branch with the condition and the targets swapped
+    private static Ast.Target.Instr invert(Ast.Target.Instr instr) {
+      if (instr instanceof Ast.Target.Instr.UBranch) {
+        Ast.Target.Instr.UBranch branch = (Ast.Target.Instr.UBranch) instr;
+        return new Ast.Target.Instr.UBranch(branch.inLabel, branch.op.negate(),
+          branch.arg, branch.outLabel2, branch.outLabel1);
+      }
+      Ast.Target.Instr.BBranch branch = (Ast.Target.Instr.BBranch) instr;
+      return new Ast.Target.Instr.BBranch(branch.inLabel, branch.leftArg,
+        branch.op.negate(), branch.rightArg, branch.outLabel2, branch.outLabel1);
+    }
+  }
+}
@@ -0,0 +1,461 @@
+// Peephole optimisation of the generated amd64 code
+import java.util.*;
+
+/** Rewrite rules over the assembly lines of a program, applied until none
+    of them fires. The rules rely on how Target.Instr emits code: %rax, %rcx
+    and %rdx are scratch registers and the flags are set right before the
+    branch that reads them, so neither carries a value across a label or a
+    jump. The rules keep it that way. */
+public abstract class Peephole {
+  public static abstract class Rule {
+    /** Try to rewrite the code at position i, telling whether it did */
+    abstract boolean apply(List<Asm> code, int i, State state);
+  }
+
+  // what the rules need to know about the labels, rebuilt for every sweep
+  static class State {
+    final Map<String, Integer> labels = new HashMap<>();
+    final Map<String, Integer> refs = new HashMap<>();
+    State(List<Asm> code) {
+      for (int i = 0; i < code.size(); i++) {
+        Asm line = code.get(i);
+        if (line.isLabel()) {
+          this.labels.put(line.label, i);
+        } else if (line.isJump()) {
+          this.refs.merge(line.args[0], 1, Integer::sum);
+        }
+      }
+    }
+  }
+
+  /** The rules by name, in the order they are tried */
+  public static final Map<String, Rule> RULES = new LinkedHashMap<>();
+  static {
+    RULES.put("self-move", new SelfMove());
+    RULES.put("store-load", new StoreLoad());
+    RULES.put("forward", new Forward());
+    RULES.put("dead-scratch", new DeadScratch());
+    RULES.put("zero", new Zero());
+    RULES.put("test-zero", new TestZero());
+    RULES.put("branch-inversion", new BranchInversion());
+    RULES.put("jump-to-next", new JumpToNext());
+    RULES.put("thread", new JumpThreading());
+    RULES.put("unreachable", new Unreachable());
+    RULES.put("unused-label", new UnusedLabel());
+  }
+
+  /** Apply the named rules until the code no longer changes, returning how
+      often each of them fired */
+  public static Map<String, Integer> run(List<Asm> code, Collection<String> names) {
+    Map<String, Integer> hits = new LinkedHashMap<>();
+    List<String> ruleNames = new ArrayList<>(names);
+    List<Rule> rules = new ArrayList<>();
+    for (String name : ruleNames) {
+      if (!RULES.containsKey(name)) {
+        throw new IllegalArgumentException("unknown peephole rule " + name);
+      }
+      rules.add(RULES.get(name));
+      hits.put(name, 0);
+    }
+    // the rules delete as they go, which would make an ArrayList quadratic
+    List<Asm> lines = new GapList<>(code);
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      State state = new State(lines);
+      for (int i = 0; i < lines.size(); i++) {
+        for (int r = 0; r < rules.size() && i < lines.size(); r++) {
+          if (rules.get(r).apply(lines, i, state)) {
+            hits.merge(ruleNames.get(r), 1, Integer::sum);
+            changed = true;
+          }
+        }
+      }
+    }
+    code.clear();
+    code.addAll(lines);
+    return hits;
+  }
+
+  /** A list with a gap at the last place it was edited. Edits are cheap
+      when each one is close to the one before, as they are in a sweep. */
+  static class GapList<E> extends AbstractList<E> {
+    private Object[] items;
+    private int gapStart, gapEnd;
+    GapList(Collection<E> items) {
+      this.items = items.toArray(new Object[items.size() + 16]);
+      this.gapStart = items.size();
+      this.gapEnd = this.items.length;
+    }
+    @Override
+    public int size() {
+      return this.items.length - (this.gapEnd - this.gapStart);
+    }
+    private int index(int i) {
+      if (i < 0 || i >= size()) {
+        throw new IndexOutOfBoundsException(String.valueOf(i));
+      }
+      return i < this.gapStart ? i : i + this.gapEnd - this.gapStart;
+    }
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int i) {
+      return (E) this.items[index(i)];
+    }
+    @Override
+    @SuppressWarnings("unchecked")
+    public E set(int i, E item) {
+      int k = index(i);
+      E old = (E) this.items[k];
+      this.items[k] = item;
+      return old;
+    }
+    // move the gap so that it starts at i
+    private void moveGap(int i) {
+      if (i < this.gapStart) {
+        int n = this.gapStart - i;
+        System.arraycopy(this.items, i, this.items, this.gapEnd - n, n);
+        Arrays.fill(this.items, i, Math.min(this.gapStart, this.gapEnd - n), null);
+        this.gapStart -= n;
+        this.gapEnd -= n;
+      } else if (i > this.gapStart) {
+        int n = i - this.gapStart;
+        System.arraycopy(this.items, this.gapEnd, this.items, this.gapStart, n);
+        Arrays.fill(this.items, Math.max(this.gapEnd, i), this.gapEnd + n, null);
+        this.gapStart += n;
+        this.gapEnd += n;
+      }
+    }
+    @Override
+    @SuppressWarnings("unchecked")
+    public E remove(int i) {
+      index(i);
+      moveGap(i);
+      E old = (E) this.items[this.gapEnd];
+      this.items[this.gapEnd++] = null;
+      this.modCount++;
+      return old;
+    }
+    @Override
+    public void add(int i, E item) {
+      if (i < 0 || i > size()) {
+        throw new IndexOutOfBoundsException(String.valueOf(i));
+      }
+      moveGap(i);
+      if (this.gapStart == this.gapEnd) {
+        int tail = this.items.length - this.gapEnd;
+        Object[] grown = new Object[this.items.length * 2 + 16];
+        System.arraycopy(this.items, 0, grown, 0, this.gapStart);
+        System.arraycopy(this.items, this.gapEnd, grown, grown.length - tail, tail);
+        this.gapEnd = grown.length - tail;
+        this.items = grown;
+      }
+      this.items[this.gapStart++] = item;
+      this.modCount++;
+    }
+  }
+
+  // scratch registers and the names of their parts
+  private static final Map<String, String[]> SCRATCH = new HashMap<>();
+  static {
+    SCRATCH.put("%rax", new String[] { "%rax", "%eax", "%ax", "%al" });
+    SCRATCH.put("%rcx", new String[] { "%rcx", "%ecx", "%cx", "%cl" });
+    SCRATCH.put("%rdx", new String[] { "%rdx", "%edx", "%dx", "%dl" });
+  }
+  private static final Map<String, String> LOW32 = new HashMap<>();
+  static {
+    for (String r : new String[] { "ax", "bx", "cx", "dx", "si", "di" }) {
+      LOW32.put("%r" + r, "%e" + r);
+    }
+    for (int r = 8; r <= 15; r++) {
+      LOW32.put("%r" + r, "%r" + r + "d");
+    }
+  }
+  // instructions whose last operand is only written
+  private static final Set<String> MOVES = new HashSet<>(Arrays.asList(
+    "movq", "movabsq", "leaq", "movl"));
+  private static final Set<String> FLAG_WRITERS = new HashSet<>(Arrays.asList(
+    "cmpq", "testq", "addq", "subq", "andq", "orq", "xorq", "xorl", "imulq",
+    "idivq", "negq", "salq", "sarq", "shrq"));
+  private static final Map<String, String> INVERSE = new HashMap<>();
+  static {
+    String[][] pairs = { { "je", "jne" }, { "jl", "jge" }, { "jle", "jg" } };
+    for (String[] pair : pairs) {
+      INVERSE.put(pair[0], pair[1]);
+      INVERSE.put(pair[1], pair[0]);
+    }
+  }
+
+  private static boolean mentions(String arg, String reg) {
+    for (String part : SCRATCH.get(reg)) {
+      if (arg.contains(part)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isRegister(String arg) {
+    return arg.startsWith("%");
+  }
+
+  private static boolean isMemory(String arg) {
+    return arg.contains("(");
+  }
+
+  private static boolean reads(Asm line, String reg) {
+    if (line.is("cqto") || line.is("retq")) {
+      return reg.equals("%rax");
+    } else if (line.is("idivq")) {
+      return !reg.equals("%rcx") || mentions(line.args[0], reg);
+    } else if (line.is("callq") || line.op.startsWith(".") || line.op.startsWith("#")) {
+      return false;
+    }
+    int n = line.args.length;
+    for (int k = 0; k < n; k++) {
+      String arg = line.args[k];
+      boolean onlyWritten = k == n - 1 && n > 1 && MOVES.contains(line.op)
+        && !isMemory(arg);
+      if (!onlyWritten && mentions(arg, reg)) {
+        return true;
+      }
+    }
+    // the one-operand imulq multiplies %rax
+    return line.is("imulq") && n == 1 && reg.equals("%rax");
+  }
+
+  private static boolean kills(Asm line, String reg) {
+    if (line.is("callq")) {
+      return true;
+    } else if (line.is("cqto")) {
+      return reg.equals("%rdx");
+    }
+    int n = line.args.length;
+    return n > 1 && MOVES.contains(line.op) && line.args[n - 1].equals(reg);
+  }
+
+  /** Whether a scratch register is dead after position i */
+  static boolean deadAfter(List<Asm> code, int i, String reg) {
+    for (int j = i + 1; j < code.size(); j++) {
+      Asm line = code.get(j);
+      if (line.isLabel() || line.isJump()) {
+        return true;
+      } else if (reads(line, reg)) {
+        return false;
+      } else if (kills(line, reg)) {
+        return true;
+      }
+    }
+    return true;
+  }
+
+  /** Whether the flags are dead after position i */
+  static boolean flagsDeadAfter(List<Asm> code, int i) {
+    for (int j = i + 1; j < code.size(); j++) {
+      Asm line = code.get(j);
+      if (line.isLabel() || line.is("jmp") || line.is("callq") || line.is("retq")
+          || FLAG_WRITERS.contains(line.op)) {
+        return true;
+      } else if (line.isJump()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static Asm at(List<Asm> code, int i) {
+    return i < code.size() ? code.get(i) : null;
+  }
+
+  // movq %rbx, %rbx
+  static class SelfMove extends Rule {
+    boolean apply(List<Asm> code, int i, State state) {
+      Asm line = code.get(i);
+      if (line.is("movq") && line.args[0].equals(line.args[1])) {
+        code.remove(i);
+        return true;
+      }
+      return false;
+    }
+  }
+
+  // movq A, B; movq B, A drops the second move
+  static class StoreLoad extends Rule {
+    boolean apply(List<Asm> code, int i, State state) {
+      Asm first = code.get(i), second = at(code, i + 1);
+      if (first.is("movq") && second != null && second.is("movq")
+          && first.args[0].equals(second.args[1])
+          && first.args[1].equals(second.args[0])) {
+        code.remove(i + 1);
+        return true;
+      }
+      return false;
+    }
+  }
+
+  // movq S, %rax; cmpq %rax, B becomes cmpq S, B when %rax dies there
+  static class Forward extends Rule {
+    private static final Set<String> OPS = new HashSet<>(Arrays.asList(
+      "movq", "cmpq", "testq", "addq", "subq", "andq", "orq", "xorq"));
+    boolean apply(List<Asm> code, int i, State state) {
+      Asm load = code.get(i), use = at(code, i + 1);
+      if (!load.is("movq") || !SCRATCH.containsKey(load.args[1]) || use == null
+          || use.isLabel() || !OPS.contains(use.op) || use.args.length != 2) {
+        return false;
+      }
+      String reg = load.args[1], source = load.args[0];
+      // the register may only be read, and as a whole operand
+      boolean readOnly = use.is("cmpq") || use.is("testq") || use.is("movq");
+      int k = use.args[0].equals(reg) ? 0 : use.args[1].equals(reg) && readOnly ? 1 : -1;
+      if (k == -1 || mentions(use.args[1 - k], reg) || !deadAfter(code, i + 1, reg)) {
+        return false;
+      }
+      String[] args = use.args.clone();
+      args[k] = source;
+      if (use.is("testq") && !args[0].equals(args[1])) {
+        return false;
+      } else if ((source.startsWith("$") && k != 0)
+          || (isMemory(args[0]) && isMemory(args[1]))) {
+        return false;
+      }
+      code.set(i + 1, Asm.instr(use.op, args));
+      code.remove(i);
+      return true;
+    }
+  }
+
+  // a scratch register written and never read
+  static class DeadScratch extends Rule {
+    boolean apply(List<Asm> code, int i, State state) {
+      Asm line = code.get(i);
+      if (line.isLabel() || line.args.length != 2 || !MOVES.contains(line.op)
+          || !SCRATCH.containsKey(line.args[1])
+          || !deadAfter(code, i, line.args[1])) {
+        return false;
+      }
+      code.remove(i);
+      return true;
+    }
+  }
+
+  // movq $0, %rbx becomes xorl %ebx, %ebx, which clobbers the flags
+  static class Zero extends Rule {
+    boolean apply(List<Asm> code, int i, State state) {
+      Asm line = code.get(i);
+      if (line.is("movq") && line.args[0].equals("$0") && LOW32.containsKey(line.args[1])
+          && flagsDeadAfter(code, i)) {
+        String low = LOW32.get(line.args[1]);
+        code.set(i, Asm.instr("xorl", low, low));
+        return true;
+      }
+      return false;
+    }
+  }
+
+  // cmpq $0, %rax becomes testq %rax, %rax
+  static class TestZero extends Rule {
+    boolean apply(List<Asm> code, int i, State state) {
+      Asm line = code.get(i);
+      if (line.is("cmpq") && line.args[0].equals("$0") && isRegister(line.args[1])) {
+        code.set(i, Asm.instr("testq", line.args[1], line.args[1]));
+        return true;
+      }
+      return false;
+    }
+  }
+
+  // jl A; jmp B; A: becomes jge B; A:
+  static class BranchInversion extends Rule {
+    boolean apply(List<Asm> code, int i, State state) {
+      Asm branch = code.get(i), jump = at(code, i + 1), next = at(code, i + 2);
+      if (INVERSE.containsKey(branch.op) && jump != null && jump.is("jmp")
+          && next != null && next.isLabel() && next.label.equals(branch.args[0])) {
+        code.set(i, Asm.instr(INVERSE.get(branch.op), jump.args[0]));
+        code.remove(i + 1);
+        return true;
+      }
+      return false;
+    }
+  }
+
+  // a jump to the label right after it
+  static class JumpToNext extends Rule {
+    boolean apply(List<Asm> code, int i, State state) {
+      Asm jump = code.get(i);
+      if (!jump.isJump()) {
+        return false;
+      }
+      for (int j = i + 1; j < code.size() && code.get(j).isLabel(); j++) {
+        if (code.get(j).label.equals(jump.args[0])) {
+          code.remove(i);
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  // a jump to a jmp goes straight to where that one goes
+  static class JumpThreading extends Rule {
+    boolean apply(List<Asm> code, int i, State state) {
+      Asm jump = code.get(i);
+      if (!jump.isJump()) {
+        return false;
+      }
+      String target = jump.args[0];
+      Set<String> seen = new HashSet<>(Collections.singleton(target));
+      for (String next = jumpAt(code, state, target); next != null;
+          next = jumpAt(code, state, target)) {
+        if (!seen.add(next)) {
+          // a cycle of jumps is left alone
+          return false;
+        }
+        target = next;
+      }
+      if (target.equals(jump.args[0])) {
+        return false;
+      }
+      code.set(i, Asm.instr(jump.op, target));
+      return true;
+    }
+    // where the jmp found at a label goes, if there is one
+    private static String jumpAt(List<Asm> code, State state, String label) {
+      Integer j = state.labels.get(label);
+      if (j == null || j >= code.size() || !code.get(j).isLabel()
+          || !code.get(j).label.equals(label)) {
+        return null;
+      }
+      while (j < code.size() && code.get(j).isLabel()) {
+        j++;
+      }
+      return j < code.size() && code.get(j).is("jmp") ? code.get(j).args[0] : null;
+    }
+  }
+
+  // lines after a jmp or retq that no label leads to
+  static class Unreachable extends Rule {
+    boolean apply(List<Asm> code, int i, State state) {
+      Asm line = code.get(i);
+      boolean removed = false;
+      while ((line.is("jmp") || line.is("retq")) && i + 1 < code.size()
+          && !code.get(i + 1).isLabel()) {
+        code.remove(i + 1);
+        removed = true;
+      }
+      return removed;
+    }
+  }
+
+  // a local label nothing jumps to
+  static class UnusedLabel extends Rule {
+    boolean apply(List<Asm> code, int i, State state) {
+      Asm line = code.get(i);
+      if (line.isLabel() && line.label.startsWith(".L")
+          && !state.refs.containsKey(line.label)) {
+        code.remove(i);
+        return true;
+      }
+      return false;
+    }
+  }
+}
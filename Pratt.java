@@ -0,0 +1,458 @@
+// Hand-written front end: a scanner and a Pratt parser for BX0
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.*;
+
+/** Reads the language of BX0.g4 into the same Ast.Source.Prog that
+    SourceCreator builds, without ANTLR. The scanner works straight on the
+    memory-mapped file and keeps only the kind and the extent of the
+    current token, so no token objects are made, and text only for names.
+    Binary operators are parsed by precedence climbing over the levels the
+    grammar gives them by the order of its alternatives, all of them left
+    associative, with the prefix operators binding tightest. The first
+    syntax error is raised as a CompileError. */
+public class Pratt {
+  private static final int EOF = 0, NAME = 1, NUM = 2, TRUE = 3, FALSE = 4, VAR = 5,
+    INT64 = 6, BOOL = 7, PRINT = 8, IF = 9, ELSE = 10, WHILE = 11, ASSIGN = 12, SEMI = 13,
+    COMMA = 14, COLON = 15, LBRACE = 16, RBRACE = 17, LPAREN = 18, RPAREN = 19, TILDE = 20,
+    MINUS = 21, BANG = 22, STAR = 23, SLASH = 24, PERCENT = 25, PLUS = 26, SHL = 27,
+    SHR = 28, AMP = 29, CARET = 30, BAR = 31, ANDAND = 32, OROR = 33, EQ = 34, NEQ = 35,
+    LT = 36, LEQ = 37, GT = 38, GEQ = 39;
+  private static final String[] NAMES = {
+    "<EOF>", "a name", "a number", "'true'", "'false'", "'var'", "'int64'", "'bool'",
+    "'print'", "'if'", "'else'", "'while'", "'='", "';'", "','", "':'", "'{'", "'}'", "'('",
+    "')'", "'~'", "'-'", "'!'", "'*'", "'/'", "'%'", "'+'", "'<<'", "'>>'", "'&'", "'^'",
+    "'|'", "'&&'", "'||'", "'=='", "'!='", "'<'", "'<='", "'>'", "'>='"
+  };
+  private static final Map<String, Integer> KEYWORDS = new HashMap<>();
+  static {
+    for (int kind = TRUE; kind <= WHILE; kind++) {
+      KEYWORDS.put(NAMES[kind].substring(1, NAMES[kind].length() - 1), kind);
+    }
+  }
+  // how tightly each binary operator binds, 0 for tokens that are not one
+  private static final int[] PRECEDENCE = new int[GEQ + 1];
+  static {
+    int[][] levels = {
+      { STAR, SLASH, PERCENT }, { PLUS, MINUS }, { SHL, SHR }, { AMP }, { CARET }, { BAR },
+      { ANDAND, OROR }, { EQ, NEQ }, { LT, LEQ }, { GT, GEQ }
+    };
+    for (int level = 0; level < levels.length; level++) {
+      for (int kind : levels[level]) {
+        PRECEDENCE[kind] = levels.length - level;
+      }
+    }
+  }
+
+  private final MappedByteBuffer in;
+  private final int end;
+  // the current token: its kind, where it starts and ends, and its position
+  private int kind, start, pos, line = 1, lineStart = 0, tokenLine, tokenColumn;
+
+  private Pratt(MappedByteBuffer in) {
+    this.in = in;
+    this.end = in.limit();
+    next();
+  }
+
+  /** Parse a file */
+  public static Ast.Source.Prog readProgram(String file) throws IOException {
+    return open(file).program();
+  }
+
+  /** Start reading a file, to take it a part at a time with declarations
+      and then nextStatement. The mapping outlives the open file. */
+  public static Pratt open(String file) throws IOException {
+    try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+      return new Pratt(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+  }
+
+  private Ast.Source.CompileError error(String message) {
+    return new Ast.Source.CompileError(String.format("line %d:%d %s", this.tokenLine,
+      this.tokenColumn, message));
+  }
+
+  // the byte at i, unsigned so that none of them reads as the -1 past the end
+  private int at(int i) {
+    return i < this.end ? this.in.get(i) & 0xff : -1;
+  }
+
+  private static boolean isNameStart(int c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+  }
+
+  private static boolean isDigit(int c) {
+    return c >= '0' && c <= '9';
+  }
+
+  // scan the next token
+  private void next() {
+    int p = this.pos;
+    while (true) {
+      int c = at(p);
+      if (c == '\n') {
+        this.line++;
+        this.lineStart = ++p;
+      } else if (c == ' ' || c == '\t' || c == '\r') {
+        p++;
+      } else if (c == '/' && at(p + 1) == '/') {
+        while (at(p) != '\n' && p < this.end) {
+          p++;
+        }
+      } else {
+        break;
+      }
+    }
+    this.start = p;
+    this.tokenLine = this.line;
+    this.tokenColumn = p - this.lineStart;
+    int c = at(p);
+    if (p >= this.end) {
+      this.kind = EOF;
+    } else if (isNameStart(c)) {
+      while (isNameStart(at(p)) || isDigit(at(p))) {
+        p++;
+      }
+      this.kind = NAME;
+      // keywords are short, so only those are made into strings
+      if (p - this.start <= 5) {
+        Integer keyword = KEYWORDS.get(text(this.start, p));
+        if (keyword != null) {
+          this.kind = keyword;
+        }
+      }
+    } else if (isDigit(c)) {
+      while (isDigit(at(p))) {
+        p++;
+      }
+      this.kind = NUM;
+    } else {
+      int d = at(p + 1);
+      p++;
+      switch (c) {
+        case '=': this.kind = d == '=' ? EQ : ASSIGN; break;
+        case ';': this.kind = SEMI; break;
+        case ',': this.kind = COMMA; break;
+        case ':': this.kind = COLON; break;
+        case '{': this.kind = LBRACE; break;
+        case '}': this.kind = RBRACE; break;
+        case '(': this.kind = LPAREN; break;
+        case ')': this.kind = RPAREN; break;
+        case '~': this.kind = TILDE; break;
+        case '-': this.kind = MINUS; break;
+        case '!': this.kind = d == '=' ? NEQ : BANG; break;
+        case '*': this.kind = STAR; break;
+        case '/': this.kind = SLASH; break;
+        case '%': this.kind = PERCENT; break;
+        case '+': this.kind = PLUS; break;
+        case '^': this.kind = CARET; break;
+        case '&': this.kind = d == '&' ? ANDAND : AMP; break;
+        case '|': this.kind = d == '|' ? OROR : BAR; break;
+        case '<': this.kind = d == '<' ? SHL : d == '=' ? LEQ : LT; break;
+        case '>': this.kind = d == '>' ? SHR : d == '=' ? GEQ : GT; break;
+        default:
+          throw error(String.format("token recognition error at: '%c'", (char) c));
+      }
+      if (this.kind == EQ || this.kind == NEQ || this.kind == ANDAND || this.kind == OROR
+          || this.kind == SHL || this.kind == SHR || this.kind == LEQ || this.kind == GEQ) {
+        p++;
+      }
+    }
+    this.pos = p;
+  }
+
+  private String text(int from, int to) {
+    char[] chars = new char[to - from];
+    for (int i = from; i < to; i++) {
+      chars[i - from] = (char) (this.in.get(i) & 0xff);
+    }
+    return new String(chars);
+  }
+
+  private void expect(int kind) {
+    if (this.kind != kind) {
+      throw error(String.format("expected %s at %s", NAMES[kind], NAMES[this.kind]));
+    }
+    next();
+  }
+
+  private String name() {
+    if (this.kind != NAME) {
+      throw error(String.format("expected a name at %s", NAMES[this.kind]));
+    }
+    String name = text(this.start, this.pos);
+    next();
+    return name;
+  }
+
+  private Ast.Source.Prog program() {
+    Map<String, Ast.Source.VarDecl> vars = declarations();
+    List<Ast.Source.Stmt> stmts = new ArrayList<>();
+    for (Ast.Source.Stmt stmt = nextStatement(); stmt != null; stmt = nextStatement()) {
+      stmts.add(stmt);
+    }
+    return new Ast.Source.Prog(stmts, vars);
+  }
+
+  /** The variables declared at the head of the file, which are not yet
+      type checked */
+  public Map<String, Ast.Source.VarDecl> declarations() {
+    Map<String, Ast.Source.VarDecl> vars = new LinkedHashMap<>();
+    while (this.kind == VAR) {
+      next();
+      List<String> names = new ArrayList<>();
+      List<Ast.Source.Expr> values = new ArrayList<>();
+      do {
+        names.add(name());
+        if (this.kind == ASSIGN) {
+          next();
+          values.add(expr(1));
+        } else {
+          values.add(null);
+        }
+      } while (this.kind == COMMA && next(true));
+      expect(COLON);
+      Ast.Source.Type type;
+      if (this.kind == INT64) {
+        type = Ast.Source.Types.int64;
+      } else if (this.kind == BOOL) {
+        type = Ast.Source.Types.bool;
+      } else {
+        throw error(String.format("expected a type at %s", NAMES[this.kind]));
+      }
+      next();
+      expect(SEMI);
+      for (int k = 0; k < names.size(); k++) {
+        vars.put(names.get(k), new Ast.Source.VarDecl(type, values.get(k)));
+      }
+    }
+    return vars;
+  }
+
+  /** The next top-level statement, or null at the end of the file */
+  public Ast.Source.Stmt nextStatement() {
+    return this.kind == EOF ? null : statement();
+  }
+
+  /** Where a top-level statement lies in the file, from its first token
+      up to the token after it */
+  public static class Extent {
+    final int from, to, line, column;
+    Extent(int from, int to, int line, int column) {
+      this.from = from;
+      this.to = to;
+      this.line = line;
+      this.column = column;
+    }
+  }
+
+  /** Pass over the next top-level statement by matching its braces,
+      without parsing it, or return null at the end of the file. A
+      statement that does not scan is passed over up to where it fails,
+      for read to report. */
+  public Extent skip() {
+    if (this.kind == EOF) {
+      return null;
+    }
+    int from = this.start, line = this.tokenLine, column = this.tokenColumn;
+    try {
+      if (this.kind == NAME || this.kind == PRINT) {
+        while (this.kind != SEMI && this.kind != EOF && this.kind != LBRACE
+            && this.kind != RBRACE) {
+          next();
+        }
+        if (this.kind == SEMI) {
+          next();
+        }
+      } else if (this.kind == LBRACE || this.kind == IF || this.kind == WHILE) {
+        do {
+          while (this.kind != LBRACE && this.kind != EOF) {
+            next();
+          }
+          int depth = 0;
+          while (this.kind != EOF) {
+            depth += this.kind == LBRACE ? 1 : this.kind == RBRACE ? -1 : 0;
+            next();
+            if (depth == 0) {
+              break;
+            }
+          }
+        } while (this.kind == ELSE && next(true));
+      }
+    } catch (Ast.Source.CompileError e) {
+      // left for read to meet
+    }
+    return new Extent(from, this.start, line, column);
+  }
+
+  /** Add the bytes of a statement to digest */
+  public void digest(Extent extent, MessageDigest digest) {
+    ByteBuffer bytes = this.in.duplicate();
+    bytes.position(extent.from);
+    bytes.limit(extent.to);
+    digest.update(bytes);
+  }
+
+  /** Parse a statement that skip passed over, leaving the scanner after
+      it, from where skip goes on */
+  public Ast.Source.Stmt read(Extent extent) {
+    this.pos = extent.from;
+    this.line = extent.line;
+    this.lineStart = extent.from - extent.column;
+    next();
+    return statement();
+  }
+
+  /** Whether read stopped where skip did, so that the statement is made of
+      just the bytes of extent */
+  public boolean ends(Extent extent) {
+    return this.start == extent.to;
+  }
+
+  // move past the current token, for use in conditions
+  private boolean next(boolean result) {
+    next();
+    return result;
+  }
+
+  private Ast.Source.Stmt statement() {
+    switch (this.kind) {
+      case NAME: {
+        Ast.Source.Dest dest = new Ast.Source.Dest(name());
+        expect(ASSIGN);
+        Ast.Source.Expr source = expr(1);
+        expect(SEMI);
+        return new Ast.Source.Stmt.Move(dest, source);
+      }
+      case PRINT: {
+        next();
+        Ast.Source.Expr arg = expr(1);
+        expect(SEMI);
+        return new Ast.Source.Stmt.Print(arg);
+      }
+      case LBRACE: {
+        Ast.Source.Stmt.Block block = new Ast.Source.Stmt.Block();
+        block.stmts.addAll(block());
+        return block;
+      }
+      case IF:
+        return ifElse();
+      case WHILE: {
+        next();
+        expect(LPAREN);
+        Ast.Source.Expr condition = expr(1);
+        expect(RPAREN);
+        return new Ast.Source.Stmt.While(condition, block());
+      }
+      default:
+        throw error(String.format("expected a statement at %s", NAMES[this.kind]));
+    }
+  }
+
+  private List<Ast.Source.Stmt> block() {
+    expect(LBRACE);
+    List<Ast.Source.Stmt> stmts = new ArrayList<>();
+    while (this.kind != RBRACE) {
+      stmts.add(statement());
+    }
+    next();
+    return stmts;
+  }
+
+  private Ast.Source.Stmt ifElse() {
+    expect(IF);
+    expect(LPAREN);
+    Ast.Source.Expr condition = expr(1);
+    expect(RPAREN);
+    List<Ast.Source.Stmt> thenBranch = block();
+    List<Ast.Source.Stmt> elseBranch = null;
+    if (this.kind == ELSE) {
+      next();
+      elseBranch = this.kind == IF ? new ArrayList<>(Collections.singletonList(ifElse()))
+        : block();
+    }
+    return new Ast.Source.Stmt.IfElse(condition, thenBranch, elseBranch);
+  }
+
+  // an expression whose operators bind at least as tightly as minPrecedence
+  private Ast.Source.Expr expr(int minPrecedence) {
+    Ast.Source.Expr left = prefix();
+    for (int op = this.kind; PRECEDENCE[op] >= minPrecedence && PRECEDENCE[op] > 0;
+        op = this.kind) {
+      next();
+      Ast.Source.Expr right = expr(PRECEDENCE[op] + 1);
+      left = binary(op, left, right);
+    }
+    return left;
+  }
+
+  private Ast.Source.Expr prefix() {
+    switch (this.kind) {
+      case NAME:
+        return new Ast.Source.Expr.Read(new Ast.Source.Dest(name()));
+      case NUM: {
+        long value = 0;
+        for (int i = this.start; i < this.pos; i++) {
+          int digit = this.in.get(i) - '0';
+          if (value > (Long.MAX_VALUE - digit) / 10) {
+            throw error("number out of range: " + text(this.start, this.pos));
+          }
+          value = 10 * value + digit;
+        }
+        next();
+        return new Ast.Source.Expr.IntImm(value);
+      }
+      case TRUE:
+      case FALSE: {
+        boolean value = this.kind == TRUE;
+        next();
+        return new Ast.Source.Expr.BoolImm(value);
+      }
+      case TILDE:
+      case MINUS:
+      case BANG: {
+        Ast.Source.Unop op = this.kind == MINUS ? Ast.Source.Unop.Negate
+          : this.kind == TILDE ? Ast.Source.Unop.BitNot : Ast.Source.Unop.BoolNot;
+        next();
+        return new Ast.Source.Expr.UnopApp(op, prefix());
+      }
+      case LPAREN: {
+        next();
+        Ast.Source.Expr inner = expr(1);
+        expect(RPAREN);
+        return inner;
+      }
+      default:
+        throw error(String.format("expected an expression at %s", NAMES[this.kind]));
+    }
+  }
+
+  private static Ast.Source.Expr binary(int op, Ast.Source.Expr left, Ast.Source.Expr right) {
+    switch (op) {
+      case STAR: return new Ast.Source.Expr.BinopApp(left, Ast.Source.Binop.Multiply, right);
+      case SLASH: return new Ast.Source.Expr.BinopApp(left, Ast.Source.Binop.Divide, right);
+      case PERCENT: return new Ast.Source.Expr.BinopApp(left, Ast.Source.Binop.Modulus, right);
+      case PLUS: return new Ast.Source.Expr.BinopApp(left, Ast.Source.Binop.Add, right);
+      case MINUS: return new Ast.Source.Expr.BinopApp(left, Ast.Source.Binop.Subtract, right);
+      case SHL: return new Ast.Source.Expr.BinopApp(left, Ast.Source.Binop.Lshift, right);
+      case SHR: return new Ast.Source.Expr.BinopApp(left, Ast.Source.Binop.Rshift, right);
+      case AMP: return new Ast.Source.Expr.BinopApp(left, Ast.Source.Binop.BitAnd, right);
+      case CARET: return new Ast.Source.Expr.BinopApp(left, Ast.Source.Binop.BitXor, right);
+      case BAR: return new Ast.Source.Expr.BinopApp(left, Ast.Source.Binop.BitOr, right);
+      case ANDAND: return new Ast.Source.Expr.BoolOpApp(left, Ast.Source.BoolOp.And, right);
+      case OROR: return new Ast.Source.Expr.BoolOpApp(left, Ast.Source.BoolOp.Or, right);
+      case EQ: return new Ast.Source.Expr.Comp(left, Ast.Source.CompOp.Eq, right);
+      case NEQ: return new Ast.Source.Expr.Comp(left, Ast.Source.CompOp.Neq, right);
+      case LT: return new Ast.Source.Expr.Comp(left, Ast.Source.CompOp.Lt, right);
+      case LEQ: return new Ast.Source.Expr.Comp(left, Ast.Source.CompOp.Leq, right);
+      case GT: return new Ast.Source.Expr.Comp(left, Ast.Source.CompOp.Gt, right);
+      case GEQ: return new Ast.Source.Expr.Comp(left, Ast.Source.CompOp.Geq, right);
+      default: throw new IllegalArgumentException(NAMES[op]);
+    }
+  }
+}
@@ -0,0 +1,523 @@
+// Register allocation for the pseudo-registers of an RTL program
+import java.util.*;
+
+public abstract class RegAlloc {
+  // %rax, %rdx and %rcx are scratch registers of the instruction templates
+  // in Ast.Target.Instr and %rdi carries the argument of bx0_print, so only
+  // the remaining general purpose registers are handed out
+  public static final String[] CALLEE_SAVED = {
+    "%rbx", "%r12", "%r13", "%r14", "%r15"
+  };
+  public static final String[] CALLER_SAVED = {
+    "%rsi", "%r8", "%r9", "%r10", "%r11"
+  };
+
+  private static boolean isCalleeSaved(String reg) {
+    return Arrays.asList(CALLEE_SAVED).contains(reg);
+  }
+
+  // record the chosen locations in the Dests and the frame layout in the prog
+  private static void commit(Ast.Target.Prog prog, String[] regs, int[] slots,
+    int slotCount) {
+    for (Ast.Target.Instr instr : prog.instructions) {
+      List<Ast.Target.Dest> dests = new ArrayList<>(Arrays.asList(instr.uses()));
+      if (instr.def() != null) {
+        dests.add(instr.def());
+      }
+      for (Ast.Target.Dest dest : dests) {
+        dest.reg = regs[dest.loc];
+        dest.slot = slots[dest.loc];
+      }
+    }
+    prog.frameSlots = slotCount;
+    prog.savedRegs = new ArrayList<>();
+    for (String reg : CALLEE_SAVED) {
+      if (Arrays.asList(regs).contains(reg)) {
+        prog.savedRegs.add(reg);
+      }
+    }
+  }
+
+  /** Poletto and Sarkar's linear scan over the laid out instruction list.
+      Instruction i reads its operands at position 2i and writes its result
+      at position 2i + 1, so a result may reuse the register of an operand
+      that dies in the same instruction. Returns the number of spills. */
+  public static class LinearScan {
+    public static int allocate(Ast.Target.Prog prog) {
+      Cfg cfg = new Cfg(prog);
+      cfg.computeLiveness();
+      int n = prog.varCount;
+      int[] start = new int[n];
+      int[] end = new int[n];
+      boolean[] crossesCall = new boolean[n];
+      Arrays.fill(start, Integer.MAX_VALUE);
+      Arrays.fill(end, -1);
+
+      // live intervals are the hull of every position a pseudo-register is live at
+      Ast.Target.Code code = cfg.code;
+      for (int b = 0; b < cfg.blocks.length; b++) {
+        BitSet live = (BitSet) cfg.liveOut[b].clone();
+        for (int k = cfg.blocks[b].length - 1; k >= 0; k--) {
+          int i = cfg.blocks[b][k];
+          // bx0_print is free to clobber every caller-saved register
+          boolean call = code.opcode[i] == Ast.Target.Code.PRINT;
+          for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1)) {
+            start[v] = Math.min(start[v], 2 * i + 1);
+            end[v] = Math.max(end[v], 2 * i + 1);
+            crossesCall[v] |= call;
+          }
+          if (code.def[i] != -1) {
+            int v = code.def[i];
+            start[v] = Math.min(start[v], 2 * i + 1);
+            end[v] = Math.max(end[v], 2 * i + 1);
+          }
+          code.transfer(i, live);
+          for (int u = code.useStart[i]; u < code.useStart[i + 1]; u++) {
+            int v = code.uses[u];
+            start[v] = Math.min(start[v], 2 * i);
+            end[v] = Math.max(end[v], 2 * i);
+          }
+        }
+      }
+
+      List<Integer> intervals = new ArrayList<>();
+      for (int v = 0; v < n; v++) {
+        if (end[v] != -1) {
+          intervals.add(v);
+        }
+      }
+      intervals.sort((v1, v2) -> Integer.compare(start[v1], start[v2]));
+
+      String[] regs = new String[n];
+      int[] slots = new int[n];
+      Arrays.fill(slots, -1);
+      Deque<String> freeRegs = new ArrayDeque<>(Arrays.asList(CALLER_SAVED));
+      freeRegs.addAll(Arrays.asList(CALLEE_SAVED));
+      PriorityQueue<Integer> freeSlots = new PriorityQueue<>();
+      int slotCount = 0, spills = 0;
+      // intervals currently holding a register or a stack slot, by end point
+      Comparator<Integer> byEnd = (v1, v2) -> Integer.compare(end[v1], end[v2]);
+      TreeSet<Integer> active = new TreeSet<>(byEnd.thenComparing(v -> v));
+      TreeSet<Integer> activeSlots = new TreeSet<>(byEnd.thenComparing(v -> v));
+
+      for (int cur : intervals) {
+        while (!active.isEmpty() && end[active.first()] < start[cur]) {
+          freeRegs.add(regs[active.pollFirst()]);
+        }
+        while (!activeSlots.isEmpty() && end[activeSlots.first()] < start[cur]) {
+          freeSlots.add(slots[activeSlots.pollFirst()]);
+        }
+        String reg = null;
+        for (String free : freeRegs) {
+          if (!crossesCall[cur] || isCalleeSaved(free)) {
+            reg = free;
+            break;
+          }
+        }
+        int victim = -1;
+        if (reg != null) {
+          freeRegs.remove(reg);
+        } else {
+          // spill whichever usable interval reaches furthest
+          for (int v : active.descendingSet()) {
+            if (!crossesCall[cur] || isCalleeSaved(regs[v])) {
+              victim = end[v] > end[cur] ? v : cur;
+              break;
+            }
+          }
+          victim = victim == -1 ? cur : victim;
+          if (victim != cur) {
+            reg = regs[victim];
+            regs[victim] = null;
+            active.remove(victim);
+          }
+          slots[victim] = freeSlots.isEmpty() ? slotCount++ : freeSlots.poll();
+          activeSlots.add(victim);
+          spills++;
+        }
+        if (reg != null) {
+          regs[cur] = reg;
+          active.add(cur);
+        }
+      }
+      commit(prog, regs, slots, slotCount);
+      return spills;
+    }
+  }
+
+  /** Iterated register coalescing (George and Appel) over the interference
+      graph. Pseudo-registers live across a bx0_print call can only take the
+      callee-saved colours, so their degree is measured against that smaller
+      palette. Copies whose ends receive the same location are turned into
+      gotos. Returns the number of spilled pseudo-registers. */
+  public static class Coloring {
+    private static final String[] COLORS = new String[CALLER_SAVED.length
+      + CALLEE_SAVED.length];
+    static {
+      System.arraycopy(CALLER_SAVED, 0, COLORS, 0, CALLER_SAVED.length);
+      System.arraycopy(CALLEE_SAVED, 0, COLORS, CALLER_SAVED.length,
+        CALLEE_SAVED.length);
+    }
+
+    private final Ast.Target.Prog prog;
+    private final int n;
+    private final boolean[] present, crossesCall;
+    private final int[] cost;
+    private final Set<Long> adjSet = new HashSet<>();
+    private final List<List<Integer>> adjList = new ArrayList<>();
+    private final int[] degree, alias, color;
+    private final List<Ast.Target.Instr.MoveCp> moves = new ArrayList<>();
+    private final List<List<Integer>> moveList = new ArrayList<>();
+    private final Set<Integer> worklistMoves = new LinkedHashSet<>(),
+      activeMoves = new HashSet<>();
+    private final Set<Integer> simplifyWorklist = new LinkedHashSet<>(),
+      freezeWorklist = new LinkedHashSet<>(), spillWorklist = new LinkedHashSet<>(),
+      spilledNodes = new LinkedHashSet<>(), coalescedNodes = new HashSet<>();
+    private final Deque<Integer> selectStack = new ArrayDeque<>();
+    private final boolean[] onStack;
+    public int coalesced = 0;
+
+    private Coloring(Ast.Target.Prog prog) {
+      this.prog = prog;
+      this.n = prog.varCount;
+      this.present = new boolean[n];
+      this.crossesCall = new boolean[n];
+      this.cost = new int[n];
+      this.degree = new int[n];
+      this.alias = new int[n];
+      this.color = new int[n];
+      this.onStack = new boolean[n];
+      for (int v = 0; v < n; v++) {
+        this.adjList.add(new ArrayList<>());
+        this.moveList.add(new ArrayList<>());
+        this.alias[v] = v;
+        this.color[v] = -1;
+      }
+    }
+
+    public static int allocate(Ast.Target.Prog prog) {
+      Coloring coloring = new Coloring(prog);
+      return coloring.run();
+    }
+
+    private int run() {
+      build();
+      makeWorklist();
+      while (!simplifyWorklist.isEmpty() || !worklistMoves.isEmpty()
+          || !freezeWorklist.isEmpty() || !spillWorklist.isEmpty()) {
+        if (!simplifyWorklist.isEmpty()) {
+          simplify();
+        } else if (!worklistMoves.isEmpty()) {
+          coalesce();
+        } else if (!freezeWorklist.isEmpty()) {
+          freeze();
+        } else {
+          selectSpill();
+        }
+      }
+      assignColors();
+
+      // spilled pseudo-registers that do not interfere share stack slots
+      String[] regs = new String[n];
+      int[] slots = new int[n];
+      Arrays.fill(slots, -1);
+      int slotCount = 0;
+      for (int v : spilledNodes) {
+        Set<Integer> taken = new HashSet<>();
+        for (int w : adjList.get(v)) {
+          taken.add(slots[getAlias(w)]);
+        }
+        int slot = 0;
+        while (taken.contains(slot)) {
+          slot++;
+        }
+        slots[v] = slot;
+        slotCount = Math.max(slotCount, slot + 1);
+      }
+      for (int v = 0; v < n; v++) {
+        int a = getAlias(v);
+        regs[v] = color[a] == -1 ? null : COLORS[color[a]];
+        slots[v] = slots[a];
+      }
+      commit(prog, regs, slots, slotCount);
+
+      for (int i = 0; i < prog.instructions.size(); i++) {
+        Ast.Target.Instr instr = prog.instructions.get(i);
+        if (instr instanceof Ast.Target.Instr.MoveCp
+            && getAlias(((Ast.Target.Instr.MoveCp) instr).dest.loc)
+              == getAlias(((Ast.Target.Instr.MoveCp) instr).source.loc)) {
+          Ast.Target.Instr jump = new Ast.Target.Instr.Goto(instr.inLabel,
+            instr.outLabel1);
+          jump.shouldJump = instr.shouldJump;
+          prog.instructions.set(i, jump);
+        }
+      }
+      return spilledNodes.size();
+    }
+
+    private int k(int v) {
+      return crossesCall[v] ? CALLEE_SAVED.length : COLORS.length;
+    }
+
+    private void addEdge(int u, int v) {
+      if (u != v && adjSet.add((long) u * n + v)) {
+        adjSet.add((long) v * n + u);
+        adjList.get(u).add(v);
+        adjList.get(v).add(u);
+        degree[u]++;
+        degree[v]++;
+      }
+    }
+
+    private void build() {
+      Cfg cfg = new Cfg(prog);
+      cfg.computeLiveness();
+      Ast.Target.Code code = cfg.code;
+      for (int b = 0; b < cfg.blocks.length; b++) {
+        BitSet live = (BitSet) cfg.liveOut[b].clone();
+        for (int k = cfg.blocks[b].length - 1; k >= 0; k--) {
+          int i = cfg.blocks[b][k];
+          if (code.opcode[i] == Ast.Target.Code.MOVE_CP) {
+            Ast.Target.Instr.MoveCp move = (Ast.Target.Instr.MoveCp) cfg.instrs.get(i);
+            live.clear(move.source.loc);
+            if (move.source.loc != move.dest.loc) {
+              moveList.get(move.source.loc).add(moves.size());
+              moveList.get(move.dest.loc).add(moves.size());
+              worklistMoves.add(moves.size());
+              moves.add(move);
+            }
+          }
+          if (code.opcode[i] == Ast.Target.Code.PRINT) {
+            for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1)) {
+              crossesCall[v] = true;
+            }
+          }
+          if (code.def[i] != -1) {
+            int d = code.def[i];
+            present[d] = true;
+            cost[d]++;
+            for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1)) {
+              addEdge(d, v);
+            }
+          }
+          code.transfer(i, live);
+          for (int u = code.useStart[i]; u < code.useStart[i + 1]; u++) {
+            present[code.uses[u]] = true;
+            cost[code.uses[u]]++;
+          }
+        }
+      }
+    }
+
+    private void makeWorklist() {
+      for (int v = 0; v < n; v++) {
+        if (!present[v]) {
+          continue;
+        } else if (degree[v] >= k(v)) {
+          spillWorklist.add(v);
+        } else if (moveRelated(v)) {
+          freezeWorklist.add(v);
+        } else {
+          simplifyWorklist.add(v);
+        }
+      }
+    }
+
+    private List<Integer> adjacent(int v) {
+      List<Integer> adj = new ArrayList<>();
+      for (int w : adjList.get(v)) {
+        if (!onStack[w] && !coalescedNodes.contains(w)) {
+          adj.add(w);
+        }
+      }
+      return adj;
+    }
+
+    private List<Integer> nodeMoves(int v) {
+      List<Integer> res = new ArrayList<>();
+      for (int m : moveList.get(v)) {
+        if (activeMoves.contains(m) || worklistMoves.contains(m)) {
+          res.add(m);
+        }
+      }
+      return res;
+    }
+
+    private boolean moveRelated(int v) {
+      return !nodeMoves(v).isEmpty();
+    }
+
+    private void simplify() {
+      Iterator<Integer> it = simplifyWorklist.iterator();
+      int v = it.next();
+      it.remove();
+      selectStack.push(v);
+      onStack[v] = true;
+      for (int w : adjacent(v)) {
+        decrementDegree(w);
+      }
+    }
+
+    private void decrementDegree(int v) {
+      int d = degree[v]--;
+      if (d == k(v)) {
+        enableMoves(v);
+        for (int w : adjacent(v)) {
+          enableMoves(w);
+        }
+        spillWorklist.remove(v);
+        if (moveRelated(v)) {
+          freezeWorklist.add(v);
+        } else {
+          simplifyWorklist.add(v);
+        }
+      }
+    }
+
+    private void enableMoves(int v) {
+      for (int m : nodeMoves(v)) {
+        if (activeMoves.remove(m)) {
+          worklistMoves.add(m);
+        }
+      }
+    }
+
+    private int getAlias(int v) {
+      return coalescedNodes.contains(v) ? (alias[v] = getAlias(alias[v])) : v;
+    }
+
+    private void addWorklist(int v) {
+      if (!moveRelated(v) && degree[v] < k(v)) {
+        freezeWorklist.remove(v);
+        simplifyWorklist.add(v);
+      }
+    }
+
+    // George: every significant neighbour of v already interferes with u
+    private boolean george(int u, int v) {
+      for (int t : adjacent(v)) {
+        if (degree[t] >= k(t) && t != u && !adjSet.contains((long) t * n + u)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    // Briggs: the merged node has fewer than K significant neighbours
+    private boolean briggs(int u, int v) {
+      int kMerged = crossesCall[u] || crossesCall[v] ? CALLEE_SAVED.length
+        : COLORS.length;
+      Set<Integer> nodes = new HashSet<>(adjacent(u));
+      nodes.addAll(adjacent(v));
+      int significant = 0;
+      for (int t : nodes) {
+        if (degree[t] >= k(t)) {
+          significant++;
+        }
+      }
+      return significant < kMerged;
+    }
+
+    private void coalesce() {
+      Iterator<Integer> it = worklistMoves.iterator();
+      int m = it.next();
+      it.remove();
+      int u = getAlias(moves.get(m).dest.loc);
+      int v = getAlias(moves.get(m).source.loc);
+      if (u == v) {
+        coalesced++;
+        addWorklist(u);
+      } else if (adjSet.contains((long) u * n + v)) {
+        addWorklist(u);
+        addWorklist(v);
+      } else if ((crossesCall[u] || !crossesCall[v]) && george(u, v)
+          || briggs(u, v)) {
+        coalesced++;
+        combine(u, v);
+        addWorklist(u);
+      } else {
+        activeMoves.add(m);
+      }
+    }
+
+    private void combine(int u, int v) {
+      if (freezeWorklist.contains(v)) {
+        freezeWorklist.remove(v);
+      } else {
+        spillWorklist.remove(v);
+      }
+      coalescedNodes.add(v);
+      alias[v] = u;
+      moveList.get(u).addAll(moveList.get(v));
+      crossesCall[u] |= crossesCall[v];
+      cost[u] += cost[v];
+      enableMoves(v);
+      for (int t : adjacent(v)) {
+        addEdge(t, u);
+        decrementDegree(t);
+      }
+      if (degree[u] >= k(u) && freezeWorklist.remove(u)) {
+        spillWorklist.add(u);
+      }
+      if (degree[u] >= k(u) && simplifyWorklist.remove(u)) {
+        spillWorklist.add(u);
+      }
+    }
+
+    private void freeze() {
+      Iterator<Integer> it = freezeWorklist.iterator();
+      int u = it.next();
+      it.remove();
+      simplifyWorklist.add(u);
+      freezeMoves(u);
+    }
+
+    private void freezeMoves(int u) {
+      for (int m : nodeMoves(u)) {
+        int x = moves.get(m).dest.loc, y = moves.get(m).source.loc;
+        int v = getAlias(y) == getAlias(u) ? getAlias(x) : getAlias(y);
+        activeMoves.remove(m);
+        worklistMoves.remove(m);
+        if (!moveRelated(v) && degree[v] < k(v) && freezeWorklist.remove(v)) {
+          simplifyWorklist.add(v);
+        }
+      }
+    }
+
+    private void selectSpill() {
+      // cheapest node per unit of degree goes first
+      int best = -1;
+      for (int v : spillWorklist) {
+        if (best == -1 || (long) degree[v] * cost[best] > (long) degree[best] * cost[v]) {
+          best = v;
+        }
+      }
+      spillWorklist.remove(best);
+      simplifyWorklist.add(best);
+      freezeMoves(best);
+    }
+
+    private void assignColors() {
+      while (!selectStack.isEmpty()) {
+        int v = selectStack.pop();
+        onStack[v] = false;
+        boolean[] used = new boolean[COLORS.length];
+        for (int w : adjList.get(v)) {
+          int a = getAlias(w);
+          if (color[a] != -1 && !onStack[a]) {
+            used[color[a]] = true;
+          }
+        }
+        int c = crossesCall[v] ? CALLER_SAVED.length : 0;
+        while (c < COLORS.length && used[c]) {
+          c++;
+        }
+        if (c == COLORS.length) {
+          spilledNodes.add(v);
+        } else {
+          color[v] = c;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,484 @@
+// Static single assignment form of the RTL
+import java.util.*;
+
+public abstract class Ssa {
+  /** Rewrite the program into pruned SSA form. Phis are placed on the
+      iterated dominance frontier of the definitions of every pseudo-register
+      that is live there, then every definition gets a pseudo-register of
+      its own by a walk down the dominator tree. */
+  public static void construct(Ast.Target.Prog prog) {
+    removeUnreachable(prog);
+    Cfg cfg = new Cfg(prog);
+    if (cfg.entry == -1) {
+      return;
+    }
+    if (cfg.preds[cfg.entry].length > 0) {
+      // the entry block must not be a merge point
+      int label = prog.newLabel();
+      prog.instructions.add(0, new Ast.Target.Instr.Goto(label, prog.entryLabel));
+      prog.entryLabel = label;
+      cfg = new Cfg(prog);
+    }
+    cfg.computeLiveness();
+    cfg.computeDominators();
+    int nb = cfg.blocks.length;
+    int nv = prog.varCount;
+
+    // dominance frontiers, walking up from every predecessor of a merge
+    List<Set<Integer>> frontier = new ArrayList<>();
+    for (int b = 0; b < nb; b++) {
+      frontier.add(new LinkedHashSet<>());
+    }
+    for (int b = 0; b < nb; b++) {
+      if (cfg.idom[b] == -1 || cfg.blockPreds[b].length < 2) {
+        continue;
+      }
+      for (int p : cfg.blockPreds[b]) {
+        for (int runner = p; runner != cfg.idom[b]; runner = cfg.idom[runner]) {
+          frontier.get(runner).add(b);
+        }
+      }
+    }
+
+    // phi placement, pruned by liveness
+    List<List<Integer>> defBlocks = new ArrayList<>();
+    for (int v = 0; v < nv; v++) {
+      defBlocks.add(new ArrayList<>());
+    }
+    for (int b = 0; b < nb; b++) {
+      for (int i : cfg.blocks[b]) {
+        if (cfg.code.def[i] != -1) {
+          defBlocks.get(cfg.code.def[i]).add(b);
+        }
+      }
+    }
+    List<List<Integer>> phiVars = new ArrayList<>();
+    for (int b = 0; b < nb; b++) {
+      phiVars.add(new ArrayList<>());
+    }
+    int[] hasPhi = new int[nb];
+    int[] queued = new int[nb];
+    Arrays.fill(hasPhi, -1);
+    Arrays.fill(queued, -1);
+    for (int v = 0; v < nv; v++) {
+      Deque<Integer> worklist = new ArrayDeque<>();
+      for (int b : defBlocks.get(v)) {
+        if (queued[b] != v) {
+          queued[b] = v;
+          worklist.add(b);
+        }
+      }
+      while (!worklist.isEmpty()) {
+        for (int d : frontier.get(worklist.poll())) {
+          if (hasPhi[d] != v && cfg.liveIn[d].get(v)) {
+            hasPhi[d] = v;
+            phiVars.get(d).add(v);
+            if (queued[d] != v) {
+              queued[d] = v;
+              worklist.add(d);
+            }
+          }
+        }
+      }
+    }
+    List<List<Ast.Target.Instr.Phi>> phis = new ArrayList<>();
+    for (int b = 0; b < nb; b++) {
+      List<Ast.Target.Instr.Phi> blockPhis = new ArrayList<>();
+      int n = cfg.preds[cfg.blocks[b][0]].length;
+      for (int k = 0; k < phiVars.get(b).size(); k++) {
+        blockPhis.add(new Ast.Target.Instr.Phi(-1, null, new Ast.Target.Dest[n],
+          new int[n], -1));
+      }
+      phis.add(blockPhis);
+    }
+
+    // renaming, with a stack of current names for every pseudo-register
+    Renamer renamer = new Renamer(nv);
+    Deque<int[]> stack = new ArrayDeque<>();
+    stack.push(new int[] { cfg.blockOf[cfg.entry], -1 });
+    while (!stack.isEmpty()) {
+      int[] top = stack.pop();
+      if (top[1] != -1) {
+        renamer.unwind(top[1]);
+        continue;
+      }
+      int b = top[0];
+      stack.push(new int[] { b, renamer.log.size() });
+      for (int k = 0; k < phis.get(b).size(); k++) {
+        phis.get(b).get(k).dest = renamer.define(phiVars.get(b).get(k));
+      }
+      for (int i : cfg.blocks[b]) {
+        Ast.Target.Instr instr = cfg.instrs.get(i);
+        Ast.Target.Dest[] uses = instr.uses();
+        if (uses.length > 0) {
+          for (int k = 0; k < uses.length; k++) {
+            uses[k] = renamer.current(uses[k].loc);
+          }
+          instr.setUses(uses);
+        }
+        if (instr.def() != null) {
+          instr.setDef(renamer.define(instr.def().loc));
+        }
+      }
+      int last = cfg.blocks[b][cfg.blocks[b].length - 1];
+      for (int s : cfg.blockSuccs[b]) {
+        int[] preds = cfg.preds[cfg.blocks[s][0]];
+        for (int k = 0; k < preds.length; k++) {
+          if (preds[k] != last) {
+            continue;
+          }
+          for (int j = 0; j < phis.get(s).size(); j++) {
+            phis.get(s).get(j).args[k] = renamer.current(phiVars.get(s).get(j));
+          }
+        }
+      }
+      for (int c : cfg.domChildren[b]) {
+        stack.push(new int[] { c, -1 });
+      }
+    }
+
+    // the phis take over the label of their block, the predecessors are
+    // identified by their labels once every block has been relabelled
+    List<Ast.Target.Instr> instrs = new ArrayList<>();
+    for (int i = 0; i < cfg.instrs.size(); i++) {
+      Ast.Target.Instr instr = cfg.instrs.get(i);
+      int b = cfg.blockOf[i];
+      if (cfg.blocks[b][0] == i && !phis.get(b).isEmpty()) {
+        int label = instr.inLabel;
+        for (Ast.Target.Instr.Phi phi : phis.get(b)) {
+          phi.inLabel = label;
+          label = prog.newLabel();
+          phi.outLabel1 = label;
+          instrs.add(phi);
+        }
+        instr.inLabel = label;
+      }
+      instrs.add(instr);
+    }
+    for (int b = 0; b < nb; b++) {
+      int[] preds = cfg.preds[cfg.blocks[b][0]];
+      for (Ast.Target.Instr.Phi phi : phis.get(b)) {
+        for (int k = 0; k < preds.length; k++) {
+          phi.predLabels[k] = cfg.instrs.get(preds[k]).inLabel;
+        }
+      }
+    }
+    prog.instructions.clear();
+    prog.instructions.addAll(instrs);
+    prog.varCount = renamer.count;
+    prog.frameSlots = prog.varCount;
+  }
+
+  private static class Renamer {
+    final List<Deque<Ast.Target.Dest>> names = new ArrayList<>();
+    // pseudo-registers read before any definition reaches them
+    final Ast.Target.Dest[] undefined;
+    final Deque<Integer> log = new ArrayDeque<>();
+    int count = 0;
+    Renamer(int varCount) {
+      for (int v = 0; v < varCount; v++) {
+        this.names.add(new ArrayDeque<>());
+      }
+      this.undefined = new Ast.Target.Dest[varCount];
+    }
+    Ast.Target.Dest define(int v) {
+      Ast.Target.Dest dest = new Ast.Target.Dest(this.count++);
+      this.names.get(v).push(dest);
+      this.log.push(v);
+      return dest;
+    }
+    Ast.Target.Dest current(int v) {
+      if (!this.names.get(v).isEmpty()) {
+        return this.names.get(v).peek();
+      }
+      if (this.undefined[v] == null) {
+        this.undefined[v] = new Ast.Target.Dest(this.count++);
+      }
+      return this.undefined[v];
+    }
+    void unwind(int logSize) {
+      while (this.log.size() > logSize) {
+        this.names.get(this.log.pop()).pop();
+      }
+    }
+  }
+
+  private static void removeUnreachable(Ast.Target.Prog prog) {
+    Cfg cfg = new Cfg(prog);
+    cfg.computeDominators();
+    List<Ast.Target.Instr> reachable = new ArrayList<>();
+    for (int i = 0; i < cfg.instrs.size(); i++) {
+      Ast.Target.Instr instr = cfg.instrs.get(i);
+      if (instr instanceof Ast.Target.Instr.Comment
+          || cfg.idom[cfg.blockOf[i]] != -1) {
+        reachable.add(instr);
+      }
+    }
+    prog.instructions.clear();
+    prog.instructions.addAll(reachable);
+  }
+
+  /** Copy propagation, removal of phis that merge a single value and
+      removal of definitions no branch, print or return depends on. The
+      instructions removed are spliced out, so the phis of a block stay
+      together at its head, and a phi that named one of them as a
+      predecessor names the instruction before it instead. */
+  public static int optimise(Ast.Target.Prog prog) {
+    List<Ast.Target.Instr> instrs = prog.instructions;
+    Map<Integer, Ast.Target.Dest> replacement = new HashMap<>();
+    // the gotos standing in for removed instructions until they are spliced
+    Set<Ast.Target.Instr> gaps = Collections.newSetFromMap(new IdentityHashMap<>());
+    int removed = 0, round;
+    do {
+      round = 0;
+      for (int i = 0; i < instrs.size(); i++) {
+        Ast.Target.Instr instr = instrs.get(i);
+        Ast.Target.Dest[] uses = instr.uses();
+        if (uses.length > 0) {
+          for (int k = 0; k < uses.length; k++) {
+            uses[k] = resolve(replacement, uses[k]);
+          }
+          instr.setUses(uses);
+        }
+        Ast.Target.Dest same = null;
+        if (instr instanceof Ast.Target.Instr.MoveCp) {
+          same = uses[0];
+        } else if (instr instanceof Ast.Target.Instr.Phi) {
+          for (Ast.Target.Dest arg : uses) {
+            if (arg.loc == instr.def().loc) {
+              continue;
+            } else if (same == null) {
+              same = arg;
+            } else if (same.loc != arg.loc) {
+              same = null;
+              break;
+            }
+          }
+        }
+        if (same != null && same.loc != instr.def().loc) {
+          replacement.put(instr.def().loc, same);
+          instrs.set(i, gap(gaps, instr));
+          round++;
+        }
+      }
+      removed += round;
+    } while (round > 0);
+
+    // sparse dead code elimination from the instructions with side effects
+    Map<Integer, Ast.Target.Instr> defOf = new HashMap<>();
+    for (Ast.Target.Instr instr : instrs) {
+      if (instr.def() != null) {
+        defOf.put(instr.def().loc, instr);
+      }
+    }
+    Set<Ast.Target.Instr> useful = Collections.newSetFromMap(new IdentityHashMap<>());
+    Deque<Ast.Target.Instr> worklist = new ArrayDeque<>();
+    for (Ast.Target.Instr instr : instrs) {
+      if (instr.def() == null) {
+        useful.add(instr);
+        worklist.add(instr);
+      }
+    }
+    while (!worklist.isEmpty()) {
+      for (Ast.Target.Dest use : worklist.poll().uses()) {
+        Ast.Target.Instr def = defOf.get(use.loc);
+        if (def != null && useful.add(def)) {
+          worklist.add(def);
+        }
+      }
+    }
+    for (int i = 0; i < instrs.size(); i++) {
+      Ast.Target.Instr instr = instrs.get(i);
+      if (!useful.contains(instr)) {
+        instrs.set(i, gap(gaps, instr));
+        removed++;
+      }
+    }
+    splice(prog, gaps);
+    return removed;
+  }
+
+  private static Ast.Target.Instr gap(Set<Ast.Target.Instr> gaps, Ast.Target.Instr instr) {
+    Ast.Target.Instr gap = new Ast.Target.Instr.Goto(instr.inLabel, instr.outLabel1);
+    gaps.add(gap);
+    return gap;
+  }
+
+  // take the gaps out, sending the jumps that reach them on to their
+  // successors. A phi naming a gap as its predecessor names what came
+  // before it instead, unless that is a branch or a merge: the gap then
+  // stays as the block on that edge, which keeps the edges apart
+  private static void splice(Ast.Target.Prog prog, Set<Ast.Target.Instr> gaps) {
+    Map<Integer, Ast.Target.Instr> byLabel = new HashMap<>();
+    Map<Integer, List<Ast.Target.Instr>> jumps = new HashMap<>();
+    for (Ast.Target.Instr instr : prog.instructions) {
+      if (instr instanceof Ast.Target.Instr.Comment) {
+        continue;
+      }
+      byLabel.put(instr.inLabel, instr);
+      jumps.computeIfAbsent(instr.outLabel1, label -> new ArrayList<>()).add(instr);
+      if (instr.outLabel2 != -1 && instr.outLabel2 != instr.outLabel1) {
+        jumps.computeIfAbsent(instr.outLabel2, label -> new ArrayList<>()).add(instr);
+      }
+    }
+    Set<Ast.Target.Instr> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+    for (Ast.Target.Instr instr : prog.instructions) {
+      if (!(instr instanceof Ast.Target.Instr.Phi)) {
+        continue;
+      }
+      Ast.Target.Instr.Phi phi = (Ast.Target.Instr.Phi) instr;
+      for (int k = 0; k < phi.predLabels.length; k++) {
+        Ast.Target.Instr pred = byLabel.get(phi.predLabels[k]);
+        for (int steps = 0; pred != null && gaps.contains(pred) && !kept.contains(pred);
+            steps++) {
+          List<Ast.Target.Instr> from = jumps.getOrDefault(pred.inLabel,
+            Collections.emptyList());
+          if (from.size() != 1 || from.get(0).outLabel2 != -1
+              || pred.inLabel == prog.entryLabel || steps > byLabel.size()) {
+            kept.add(pred);
+          } else {
+            pred = from.get(0);
+          }
+        }
+        if (pred != null) {
+          phi.predLabels[k] = pred.inLabel;
+        }
+      }
+    }
+    prog.removeGotos(instr -> gaps.contains(instr) && !kept.contains(instr));
+  }
+
+  private static Ast.Target.Dest resolve(Map<Integer, Ast.Target.Dest> replacement,
+      Ast.Target.Dest dest) {
+    while (replacement.containsKey(dest.loc)) {
+      dest = replacement.get(dest.loc);
+    }
+    return dest;
+  }
+
+  /** Leave SSA form. The phis at the head of a block are read in parallel
+      on each incoming edge, so every edge gets its own sequence of copies,
+      placed on a fresh path between the predecessor and the block. */
+  public static void destruct(Ast.Target.Prog prog) {
+    Map<Integer, Ast.Target.Instr> byLabel = new HashMap<>();
+    for (Ast.Target.Instr instr : prog.instructions) {
+      if (!(instr instanceof Ast.Target.Instr.Comment)) {
+        byLabel.put(instr.inLabel, instr);
+      }
+    }
+    // group the phis by the label their predecessors jump to
+    Map<Integer, List<Ast.Target.Instr.Phi>> groups = new LinkedHashMap<>();
+    for (Ast.Target.Instr instr : prog.instructions) {
+      if (instr instanceof Ast.Target.Instr.Phi) {
+        Ast.Target.Instr.Phi phi = (Ast.Target.Instr.Phi) instr;
+        groups.computeIfAbsent(headOf(phi, byLabel), head -> new ArrayList<>())
+          .add(phi);
+      }
+    }
+
+    List<Ast.Target.Instr> copies = new ArrayList<>();
+    for (Map.Entry<Integer, List<Ast.Target.Instr.Phi>> group : groups.entrySet()) {
+      int head = group.getKey();
+      Set<Integer> predLabels = new LinkedHashSet<>();
+      for (Ast.Target.Instr.Phi phi : group.getValue()) {
+        for (int label : phi.predLabels) {
+          predLabels.add(label);
+        }
+      }
+      for (int predLabel : predLabels) {
+        List<Ast.Target.Dest[]> parallel = new ArrayList<>();
+        for (Ast.Target.Instr.Phi phi : group.getValue()) {
+          for (int k = 0; k < phi.predLabels.length; k++) {
+            if (phi.predLabels[k] == predLabel) {
+              parallel.add(new Ast.Target.Dest[] { phi.dest, phi.args[k] });
+            }
+          }
+        }
+        List<Ast.Target.Dest[]> sequence = sequentialise(prog, parallel);
+        if (sequence.isEmpty()) {
+          continue;
+        }
+        int first = prog.newLabel();
+        int label = first;
+        for (int k = 0; k < sequence.size(); k++) {
+          int next = k == sequence.size() - 1 ? head : prog.newLabel();
+          copies.add(new Ast.Target.Instr.MoveCp(label, sequence.get(k)[0],
+            sequence.get(k)[1], next));
+          label = next;
+        }
+        Ast.Target.Instr pred = byLabel.get(predLabel);
+        pred.outLabel1 = pred.outLabel1 == head ? first : pred.outLabel1;
+        pred.outLabel2 = pred.outLabel2 == head ? first : pred.outLabel2;
+      }
+    }
+
+    List<Ast.Target.Instr> instrs = prog.instructions;
+    for (int i = 0; i < instrs.size(); i++) {
+      Ast.Target.Instr instr = instrs.get(i);
+      if (instr instanceof Ast.Target.Instr.Phi) {
+        instrs.set(i, new Ast.Target.Instr.Goto(instr.inLabel, instr.outLabel1));
+      }
+    }
+    instrs.addAll(copies);
+    prog.frameSlots = prog.varCount;
+    prog.removeGotos();
+  }
+
+  // the label a predecessor jumps to in order to reach a phi, possibly
+  // through other phis and gotos of the same block
+  private static int headOf(Ast.Target.Instr.Phi phi,
+      Map<Integer, Ast.Target.Instr> byLabel) {
+    Ast.Target.Instr pred = byLabel.get(phi.predLabels[0]);
+    for (int out : new int[] { pred.outLabel1, pred.outLabel2 }) {
+      Ast.Target.Instr cur = byLabel.get(out);
+      for (int steps = 0; cur != null && steps <= byLabel.size(); steps++) {
+        if (cur == phi) {
+          return out;
+        } else if (!(cur instanceof Ast.Target.Instr.Phi
+            || cur instanceof Ast.Target.Instr.Goto)) {
+          break;
+        }
+        cur = byLabel.get(cur.outLabel1);
+      }
+    }
+    throw new IllegalStateException("no path to " + phi.toRtl());
+  }
+
+  // order a parallel copy so that no destination is written before it is
+  // read, breaking cycles with a fresh pseudo-register
+  private static List<Ast.Target.Dest[]> sequentialise(Ast.Target.Prog prog,
+      List<Ast.Target.Dest[]> parallel) {
+    List<Ast.Target.Dest[]> pending = new ArrayList<>();
+    for (Ast.Target.Dest[] copy : parallel) {
+      if (copy[0].loc != copy[1].loc) {
+        pending.add(copy);
+      }
+    }
+    List<Ast.Target.Dest[]> sequence = new ArrayList<>();
+    while (!pending.isEmpty()) {
+      boolean progress = false;
+      for (Iterator<Ast.Target.Dest[]> it = pending.iterator(); it.hasNext();) {
+        Ast.Target.Dest[] copy = it.next();
+        boolean read = false;
+        for (Ast.Target.Dest[] other : pending) {
+          read |= other[1].loc == copy[0].loc;
+        }
+        if (!read) {
+          sequence.add(copy);
+          it.remove();
+          progress = true;
+        }
+      }
+      if (!progress) {
+        // only cycles are left: save one destination and read the copy
+        Ast.Target.Dest[] copy = pending.get(0);
+        Ast.Target.Dest saved = prog.newDest();
+        sequence.add(new Ast.Target.Dest[] { saved, copy[0] });
+        for (Ast.Target.Dest[] other : pending) {
+          other[1] = other[1].loc == copy[0].loc ? saved : other[1];
+        }
+      }
+    }
+    return sequence;
+  }
+}
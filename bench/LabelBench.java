@@ -0,0 +1,60 @@
+// Micro-benchmark of the label resolution done when building a Target.Prog
+import java.util.*;
+
+public class LabelBench {
+  // the resolution Prog used before LabelMap: every change for every instruction
+  private static void quadratic(List<Ast.Target.Instr> instrs, Map<Integer, Integer> changes) {
+    for (Ast.Target.Instr instr : instrs) {
+      for (Map.Entry<Integer, Integer> change : changes.entrySet()) {
+        instr.inLabel = instr.inLabel == change.getKey() ? change.getValue() : instr.inLabel;
+        instr.outLabel1 = instr.outLabel1 == change.getKey() ? change.getValue() : instr.outLabel1;
+      }
+    }
+  }
+
+  // a straight line of n gotos, each out label being merged with the in
+  // label of the next goto
+  private static List<Ast.Target.Instr> program(int n) {
+    List<Ast.Target.Instr> instrs = new ArrayList<>();
+    for (int k = 0; k < n; k++) {
+      instrs.add(new Ast.Target.Instr.Goto(2 * k, 2 * k + 1));
+    }
+    return instrs;
+  }
+
+  private static long time(Runnable run) {
+    long start = System.nanoTime();
+    run.run();
+    return (System.nanoTime() - start) / 1000;
+  }
+
+  public static void main(String[] args) {
+    int max = args.length > 0 ? Integer.parseInt(args[0]) : 64000;
+    // warm up the JIT on both versions
+    for (int round = 0; round < 3; round++) {
+      Map<Integer, Integer> changes = new LinkedHashMap<>();
+      Ast.Target.LabelMap labels = new Ast.Target.LabelMap();
+      for (int k = 0; k < 1000; k++) {
+        changes.put(2 * k + 1, 2 * k + 2);
+        labels.union(2 * k + 1, 2 * k + 2);
+      }
+      quadratic(program(1000), changes);
+      new Ast.Target.Prog(program(1000), labels);
+    }
+    System.out.println(String.format("%10s %14s %14s", "labels", "quadratic us", "union-find us"));
+    for (int n = 1000; n <= max; n *= 2) {
+      Map<Integer, Integer> changes = new LinkedHashMap<>();
+      Ast.Target.LabelMap labels = new Ast.Target.LabelMap();
+      for (int k = 0; k < n; k++) {
+        changes.put(2 * k + 1, 2 * k + 2);
+        labels.union(2 * k + 1, 2 * k + 2);
+      }
+      List<Ast.Target.Instr> before = program(n);
+      List<Ast.Target.Instr> after = program(n);
+      long quadraticTime = n <= 16000 ? time(() -> quadratic(before, changes)) : -1;
+      long unionFindTime = time(() -> new Ast.Target.Prog(after, labels));
+      System.out.println(String.format("%10d %14s %14d", 2 * n,
+        quadraticTime < 0 ? "-" : Long.toString(quadraticTime), unionFindTime));
+    }
+  }
+}
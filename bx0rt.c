@@ -1,6 +1,46 @@
-#include <stdio.h>
+#include <errno.h>
 #include <stdint.h>
+#include <string.h>
+#include <unistd.h>
+
+// output is collected here and written out when it is full, when main
+// returns, and at exit
+static char buf[1 << 16];
+static size_t len = 0;
+
+__attribute__((destructor))
+void bx0_flush(void)
+{
+  size_t done = 0;
+  while (done < len) {
+    ssize_t n = write(1, buf + done, len - done);
+    if (n < 0 && errno == EINTR) {
+      continue;
+    } else if (n <= 0) {
+      break;
+    }
+    done += n;
+  }
+  len = 0;
+}
+
 void bx0_print(int64_t x)
 {
-  printf("%ld\n", x);
+  // at most a minus, 19 digits and the newline
+  char digits[24];
+  char *end = digits + sizeof digits, *p = end;
+  uint64_t u = x < 0 ? -(uint64_t) x : (uint64_t) x;
+  *--p = '\n';
+  do {
+    *--p = '0' + u % 10;
+    u /= 10;
+  } while (u != 0);
+  if (x < 0) {
+    *--p = '-';
+  }
+  if (len + (end - p) > sizeof buf) {
+    bx0_flush();
+  }
+  memcpy(buf + len, p, end - p);
+  len += end - p;
 }
@@ -0,0 +1,62 @@
+// Compile server for the bx0c client, so that a build starts and warms up
+// one JVM instead of one per file. Unix-domain sockets need Java 16.
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/** A request is the client's working directory and then its arguments,
+    one per line, ended by an empty line. The reply is a line holding the
+    exit status and the lengths of the standard output and the standard
+    error, followed by the two of them. */
+public class Daemon {
+  public static void main(String[] args) throws Exception {
+    Path socket = Paths.get(args.length > 0 ? args[0] : "/tmp/bx0.sock");
+    Files.deleteIfExists(socket);
+    ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    server.bind(UnixDomainSocketAddress.of(socket));
+    socket.toFile().deleteOnExit();
+    ExecutorService workers = Executors.newCachedThreadPool();
+    System.err.println(String.format("bx0 daemon listening on %s", socket));
+    while (true) {
+      SocketChannel client = server.accept();
+      workers.execute(() -> serve(client));
+    }
+  }
+
+  private static void serve(SocketChannel client) {
+    try (SocketChannel channel = client) {
+      BufferedReader in = new BufferedReader(new InputStreamReader(
+        Channels.newInputStream(channel), StandardCharsets.UTF_8));
+      File dir = new File(in.readLine());
+      List<String> args = new ArrayList<>();
+      for (String line = in.readLine(); line != null && !line.isEmpty();
+          line = in.readLine()) {
+        args.add(line);
+      }
+      ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+      ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+      int status;
+      try (PrintStream out = new PrintStream(stdout, true);
+          PrintStream err = new PrintStream(stderr, true)) {
+        try {
+          status = Main.run(dir, args.toArray(new String[0]), out, err);
+        } catch (RuntimeException e) {
+          e.printStackTrace(err);
+          status = 2;
+        }
+      }
+      OutputStream out = Channels.newOutputStream(channel);
+      out.write(String.format("%d %d %d\n", status, stdout.size(), stderr.size())
+        .getBytes(StandardCharsets.US_ASCII));
+      stdout.writeTo(out);
+      stderr.writeTo(out);
+      out.flush();
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+}
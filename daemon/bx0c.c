@@ -0,0 +1,65 @@
+// Client for the compile daemon: sends the working directory and the
+// arguments, then copies the compiler's output and exit status. Exits with
+// 75 (EX_TEMPFAIL) when no daemon is listening.
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <sys/socket.h>
+#include <sys/un.h>
+
+static void copy(FILE *from, FILE *to, long n)
+{
+  char buf[4096];
+  while (n > 0) {
+    size_t k = fread(buf, 1, n < (long) sizeof buf ? (size_t) n : sizeof buf, from);
+    if (k == 0) {
+      break;
+    }
+    fwrite(buf, 1, k, to);
+    n -= k;
+  }
+}
+
+int main(int argc, char **argv)
+{
+  const char *path = getenv("BX0_SOCKET");
+  struct sockaddr_un addr;
+  char cwd[4096];
+  int fd, status;
+  long outLen, errLen;
+  FILE *sock;
+
+  if (path == NULL) {
+    path = "/tmp/bx0.sock";
+  }
+  memset(&addr, 0, sizeof addr);
+  addr.sun_family = AF_UNIX;
+  strncpy(addr.sun_path, path, sizeof addr.sun_path - 1);
+  fd = socket(AF_UNIX, SOCK_STREAM, 0);
+  if (fd < 0 || connect(fd, (struct sockaddr *) &addr, sizeof addr) < 0) {
+    perror(path);
+    return 75;
+  }
+  if (getcwd(cwd, sizeof cwd) == NULL) {
+    perror("getcwd");
+    return 2;
+  }
+  sock = fdopen(fd, "r+");
+  fprintf(sock, "%s\n", cwd);
+  for (int i = 1; i < argc; i++) {
+    fprintf(sock, "%s\n", argv[i]);
+  }
+  fprintf(sock, "\n");
+  fflush(sock);
+
+  if (fscanf(sock, "%d %ld %ld", &status, &outLen, &errLen) != 3
+      || fgetc(sock) != '\n') {
+    fprintf(stderr, "%s: bad reply\n", path);
+    return 2;
+  }
+  copy(sock, stdout, outLen);
+  copy(sock, stderr, errLen);
+  fclose(sock);
+  return status;
+}